@@ -0,0 +1,159 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+
+import nuxeo.labs.utils.images.ImageScaler;
+
+/**
+ * A single png holding the icons of several doc types, each in a size x size cell, and the position of each doc type
+ * icon in it. Doc types sharing the same icon share the same cell.
+ *
+ * @since 2023
+ */
+public class DocTypeIconSprite {
+
+    public static final String SPRITE_FILE_NAME = "docTypeIcons.png";
+
+    protected final int size;
+
+    protected final int width;
+
+    protected final int height;
+
+    protected final Blob image;
+
+    protected final Map<String, Rectangle> icons;
+
+    protected DocTypeIconSprite(int size, int width, int height, Blob image, Map<String, Rectangle> icons) {
+        this.size = size;
+        this.width = width;
+        this.height = height;
+        this.image = image;
+        this.icons = Collections.unmodifiableMap(icons);
+    }
+
+    /**
+     * Builds the sprite from the icons (doc type => icon), in the order of the map. Icons that cannot be decoded are
+     * not in the sprite.
+     */
+    public static DocTypeIconSprite build(Map<String, Blob> docTypeIcons, int size) throws IOException {
+
+        // Decode each distinct icon once
+        Map<String, BufferedImage> images = new LinkedHashMap<>();
+        Map<String, String> docTypeDigests = new LinkedHashMap<>();
+        for (Map.Entry<String, Blob> entry : docTypeIcons.entrySet()) {
+            Blob icon = entry.getValue();
+            if (icon == null) {
+                continue;
+            }
+            String digest = DocTypeIconThumbnailFactory.getDigest(icon);
+            if (!images.containsKey(digest)) {
+                BufferedImage image;
+                try (InputStream in = icon.getStream()) {
+                    image = ImageIO.read(in);
+                }
+                if (image == null) {
+                    continue;
+                }
+                if (image.getWidth() > size || image.getHeight() > size) {
+                    image = ImageScaler.scaleToFit(image, size, size);
+                }
+                images.put(digest, image);
+            }
+            docTypeDigests.put(entry.getKey(), digest);
+        }
+
+        int count = Math.max(1, images.size());
+        int columns = (int) Math.ceil(Math.sqrt(count));
+        int rows = (count + columns - 1) / columns;
+
+        BufferedImage sprite = new BufferedImage(columns * size, rows * size, BufferedImage.TYPE_INT_ARGB);
+        Map<String, Rectangle> cells = new HashMap<>();
+        Graphics2D g2d = sprite.createGraphics();
+        try {
+            int index = 0;
+            for (Map.Entry<String, BufferedImage> entry : images.entrySet()) {
+                BufferedImage image = entry.getValue();
+                int x = (index % columns) * size;
+                int y = (index / columns) * size;
+                g2d.drawImage(image, x, y, null);
+                cells.put(entry.getKey(), new Rectangle(x, y, image.getWidth(), image.getHeight()));
+                index += 1;
+            }
+        } finally {
+            g2d.dispose();
+        }
+
+        Map<String, Rectangle> icons = new LinkedHashMap<>();
+        docTypeDigests.forEach((docType, digest) -> icons.put(docType, cells.get(digest)));
+
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            ImageIO.write(sprite, "png", out);
+            byte[] bytes = out.toByteArray();
+            Blob blob = Blobs.createBlob(bytes, "image/png");
+            blob.setFilename(SPRITE_FILE_NAME);
+            blob.setDigest(DigestUtils.md5Hex(bytes));
+            return new DocTypeIconSprite(size, sprite.getWidth(), sprite.getHeight(), blob, icons);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * The png, its digest is stable for the same icons and size
+     */
+    public Blob getImage() {
+        return image;
+    }
+
+    /**
+     * Doc type => position and size of its icon in the image
+     */
+    public Map<String, Rectangle> getIcons() {
+        return icons;
+    }
+
+}
@@ -0,0 +1,337 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+import java.util.Properties;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.common.Environment;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Keeps what {@link DocTypeIconThumbnailFactory} resolves and renders in a small directory of the Nuxeo data
+ * directory, so a node does not have to do it again after a restart:
+ * <ul>
+ * <li>For the icons: the file, mime type and digest (the icon itself stays in nuxeo.war)</li>
+ * <li>The resized icons and the fallback image (png files)</li>
+ * </ul>
+ * Entries are checked against the icon files (path, timestamp and size, or digest when nuxeo.war was regenerated)
+ * before being used.
+ * <p>
+ * Changes to the index are written to disk right away, except between {@link #beginBatch()} and {@link #endBatch()}
+ * (when pre-warming the cache for example), where they are written once, at the end.
+ * <p>
+ * Can be disabled by setting {@code nuxeo.labs.utils.thumbnails.icons.store} to false.
+ *
+ * @since 2023
+ */
+public class DocTypeIconStore {
+
+    private static final Logger log = LogManager.getLogger(DocTypeIconStore.class);
+
+    public static final String STORE_ENABLED_PROPERTY = "nuxeo.labs.utils.thumbnails.icons.store";
+
+    public static final String DIRECTORY_NAME = "nxlabs-icon-thumbnails";
+
+    // Change it when the format of the store changes
+    public static final String VERSION = "v1";
+
+    protected static final String INDEX_FILE_NAME = "index.properties";
+
+    protected static final String FALLBACK_FILE_NAME = "fallback.png";
+
+    protected static final String NONE = "none";
+
+    protected static DocTypeIconStore instance;
+
+    protected static boolean initialized = false;
+
+    protected final File dir;
+
+    protected final File indexFile;
+
+    protected final Properties index = new Properties();
+
+    // The index changed since it was last written
+    protected boolean dirty = false;
+
+    protected int batches = 0;
+
+    /**
+     * Returns the store, or null if it is disabled or there is no data directory.
+     */
+    public static synchronized DocTypeIconStore getInstance() {
+
+        if (!initialized) {
+            initialized = true;
+            Environment env = Environment.getDefault();
+            if (!Framework.isBooleanPropertyFalse(STORE_ENABLED_PROPERTY) && env != null && env.getData() != null) {
+                File dir = new File(new File(env.getData(), DIRECTORY_NAME), VERSION);
+                try {
+                    instance = new DocTypeIconStore(dir);
+                } catch (IOException e) {
+                    log.warn("Cannot use the icon thumbnails store at " + dir + ", icons will not be persisted", e);
+                }
+            }
+        }
+
+        return instance;
+    }
+
+    protected DocTypeIconStore(File dir) throws IOException {
+
+        this.dir = dir;
+        Files.createDirectories(dir.toPath());
+        indexFile = new File(dir, INDEX_FILE_NAME);
+        if (indexFile.exists()) {
+            try (InputStream in = new FileInputStream(indexFile)) {
+                index.load(in);
+            }
+        }
+    }
+
+    /**
+     * Returns the stored icon of the doc type if it is still valid. An empty Optional means the doc type has no icon,
+     * null means there is no (valid) entry for the doc type.
+     */
+    public synchronized Optional<Blob> loadIcon(String docType, String iconPath) {
+
+        String prefix = "icon." + docType + ".";
+        if (!iconPath.equals(index.getProperty(prefix + "path"))) {
+            return null;
+        }
+
+        String filePath = index.getProperty(prefix + "file");
+        if (NONE.equals(filePath)) {
+            // Still no icon?
+            File iconFile = DocTypeIconThumbnailFactory.getIconFile(iconPath);
+            return iconFile == null || !iconFile.exists() ? Optional.empty() : null;
+        }
+
+        File file = new File(filePath);
+        String digest = index.getProperty(prefix + "digest");
+        if (!file.exists() || digest == null) {
+            return null;
+        }
+        if (file.length() != Long.parseLong(index.getProperty(prefix + "length", "-1"))) {
+            return null;
+        }
+        if (file.lastModified() != Long.parseLong(index.getProperty(prefix + "lastModified", "-1"))) {
+            // nuxeo.war is regenerated at startup, check the content
+            try {
+                if (!digest.equals(DigestUtils.md5Hex(readFile(file)))) {
+                    return null;
+                }
+                index.setProperty(prefix + "lastModified", String.valueOf(file.lastModified()));
+                indexChanged();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        Blob icon = new FileBlob(file, index.getProperty(prefix + "mimeType"));
+        icon.setFilename(index.getProperty(prefix + "filename", file.getName()));
+        icon.setDigest(digest);
+
+        return Optional.of(icon);
+    }
+
+    /**
+     * Stores the icon of the doc type (null if it has no icon). Icons not backed by a file are not stored.
+     */
+    public synchronized void saveIcon(String docType, String iconPath, Blob icon) {
+
+        String prefix = "icon." + docType + ".";
+        File file = icon == null ? null : icon.getFile();
+        if (icon != null && file == null) {
+            return;
+        }
+
+        index.setProperty(prefix + "path", iconPath);
+        if (file == null) {
+            index.setProperty(prefix + "file", NONE);
+        } else {
+            index.setProperty(prefix + "file", file.getAbsolutePath());
+            index.setProperty(prefix + "length", String.valueOf(file.length()));
+            index.setProperty(prefix + "lastModified", String.valueOf(file.lastModified()));
+            index.setProperty(prefix + "mimeType", String.valueOf(icon.getMimeType()));
+            index.setProperty(prefix + "filename", String.valueOf(icon.getFilename()));
+            index.setProperty(prefix + "digest", String.valueOf(icon.getDigest()));
+        }
+        indexChanged();
+    }
+
+    /**
+     * Returns the stored resized icon, or null if not found or if it was resized from another icon.
+     */
+    public synchronized Blob loadResizedIcon(String docType, int size, String iconDigest) {
+
+        String prefix = "resized." + docType + "@" + size + ".";
+        if (iconDigest == null || !iconDigest.equals(index.getProperty(prefix + "source"))) {
+            return null;
+        }
+
+        File file = new File(dir, index.getProperty(prefix + "file", ""));
+        try {
+            byte[] bytes = file.isFile() ? readFile(file) : null;
+            if (bytes == null || bytes.length == 0) {
+                return null;
+            }
+            Blob blob = Blobs.createBlob(bytes, "image/png");
+            blob.setFilename(index.getProperty(prefix + "filename"));
+            blob.setDigest(index.getProperty(prefix + "digest"));
+            return blob;
+        } catch (IOException e) {
+            log.debug("Cannot read " + file, e);
+            return null;
+        }
+    }
+
+    public synchronized void saveResizedIcon(String docType, int size, String iconDigest, Blob resized) {
+
+        String key = docType + "@" + size;
+        String prefix = "resized." + key + ".";
+        String fileName = DigestUtils.md5Hex(key) + ".png";
+        try {
+            writeAtomically(new File(dir, fileName), resized.getByteArray());
+        } catch (IOException e) {
+            log.debug("Cannot store the resized icon " + key, e);
+            return;
+        }
+
+        index.setProperty(prefix + "file", fileName);
+        index.setProperty(prefix + "source", iconDigest);
+        index.setProperty(prefix + "filename", String.valueOf(resized.getFilename()));
+        index.setProperty(prefix + "digest", String.valueOf(resized.getDigest()));
+        indexChanged();
+    }
+
+    /**
+     * Removes the doc type (icon and resized icons) from the store.
+     */
+    public synchronized void remove(String docType) {
+
+        String iconPrefix = "icon." + docType + ".";
+        String resizedPrefix = "resized." + docType + "@";
+        boolean changed = index.keySet().removeIf(key -> {
+            String k = (String) key;
+            if (k.startsWith(resizedPrefix) && k.endsWith(".file")) {
+                new File(dir, index.getProperty(k)).delete();
+            }
+            return k.startsWith(iconPrefix) || k.startsWith(resizedPrefix);
+        });
+        if (changed) {
+            indexChanged();
+        }
+    }
+
+    public byte[] loadFallback() {
+
+        File file = new File(dir, FALLBACK_FILE_NAME);
+        try {
+            return file.isFile() ? readFile(file) : null;
+        } catch (IOException e) {
+            log.debug("Cannot read " + file, e);
+            return null;
+        }
+    }
+
+    public void saveFallback(byte[] png) {
+
+        try {
+            writeAtomically(new File(dir, FALLBACK_FILE_NAME), png);
+        } catch (IOException e) {
+            log.debug("Cannot store the thumbnail fallback", e);
+        }
+    }
+
+    /**
+     * Until {@link #endBatch()} is called (as many times), changes to the index are only written by {@link #flush()}.
+     */
+    public synchronized void beginBatch() {
+        batches += 1;
+    }
+
+    public synchronized void endBatch() {
+
+        batches = Math.max(0, batches - 1);
+        if (batches == 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the index if it changed since it was last written.
+     */
+    public synchronized void flush() {
+
+        if (dirty) {
+            dirty = false;
+            saveIndex();
+        }
+    }
+
+    protected void indexChanged() {
+
+        dirty = true;
+        if (batches == 0) {
+            flush();
+        }
+    }
+
+    protected static byte[] readFile(File file) throws IOException {
+        return Files.readAllBytes(file.toPath());
+    }
+
+    protected void writeAtomically(File file, byte[] bytes) throws IOException {
+
+        File tmp = new File(dir, file.getName() + ".tmp");
+        Files.write(tmp.toPath(), bytes);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    protected void saveIndex() {
+
+        File tmp = new File(dir, INDEX_FILE_NAME + ".tmp");
+        try {
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                index.store(out, "nuxeo-labs-utils doc type icons");
+            }
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.debug("Cannot save the icon thumbnails store index", e);
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.DefaultComponent;
+import org.nuxeo.runtime.pubsub.PubSubService;
+
+/**
+ * Pre-warms the {@link DocTypeIconThumbnailFactory} caches at startup, so the first grids displayed after a restart
+ * (or on a new node) do not have to resolve every icon.
+ * <p>
+ * Can be disabled by setting {@code nuxeo.labs.utils.thumbnails.icons.prewarm} to false.
+ * <p>
+ * Also renders the "(No thumbnail)" fallback image, unless {@code nuxeo.labs.utils.thumbnails.fallback.prerender}
+ * is false.
+ * <p>
+ * A hot reload restarts the components: when started again, the component evicts the icons that changed and tells
+ * the other nodes of the cluster to do the same (using the PubSubService).
+ *
+ * @since 2023
+ */
+public class DocTypeIconThumbnailComponent extends DefaultComponent {
+
+    private static final Logger log = LogManager.getLogger(DocTypeIconThumbnailComponent.class);
+
+    public static final String PREWARM_PROPERTY = "nuxeo.labs.utils.thumbnails.icons.prewarm";
+
+    public static final String PRERENDER_FALLBACK_PROPERTY = "nuxeo.labs.utils.thumbnails.fallback.prerender";
+
+    public static final String INVALIDATION_TOPIC = "nxlabs-doctype-icons";
+
+    // Used to ignore our own messages
+    protected static final String NODE_ID = UUID.randomUUID().toString();
+
+    protected static final String SEPARATOR = "\n";
+
+    // Same instance to register and unregister
+    protected final BiConsumer<String, byte[]> invalidationSubscriber = this::invalidationReceived;
+
+    @Override
+    public void start(ComponentContext context) {
+
+        List<String> changed = DocTypeIconThumbnailFactory.invalidateChanged();
+        if (!changed.isEmpty()) {
+            log.info("Doc type icons changed, evicted from the cache: " + changed);
+            broadcastInvalidation(changed);
+        }
+
+        PubSubService pubSubService = Framework.getService(PubSubService.class);
+        if (pubSubService != null) {
+            pubSubService.registerSubscriber(INVALIDATION_TOPIC, invalidationSubscriber);
+        }
+
+        if (!Framework.isBooleanPropertyFalse(PRERENDER_FALLBACK_PROPERTY)) {
+            long start = System.currentTimeMillis();
+            boolean ok = DocTypeIconThumbnailFactory.prerenderThumbnailFallback();
+            log.debug("Thumbnail fallback rendered in " + (System.currentTimeMillis() - start) + " ms (success: " + ok
+                    + ")");
+        }
+
+        if (Framework.isBooleanPropertyFalse(PREWARM_PROPERTY)) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        int count = DocTypeIconThumbnailFactory.prewarm();
+        log.info("Doc type icons pre-warmed: " + count + " types loaded in " + (System.currentTimeMillis() - start)
+                + " ms");
+    }
+
+    @Override
+    public void stop(ComponentContext context) throws InterruptedException {
+
+        PubSubService pubSubService = Framework.getService(PubSubService.class);
+        if (pubSubService != null) {
+            pubSubService.unregisterSubscriber(INVALIDATION_TOPIC, invalidationSubscriber);
+        }
+    }
+
+    /**
+     * Evicts the doc types from the caches of this node and of the other nodes of the cluster.
+     *
+     * @since 2023
+     */
+    public static void invalidate(Collection<String> docTypes) {
+
+        DocTypeIconThumbnailFactory.invalidate(docTypes);
+        broadcastInvalidation(docTypes);
+    }
+
+    protected static void broadcastInvalidation(Collection<String> docTypes) {
+
+        PubSubService pubSubService = Framework.getService(PubSubService.class);
+        if (pubSubService == null || docTypes.isEmpty()) {
+            return;
+        }
+
+        String message = NODE_ID + SEPARATOR + String.join(SEPARATOR, docTypes);
+        pubSubService.publish(INVALIDATION_TOPIC, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    protected void invalidationReceived(String topic, byte[] message) {
+
+        List<String> lines = new ArrayList<>(
+                Arrays.asList(new String(message, StandardCharsets.UTF_8).split(SEPARATOR)));
+        if (lines.isEmpty() || NODE_ID.equals(lines.remove(0))) {
+            return;
+        }
+
+        log.debug("Evicting doc type icons changed on another node: " + lines);
+        DocTypeIconThumbnailFactory.invalidate(lines);
+    }
+
+}
@@ -25,100 +25,555 @@ import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.Blobs;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.core.api.PropertyException;
 import org.nuxeo.ecm.core.api.thumbnail.ThumbnailFactory;
+import org.nuxeo.ecm.core.schema.DocumentType;
+import org.nuxeo.ecm.core.schema.SchemaManager;
 import org.nuxeo.ecm.platform.mimetype.interfaces.MimetypeRegistry;
 import org.nuxeo.ecm.platform.thumbnail.ThumbnailConstants;
-import org.nuxeo.ecm.platform.types.adapter.TypeInfo;
+import org.nuxeo.ecm.platform.types.Type;
+import org.nuxeo.ecm.platform.types.TypeManager;
 import org.nuxeo.runtime.api.Framework;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import nuxeo.labs.utils.images.ImageScaler;
+
 /**
  * @since 2023
  */
 public class DocTypeIconThumbnailFactory implements ThumbnailFactory {
 
+    private static final Logger log = LogManager.getLogger(DocTypeIconThumbnailFactory.class);
+
     public static final String NO_PREVIEW_ICON_PATH = "img" + File.separator + "preview_not_available.png";
 
     public static final String NULL_DOC_TYPE = "(null)";
 
-    // Caching the blobs
-    protected static Map<String, Blob> docTypesAndBlobs = new HashMap<String, Blob>();
+    public static final String CACHE_MAX_SIZE_PROPERTY = "nuxeo.labs.utils.thumbnails.icons.cache.maxSize";
+
+    public static final long DEFAULT_CACHE_MAX_SIZE = 500;
+
+    public static final int SPRITES_CACHE_MAX_SIZE = 20;
+
+    // Caching the blobs. The cache is concurrent and loads a given doc type only once, other threads asking for
+    // the same doc type wait for the result instead of resolving the icon themselves.
+    // An empty Optional means there is no icon for this doc type, so we don't look for it again.
+    protected static Cache<String, Optional<Blob>> docTypesAndBlobs = CacheBuilder.newBuilder()
+                                                                                  .maximumSize(getCacheMaxSize())
+                                                                                  .recordStats()
+                                                                                  .build();
 
     public static final String NO_THUMBNAIL_FALLBACK_NAME = "noThumbnail.png";
 
-    protected static Blob noThumbnailFallbackBlob = null;
+    // Resized icons, one entry per doc type and size
+    protected static Cache<String, Optional<Blob>> resizedIcons = CacheBuilder.newBuilder()
+                                                                              .maximumSize(getCacheMaxSize())
+                                                                              .recordStats()
+                                                                              .build();
 
-    protected static File noThumbnailFallbackFile = null;
+    // Sprites, one entry per size and list of doc types. Small and few, but rebuilding one decodes every icon
+    protected static Cache<String, DocTypeIconSprite> sprites = CacheBuilder.newBuilder()
+                                                                            .maximumSize(SPRITES_CACHE_MAX_SIZE)
+                                                                            .recordStats()
+                                                                            .build();
+
+    public static final int MAX_ICON_SIZE = 1024;
+
+    // What the cached icon was resolved from (path, timestamp, size), to detect the ones that changed
+    protected static Map<String, String> iconSignatures = new ConcurrentHashMap<>();
 
     @Override
     public Blob getThumbnail(DocumentModel doc, CoreSession session) {
 
-        try {
-            if (doc.hasFacet(ThumbnailConstants.THUMBNAIL_FACET)) {
-                Blob thumbnail = (Blob) doc.getPropertyValue(ThumbnailConstants.THUMBNAIL_PROPERTY_NAME);
-                if (thumbnail != null) {
-                    return thumbnail;
-                }
-            }
-        } catch (PropertyException e) {
-            // Ignore
+        Blob thumbnail = getThumbnailProperty(doc);
+        if (thumbnail != null) {
+            return thumbnail;
         }
 
         return getDefaultThumbnail(doc);
     }
 
+    /**
+     * Same as {@link #getThumbnail(DocumentModel, CoreSession)}, but when the document has no thumbnail, the icon
+     * returned fits in a size x size square.
+     *
+     * @since 2023
+     */
+    public Blob getThumbnail(DocumentModel doc, CoreSession session, int size) {
+
+        Blob thumbnail = getThumbnailProperty(doc);
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+
+        return getDefaultThumbnail(doc, size);
+    }
+
+    /**
+     * Returns true if the thumbnail is the icon of the document type (or the fallback image), or null: what this
+     * factory returns when the document has no thumbnail of its own. Compares the digests, icons always have one.
+     *
+     * @since 2023
+     */
+    public boolean isDocTypeThumbnail(Blob thumbnail, DocumentModel doc) {
+
+        if (thumbnail == null) {
+            return true;
+        }
+        String digest = thumbnail.getDigest();
+        if (digest == null) {
+            return false;
+        }
+        if (digest.equals(FallbackHolder.DIGEST)) {
+            return true;
+        }
+        Blob icon = getDocTypeIcon(doc == null ? NULL_DOC_TYPE : doc.getType());
+
+        return icon != null && digest.equals(icon.getDigest());
+    }
+
     @Override
     public Blob computeThumbnail(DocumentModel doc, CoreSession session) {
         return getDefaultThumbnail(doc);
     }
 
+    /**
+     * Returns the thumbnail of the document, or null if it has none.
+     * <p>
+     * This is the blob stored in the document (a ManagedBlob, keeping its digest and provider), its content is read
+     * from the binary store only when needed.
+     */
+    protected Blob getThumbnailProperty(DocumentModel doc) {
+
+        try {
+            if (doc.hasFacet(ThumbnailConstants.THUMBNAIL_FACET)) {
+                return (Blob) doc.getPropertyValue(ThumbnailConstants.THUMBNAIL_PROPERTY_NAME);
+            }
+        } catch (PropertyException e) {
+            // Ignore
+        }
+
+        return null;
+    }
+
     public Blob getDefaultThumbnail(DocumentModel doc) {
+        return getDocTypeThumbnail(doc == null ? NULL_DOC_TYPE : doc.getType());
+    }
 
-        Blob thumbnail;
-        String docType;
+    /**
+     * @since 2023
+     */
+    public Blob getDefaultThumbnail(DocumentModel doc, int size) {
+        return getDocTypeThumbnail(doc == null ? NULL_DOC_TYPE : doc.getType(), size);
+    }
 
-        if (doc == null) {
-            docType = NULL_DOC_TYPE;
-        } else {
-            docType = doc.getType();
-        }
+    /**
+     * Returns the icon of the doc type, at its native size, or the fallback image if there is no icon.
+     *
+     * @since 2023
+     */
+    public Blob getDocTypeThumbnail(String docType) {
 
-        thumbnail = docTypesAndBlobs.get(docType);
+        Blob thumbnail = getDocTypeIcon(docType);
         if (thumbnail != null) {
             return thumbnail;
         }
 
-        String iconPath = null;
-        if (doc == null) {
-            iconPath = NO_PREVIEW_ICON_PATH;
-        } else {
-            TypeInfo typeInfo = doc.getAdapter(TypeInfo.class);
-            iconPath = typeInfo.getBigIcon();
-            if (iconPath == null) {
-                iconPath = typeInfo.getIcon();
+        return getThumbnailFallback();
+    }
+
+    /**
+     * Returns the icon of the doc type resized to fit in a size x size square (as a png), or the fallback image if
+     * there is no icon. Each (docType, size) is resized only once, the result is cached.
+     * <p>
+     * If size is 0 or negative, returns the icon at its native size.
+     *
+     * @since 2023
+     */
+    public Blob getDocTypeThumbnail(String docType, int size) {
+
+        if (size <= 0) {
+            return getDocTypeThumbnail(docType);
+        }
+        if (size > MAX_ICON_SIZE) {
+            throw new IllegalArgumentException("size cannot be greater than " + MAX_ICON_SIZE + ": " + size);
+        }
+
+        Blob icon = getDocTypeIcon(docType);
+        if (icon == null) {
+            return getThumbnailFallback();
+        }
+
+        Blob thumbnail;
+        try {
+            thumbnail = resizedIcons.get(docType + "@" + size,
+                    () -> Optional.ofNullable(loadResizedIcon(docType, icon, size))).orElse(null);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            log.warn("Cannot resize the icon of doc type " + docType, e);
+            thumbnail = null;
+        }
+
+        // If the icon could not be read (unsupported format), we return it as is
+        return thumbnail != null ? thumbnail : icon;
+    }
+
+    /**
+     * Returns a sprite with the icons of the doc types, each resized to fit in a size x size cell. When docTypes is
+     * null or empty, the sprite has all the doc types currently cached (see {@link #getCachedDocTypes()}). Doc types
+     * without icon get the fallback image. The sprite is built once and cached.
+     *
+     * @since 2023
+     */
+    public DocTypeIconSprite getSprite(Collection<String> docTypes, int size) {
+
+        if (size <= 0 || size > MAX_ICON_SIZE) {
+            throw new IllegalArgumentException("size must be between 1 and " + MAX_ICON_SIZE + ": " + size);
+        }
+
+        List<String> types = docTypes == null || docTypes.isEmpty() ? getCachedDocTypes()
+                : new ArrayList<>(new TreeSet<>(docTypes));
+        try {
+            return sprites.get(size + "@" + String.join(",", types), () -> {
+                Map<String, Blob> icons = new LinkedHashMap<>();
+                for (String docType : types) {
+                    icons.put(docType, getDocTypeThumbnail(docType, size));
+                }
+                return DocTypeIconSprite.build(icons, size);
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new NuxeoException("Cannot build the doc type icons sprite", e.getCause());
+        }
+    }
+
+    /**
+     * Returns the cached icon of the doc type, resolving it if needed, or null if it has no icon.
+     *
+     * @since 2023
+     */
+    protected Blob getDocTypeIcon(String docType) {
+
+        try {
+            return docTypesAndBlobs.get(docType, () -> Optional.ofNullable(loadIcon(docType))).orElse(null);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            log.warn("Cannot resolve the icon of doc type " + docType, e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the icon from the {@link DocTypeIconStore} if it is there and still valid, else resolves it (and
+     * stores it).
+     *
+     * @since 2023
+     */
+    protected Blob loadIcon(String docType) {
+
+        String iconPath = getIconPath(docType);
+        DocTypeIconStore store = DocTypeIconStore.getInstance();
+        if (store != null) {
+            Optional<Blob> stored = store.loadIcon(docType, iconPath);
+            if (stored != null) {
+                iconSignatures.put(docType, getIconSignature(iconPath));
+                return stored.orElse(null);
+            }
+        }
+
+        Blob icon = resolveIcon(docType);
+        if (store != null) {
+            store.saveIcon(docType, iconPath, icon);
+        }
+
+        return icon;
+    }
+
+    /**
+     * Reads the resized icon from the {@link DocTypeIconStore} if it is there and was resized from the same icon,
+     * else resizes it (and stores it).
+     *
+     * @since 2023
+     */
+    protected Blob loadResizedIcon(String docType, Blob icon, int size) throws IOException {
+
+        String iconDigest = getDigest(icon);
+        DocTypeIconStore store = DocTypeIconStore.getInstance();
+        if (store != null) {
+            Blob stored = store.loadResizedIcon(docType, size, iconDigest);
+            if (stored != null) {
+                return stored;
             }
-            if (iconPath == null) {
-                iconPath = NO_PREVIEW_ICON_PATH;
+        }
+
+        Blob resized = resizeIcon(icon, size);
+        if (store != null && resized != null) {
+            store.saveResizedIcon(docType, size, iconDigest, resized);
+        }
+
+        return resized;
+    }
+
+    /**
+     * Resizes the icon so it fits in a size x size square, returns null if the icon cannot be decoded.
+     *
+     * @since 2023
+     */
+    protected Blob resizeIcon(Blob icon, int size) throws IOException {
+
+        BufferedImage image;
+        try (InputStream in = icon.getStream()) {
+            image = ImageIO.read(in);
+        }
+        if (image == null) {
+            return null;
+        }
+
+        BufferedImage resized = ImageScaler.scaleToFit(image, size, size);
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            if (!ImageIO.write(resized, "png", out)) {
+                return null;
             }
+            Blob blob = Blobs.createBlob(out.toByteArray(), "image/png");
+            blob.setFilename(FilenameUtils.getBaseName(icon.getFilename()) + "_" + size + ".png");
+            // Derived from the source and the size, so it is the same on every node
+            blob.setDigest(DigestUtils.md5Hex(getDigest(icon) + ":" + size));
+            return blob;
         }
+    }
+
+    /**
+     * Returns the hit/miss/load-time counters of the doc type icon cache
+     *
+     * @since 2023
+     */
+    public static CacheStats getCacheStats() {
+        return docTypesAndBlobs.stats();
+    }
 
+    /**
+     * Returns the hit/miss/load-time counters of the resized icons cache
+     *
+     * @since 2023
+     */
+    public static CacheStats getResizedCacheStats() {
+        return resizedIcons.stats();
+    }
+
+    /**
+     * Returns the doc types currently cached, sorted, prewarming the cache if it is empty.
+     *
+     * @since 2023
+     */
+    public static List<String> getCachedDocTypes() {
+
+        if (docTypesAndBlobs.size() == 0) {
+            prewarm();
+        }
+
+        return new ArrayList<>(new TreeSet<>(docTypesAndBlobs.asMap().keySet()));
+    }
+
+    /**
+     * Returns the number of doc types currently cached
+     *
+     * @since 2023
+     */
+    public static long getCacheSize() {
+        return docTypesAndBlobs.size();
+    }
+
+    /**
+     * Resolves and caches the icon of every document type known by the TypeManager and the SchemaManager, so the
+     * first requests after a restart do not have to do it. Icons already in the {@link DocTypeIconStore} are read from
+     * there.
+     *
+     * @return the number of doc types loaded (whether an icon was found or not)
+     * @since 2023
+     */
+    public static int prewarm() {
+
+        Set<String> docTypes = new TreeSet<>();
+        docTypes.add(NULL_DOC_TYPE);
+
+        SchemaManager schemaManager = Framework.getService(SchemaManager.class);
+        if (schemaManager != null) {
+            for (DocumentType docType : schemaManager.getDocumentTypes()) {
+                docTypes.add(docType.getName());
+            }
+        }
+        TypeManager typeManager = Framework.getService(TypeManager.class);
+        if (typeManager != null) {
+            for (Type type : typeManager.getTypes()) {
+                docTypes.add(type.getId());
+            }
+        }
+
+        // Write the store index once, not once per doc type
+        DocTypeIconStore store = DocTypeIconStore.getInstance();
+        if (store != null) {
+            store.beginBatch();
+        }
+        try {
+            DocTypeIconThumbnailFactory factory = new DocTypeIconThumbnailFactory();
+            for (String docType : docTypes) {
+                factory.getDocTypeIcon(docType);
+            }
+        } finally {
+            if (store != null) {
+                store.endBatch();
+            }
+        }
+
+        return docTypes.size();
+    }
+
+    /**
+     * Removes the doc types from the caches (icons and resized icons), so they are resolved again next time.
+     *
+     * @since 2023
+     */
+    public static void invalidate(Collection<String> docTypes) {
+
+        DocTypeIconStore store = DocTypeIconStore.getInstance();
+        if (!docTypes.isEmpty()) {
+            sprites.invalidateAll();
+        }
+        if (store != null) {
+            store.beginBatch();
+        }
         try {
-            String path = "nuxeo.war";
-            if (!iconPath.startsWith(File.separator)) {
-                path += File.separator;
+            for (String docType : docTypes) {
+                docTypesAndBlobs.invalidate(docType);
+                resizedIcons.asMap().keySet().removeIf(key -> key.startsWith(docType + "@"));
+                iconSignatures.remove(docType);
+                if (store != null) {
+                    store.remove(docType);
+                }
+            }
+        } finally {
+            if (store != null) {
+                store.endBatch();
+            }
+        }
+    }
+
+    /**
+     * Removes from the caches the doc types whose icon changed since it was cached (other icon declared for the type,
+     * icon file modified, ...), typically after a hot reload.
+     *
+     * @return the doc types removed from the caches
+     * @since 2023
+     */
+    public static List<String> invalidateChanged() {
+
+        List<String> changed = new ArrayList<>();
+        for (String docType : docTypesAndBlobs.asMap().keySet()) {
+            String signature = iconSignatures.get(docType);
+            if (signature != null && !signature.equals(getIconSignature(getIconPath(docType)))) {
+                changed.add(docType);
             }
-            path += iconPath;
-            File iconFile = FileUtils.getResourceFileFromContext(path);
+        }
+        invalidate(changed);
+
+        return changed;
+    }
+
+    protected static String getIconSignature(String iconPath) {
+
+        File iconFile = getIconFile(iconPath);
+        if (iconFile == null || !iconFile.exists()) {
+            return iconPath + "|none";
+        }
+
+        return iconPath + "|" + iconFile.lastModified() + "|" + iconFile.length();
+    }
+
+    protected static File getIconFile(String iconPath) {
+
+        String path = "nuxeo.war";
+        if (!iconPath.startsWith(File.separator)) {
+            path += File.separator;
+        }
+        path += iconPath;
+
+        return FileUtils.getResourceFileFromContext(path);
+    }
+
+    protected static long getCacheMaxSize() {
+        String value = Framework.getProperty(CACHE_MAX_SIZE_PROPERTY);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Invalid value for " + CACHE_MAX_SIZE_PROPERTY + ": " + value + ", using default");
+            }
+        }
+        return DEFAULT_CACHE_MAX_SIZE;
+    }
+
+    /**
+     * Returns the path (relative to nuxeo.war) of the big icon (or the icon) of the doc type.
+     * 
+     * @since 2023
+     */
+    protected static String getIconPath(String docType) {
+
+        String iconPath = null;
+        if (!NULL_DOC_TYPE.equals(docType)) {
+            TypeManager typeManager = Framework.getService(TypeManager.class);
+            Type type = typeManager == null ? null : typeManager.getType(docType);
+            if (type != null) {
+                iconPath = type.getBigIcon();
+                if (iconPath == null) {
+                    iconPath = type.getIcon();
+                }
+            }
+        }
+        if (iconPath == null) {
+            iconPath = NO_PREVIEW_ICON_PATH;
+        }
+
+        return iconPath;
+    }
+
+    /**
+     * Finds the big icon (or the icon) of the doc type and returns it as a blob, or null if not found.
+     * Called only once per doc type, the result is cached.
+     */
+    protected Blob resolveIcon(String docType) {
+
+        String iconPath = getIconPath(docType);
+        iconSignatures.put(docType, getIconSignature(iconPath));
+
+        try {
+            File iconFile = getIconFile(iconPath);
             // iconFile may be null in unit tests, where I could not find a way to access nuxeo.war...
             if (iconFile != null && iconFile.exists()) {
                 MimetypeRegistry mimetypeRegistry = Framework.getService(MimetypeRegistry.class);
@@ -126,68 +581,131 @@ public class DocTypeIconThumbnailFactory implements ThumbnailFactory {
                 if (mimeType == null) {
                     mimeType = mimetypeRegistry.getMimetypeFromFilename(iconPath);
                 }
-                thumbnail = Blobs.createBlob(iconFile, mimeType);
-                docTypesAndBlobs.put(docType, thumbnail);
-                return thumbnail;
+                Blob icon = Blobs.createBlob(iconFile, mimeType);
+                icon.setDigest(getDigest(icon));
+                return icon;
             }
         } catch (IOException e) {
             // Ignore
         }
 
-        return getThumbnailFallback();
+        return null;
     }
 
     protected Blob getThumbnailFallback() {
 
-        // Never computed, or temporary file deleted
-        if (noThumbnailFallbackBlob == null || (noThumbnailFallbackFile != null && !noThumbnailFallbackFile.exists())) {
-            // Thanks to CoPilot ;-)
-            String text = "(No thumbnail)";
-            Font font = new Font("Arial", Font.PLAIN, 12);
-            BufferedImage img = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
-            Graphics2D g2d = img.createGraphics();
-            g2d.setFont(font);
-            FontMetrics fm = g2d.getFontMetrics();
-            int width = fm.stringWidth(text) + 40;
-            int height = fm.getHeight() + 20;
-            g2d.dispose();
-
-            img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-            g2d = img.createGraphics();
-            g2d.setRenderingHint(RenderingHints.KEY_ALPHA_INTERPOLATION,
-                    RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY);
-            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-            g2d.setRenderingHint(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_QUALITY);
-            g2d.setRenderingHint(RenderingHints.KEY_DITHERING, RenderingHints.VALUE_DITHER_ENABLE);
-            g2d.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
-            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-            g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-            g2d.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
-
-            g2d.setColor(Color.WHITE);
-            g2d.fillRect(0, 0, width, height);
-            g2d.setColor(Color.BLACK);
-            g2d.drawRect(0, 0, width - 1, height - 1);
-            g2d.drawString(text, 10, fm.getAscent() + 10);
-            g2d.dispose();
+        byte[] png = FallbackHolder.PNG;
+        if (png == null) {
+            return null;
+        }
 
-            try {
-                noThumbnailFallbackBlob = Blobs.createBlobWithExtension(".png");
-                noThumbnailFallbackFile = noThumbnailFallbackBlob.getFile();
-                boolean ok = ImageIO.write(img, "png", noThumbnailFallbackFile);
-                noThumbnailFallbackBlob.setMimeType("image/png");
-                noThumbnailFallbackBlob.setFilename(NO_THUMBNAIL_FALLBACK_NAME);
-                if (!ok) {
-                    // Ignore
-                }
-            } catch (IOException ex) {
-                // We have to give up
-                ex.printStackTrace();
+        // A new blob each time (callers may change its file name, ...), sharing the same bytes
+        Blob blob = Blobs.createBlob(png, "image/png");
+        blob.setFilename(NO_THUMBNAIL_FALLBACK_NAME);
+        blob.setDigest(FallbackHolder.DIGEST);
+
+        return blob;
+    }
+
+    /**
+     * Returns the digest of the blob, computing it (md5) if the blob does not have one.
+     * <p>
+     * Icon thumbnails always have a digest: the platform download service uses it as ETag, and answers 304 Not
+     * Modified when the client already has the icon.
+     *
+     * @since 2023
+     */
+    protected static String getDigest(Blob blob) throws IOException {
+
+        String digest = blob.getDigest();
+        if (digest == null) {
+            try (InputStream in = blob.getStream()) {
+                digest = DigestUtils.md5Hex(in);
             }
         }
 
-        return noThumbnailFallbackBlob;
+        return digest;
+    }
+
+    /**
+     * Renders the fallback image if not already done. Called at startup, so the first request does not have to
+     * initialize the fonts, graphics, etc.
+     *
+     * @return true if the fallback image could be rendered
+     * @since 2023
+     */
+    public static boolean prerenderThumbnailFallback() {
+        return FallbackHolder.PNG != null;
+    }
+
+    /**
+     * Renders the image once for all, the JVM guarantees the holder is initialized only once even when several
+     * threads ask for it at the same time.
+     */
+    protected static class FallbackHolder {
 
+        protected static final byte[] PNG = loadThumbnailFallback();
+
+        protected static final String DIGEST = PNG == null ? null : DigestUtils.md5Hex(PNG);
+
+    }
+
+    protected static byte[] loadThumbnailFallback() {
+
+        DocTypeIconStore store = DocTypeIconStore.getInstance();
+        byte[] png = store == null ? null : store.loadFallback();
+        if (png == null) {
+            png = renderThumbnailFallback();
+            if (store != null && png != null) {
+                store.saveFallback(png);
+            }
+        }
+
+        return png;
+    }
+
+    protected static byte[] renderThumbnailFallback() {
+
+        // Thanks to CoPilot ;-)
+        String text = "(No thumbnail)";
+        Font font = new Font("Arial", Font.PLAIN, 12);
+        BufferedImage img = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = img.createGraphics();
+        g2d.setFont(font);
+        FontMetrics fm = g2d.getFontMetrics();
+        int width = fm.stringWidth(text) + 40;
+        int height = fm.getHeight() + 20;
+        g2d.dispose();
+
+        img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        g2d = img.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_ALPHA_INTERPOLATION, RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY);
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2d.setRenderingHint(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_QUALITY);
+        g2d.setRenderingHint(RenderingHints.KEY_DITHERING, RenderingHints.VALUE_DITHER_ENABLE);
+        g2d.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g2d.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+
+        g2d.setColor(Color.WHITE);
+        g2d.fillRect(0, 0, width, height);
+        g2d.setColor(Color.BLACK);
+        g2d.drawRect(0, 0, width - 1, height - 1);
+        g2d.drawString(text, 10, fm.getAscent() + 10);
+        g2d.dispose();
+
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            if (!ImageIO.write(img, "png", out)) {
+                log.error("No PNG writer available, cannot render the thumbnail fallback");
+                return null;
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            // We have to give up
+            log.error("Cannot render the thumbnail fallback", e);
+            return null;
+        }
     }
 
 }
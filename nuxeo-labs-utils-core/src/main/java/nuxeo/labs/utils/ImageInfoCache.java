@@ -0,0 +1,242 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils;
+
+import java.io.IOException;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.platform.picture.api.ImageInfo;
+import org.nuxeo.ecm.platform.picture.api.ImagingService;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.kv.KeyValueService;
+import org.nuxeo.runtime.kv.KeyValueStore;
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import io.dropwizard.metrics5.Counter;
+import io.dropwizard.metrics5.MetricName;
+import io.dropwizard.metrics5.MetricRegistry;
+import io.dropwizard.metrics5.SharedMetricRegistries;
+import io.dropwizard.metrics5.Timer;
+
+/**
+ * Caches the {@link ImageInfo} of blobs, keyed by their digest, so probing the same binary again (which runs
+ * ImageMagick's identify) is not needed.
+ * <p>
+ * The local cache is bounded ({@value #DEFAULT_CACHE_MAX_SIZE} entries by default, see
+ * {@link #CACHE_MAX_SIZE_PROPERTY}). When {@link #SHARED_PROPERTY} is true, infos are also stored in the
+ * {@value #KV_STORE_NAME} key/value store, so the other nodes of the cluster find them there.
+ * <p>
+ * Blobs with no digest are always probed.
+ * <p>
+ * Metrics: nuxeo.labs.imageinfo.hits (local cache), nuxeo.labs.imageinfo.shared.hits (key/value store),
+ * nuxeo.labs.imageinfo.misses and nuxeo.labs.imageinfo.probe (timer).
+ *
+ * @since 2023
+ */
+public class ImageInfoCache {
+
+    private static final Logger log = LogManager.getLogger(ImageInfoCache.class);
+
+    public static final String CACHE_MAX_SIZE_PROPERTY = "nuxeo.labs.utils.imageinfo.cache.maxSize";
+
+    public static final long DEFAULT_CACHE_MAX_SIZE = 10000;
+
+    public static final String SHARED_PROPERTY = "nuxeo.labs.utils.imageinfo.cache.shared";
+
+    public static final String SHARED_TTL_PROPERTY = "nuxeo.labs.utils.imageinfo.cache.shared.ttl";
+
+    // Infos of a digest never change, the TTL only limits the size of the store
+    public static final long DEFAULT_SHARED_TTL = 7 * 24 * 3600;
+
+    public static final String KV_STORE_NAME = "nxlabs-imageinfo";
+
+    protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+    protected static Cache<String, ImageInfo> infos = CacheBuilder.newBuilder()
+                                                                  .maximumSize(getLongProperty(CACHE_MAX_SIZE_PROPERTY,
+                                                                          DEFAULT_CACHE_MAX_SIZE))
+                                                                  .recordStats()
+                                                                  .build();
+
+    protected static final MetricRegistry registry = SharedMetricRegistries.getOrCreate(
+            MetricsService.class.getName());
+
+    protected static final Counter hits = registry.counter(MetricName.build("nuxeo", "labs", "imageinfo", "hits"));
+
+    protected static final Counter sharedHits = registry.counter(
+            MetricName.build("nuxeo", "labs", "imageinfo", "shared", "hits"));
+
+    protected static final Counter misses = registry.counter(
+            MetricName.build("nuxeo", "labs", "imageinfo", "misses"));
+
+    protected static final Timer probeTimer = registry.timer(MetricName.build("nuxeo", "labs", "imageinfo", "probe"));
+
+    private ImageInfoCache() {
+        // Static utility
+    }
+
+    /**
+     * Returns the ImageInfo of the blob, from the caches if it was already probed, else from
+     * {@link ImagingService#getImageInfo(Blob)}. Returns null if the blob cannot be probed.
+     * <p>
+     * Each call returns a new ImageInfo, callers can modify it.
+     */
+    public static ImageInfo getImageInfo(Blob blob) {
+        return getImageInfo(blob, b -> Framework.getService(ImagingService.class).getImageInfo(b));
+    }
+
+    /**
+     * Same as {@link #getImageInfo(Blob)}, the blob being probed with probe when it is not cached.
+     */
+    public static ImageInfo getImageInfo(Blob blob, Function<Blob, ImageInfo> probe) {
+
+        if (blob == null) {
+            return null;
+        }
+
+        String digest = blob.getDigest();
+        if (StringUtils.isBlank(digest)) {
+            return probe(blob, probe);
+        }
+
+        ImageInfo info = infos.getIfPresent(digest);
+        if (info != null) {
+            hits.inc();
+            return copy(info);
+        }
+
+        KeyValueStore store = getSharedStore();
+        if (store != null) {
+            info = fromJson(store.getString(digest));
+            if (info != null) {
+                sharedHits.inc();
+                infos.put(digest, info);
+                return copy(info);
+            }
+        }
+
+        misses.inc();
+        info = probe(blob, probe);
+        if (info == null) {
+            return null;
+        }
+        info = copy(info);
+        infos.put(digest, info);
+        if (store != null) {
+            store.put(digest, toJson(info), getLongProperty(SHARED_TTL_PROPERTY, DEFAULT_SHARED_TTL));
+        }
+
+        return copy(info);
+    }
+
+    public static CacheStats getCacheStats() {
+        return infos.stats();
+    }
+
+    public static void clear() {
+        infos.invalidateAll();
+    }
+
+    protected static ImageInfo probe(Blob blob, Function<Blob, ImageInfo> probe) {
+        try (Timer.Context context = probeTimer.time()) {
+            return probe.apply(blob);
+        }
+    }
+
+    protected static KeyValueStore getSharedStore() {
+
+        if (!Framework.isBooleanPropertyTrue(SHARED_PROPERTY)) {
+            return null;
+        }
+        KeyValueService service = Framework.getService(KeyValueService.class);
+
+        return service == null ? null : service.getKeyValueStore(KV_STORE_NAME);
+    }
+
+    protected static ImageInfo copy(ImageInfo info) {
+
+        ImageInfo copy = new ImageInfo();
+        copy.setWidth(info.getWidth());
+        copy.setHeight(info.getHeight());
+        copy.setFormat(info.getFormat());
+        copy.setColorSpace(info.getColorSpace());
+        copy.setDepth(info.getDepth());
+
+        return copy;
+    }
+
+    protected static String toJson(ImageInfo info) {
+
+        ObjectNode json = MAPPER.createObjectNode();
+        json.put("width", info.getWidth());
+        json.put("height", info.getHeight());
+        json.put("format", info.getFormat());
+        json.put("colorSpace", info.getColorSpace());
+        json.put("depth", info.getDepth());
+
+        return json.toString();
+    }
+
+    protected static ImageInfo fromJson(String value) {
+
+        if (StringUtils.isBlank(value)) {
+            return null;
+        }
+
+        try {
+            JsonNode json = MAPPER.readTree(value);
+            ImageInfo info = new ImageInfo();
+            info.setWidth(json.path("width").asInt());
+            info.setHeight(json.path("height").asInt());
+            info.setFormat(json.path("format").asText(null));
+            info.setColorSpace(json.path("colorSpace").asText(null));
+            info.setDepth(json.path("depth").asInt());
+            return info;
+        } catch (IOException e) {
+            log.warn("Invalid ImageInfo in the key/value store: " + value, e);
+            return null;
+        }
+    }
+
+    protected static long getLongProperty(String name, long defaultValue) {
+
+        String value = Framework.getProperty(name);
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Invalid value for " + name + ": " + value);
+            }
+        }
+
+        return defaultValue;
+    }
+
+}
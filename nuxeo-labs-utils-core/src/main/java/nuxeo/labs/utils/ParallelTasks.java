@@ -0,0 +1,151 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Runs the tasks of the operations processing several images (or blobs) at once on a single pool shared by the whole
+ * node, so concurrent calls do not multiply the number of threads (and of ImageMagick processes they fork).
+ * <p>
+ * The pool has {@value #MAX_THREADS_PROPERTY} threads ({@value #DEFAULT_MAX_THREADS} by default), tasks above this
+ * limit wait in its queue. The parallelism passed by a call is only an upper limit of the number of its own tasks
+ * running at the same time.
+ * <p>
+ * Tasks must not call {@link #invokeAll} themselves, they could wait forever for a thread of the pool.
+ *
+ * @since 2023
+ */
+public class ParallelTasks {
+
+    private static final Logger log = LogManager.getLogger(ParallelTasks.class);
+
+    public static final String MAX_THREADS_PROPERTY = "nuxeo.labs.utils.parallel.maxThreads";
+
+    public static final int DEFAULT_MAX_THREADS = 8;
+
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    public static final int MAX_PARALLELISM = 16;
+
+    protected static ExecutorService executor;
+
+    /**
+     * Returns the shared pool, created at first use.
+     */
+    protected static synchronized ExecutorService getExecutor() {
+
+        if (executor == null) {
+            AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(getMaxThreads(), runnable -> {
+                Thread thread = new Thread(runnable, "nxlabs-parallel-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        return executor;
+    }
+
+    /**
+     * Runs the tasks on the shared pool, at most parallelism (null means {@value #DEFAULT_PARALLELISM}, capped to
+     * {@value #MAX_PARALLELISM}) at the same time, and returns their results in the same order. When a task fails,
+     * the ones not started yet are cancelled and its exception is thrown.
+     */
+    public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks, Integer parallelism)
+            throws InterruptedException, ExecutionException {
+
+        if (tasks.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        int limit = Math.max(1, Math.min(Math.min(getParallelism(parallelism), MAX_PARALLELISM), tasks.size()));
+        if (limit == 1) {
+            // Not worth a thread switch
+            List<T> results = new ArrayList<>(tasks.size());
+            for (Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new ExecutionException(e);
+                }
+            }
+            return results;
+        }
+
+        CompletionService<T> completion = new ExecutorCompletionService<>(getExecutor());
+        Map<Future<T>, Integer> positions = new HashMap<>();
+        List<T> results = new ArrayList<>(Collections.nCopies(tasks.size(), null));
+        int next = 0;
+        try {
+            for (; next < limit; next++) {
+                positions.put(completion.submit(tasks.get(next)), next);
+            }
+            for (int done = 0; done < tasks.size(); done++) {
+                Future<T> future = completion.take();
+                results.set(positions.remove(future), future.get());
+                if (next < tasks.size()) {
+                    positions.put(completion.submit(tasks.get(next)), next);
+                    next += 1;
+                }
+            }
+        } finally {
+            positions.keySet().forEach(future -> future.cancel(true));
+        }
+
+        return results;
+    }
+
+    public static int getParallelism(Integer parallelism) {
+        return parallelism == null ? DEFAULT_PARALLELISM : parallelism;
+    }
+
+    protected static int getMaxThreads() {
+
+        String value = Framework.getProperty(MAX_THREADS_PROPERTY);
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                return Math.max(1, Integer.parseInt(value.trim()));
+            } catch (NumberFormatException e) {
+                log.warn("Invalid value for " + MAX_THREADS_PROPERTY + ": " + value);
+            }
+        }
+
+        return DEFAULT_MAX_THREADS;
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils;
+
+import java.io.Serializable;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.ScrollResult;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+import nuxeo.labs.utils.images.HammingIndex;
+import nuxeo.labs.utils.images.PerceptualHash;
+
+/**
+ * In-memory index of the perceptual hashes stored on the documents (see
+ * {@link nuxeo.labs.utils.operations.pictures.PictureComputePerceptualHash}), one per repository, for near-duplicate
+ * lookups.
+ * <p>
+ * The index is loaded from the repository at the first lookup, then updated incrementally: {@link #update} only reads
+ * the documents modified since the most recent modification already indexed (minus an overlap margin). Hashes saved
+ * on this node are added right away, the ones saved on other nodes of the cluster after the next update. Trashed
+ * documents are removed at the next update, deleted ones stay in the index until a full update, lookups must check
+ * the documents still exist.
+ *
+ * @since 2023
+ */
+public class PerceptualHashIndex {
+
+    private static final Logger log = LogManager.getLogger(PerceptualHashIndex.class);
+
+    public static final String FACET = "NxLabsPerceptualHash";
+
+    public static final String HASH_XPATH = "nxlph:dhash";
+
+    public static final String SOURCE_DIGEST_XPATH = "nxlph:sourceDigest";
+
+    public static final String PAGE_SIZE_PROPERTY = "nuxeo.labs.utils.perceptualhash.index.pageSize";
+
+    public static final int DEFAULT_PAGE_SIZE = 5000;
+
+    public static final String OVERLAP_PROPERTY = "nuxeo.labs.utils.perceptualhash.index.overlapSeconds";
+
+    public static final int DEFAULT_OVERLAP_SECONDS = 300;
+
+    protected static final int SCROLL_KEEP_ALIVE_SECONDS = 300;
+
+    protected static final String FULL_QUERY = "SELECT * FROM Document WHERE ecm:mixinType = '" + FACET
+            + "' AND ecm:isVersion = 0 AND ecm:isProxy = 0 AND ecm:isTrashed = 0";
+
+    // No facet nor trash filter, to remove the documents that lost their hash or were trashed
+    protected static final String MODIFIED_QUERY = "SELECT * FROM Document"
+            + " WHERE ecm:isVersion = 0 AND ecm:isProxy = 0";
+
+    protected static final String BATCH_QUERY = "SELECT ecm:uuid, " + HASH_XPATH
+            + ", dc:modified, ecm:isTrashed FROM Document WHERE ecm:uuid IN (";
+
+    protected static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern(
+            "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+    protected static final Map<String, PerceptualHashIndex> indexes = new ConcurrentHashMap<>();
+
+    protected final String repositoryName;
+
+    protected volatile HammingIndex index = new HammingIndex();
+
+    protected volatile boolean loaded;
+
+    // Most recent dc:modified already indexed
+    protected Calendar lastModified;
+
+    protected PerceptualHashIndex(String repositoryName) {
+        this.repositoryName = repositoryName;
+    }
+
+    public static PerceptualHashIndex get(String repositoryName) {
+        return indexes.computeIfAbsent(repositoryName, PerceptualHashIndex::new);
+    }
+
+    /**
+     * Adds (or replaces) the hash of a document
+     */
+    public void put(String docId, long hash) {
+        index.put(docId, hash);
+    }
+
+    public void remove(String docId) {
+        index.remove(docId);
+    }
+
+    /**
+     * Returns the documents whose hash is at maxDistance or less from hash, closest first (maxResults <= 0 means no
+     * limit). Loads the index first if needed.
+     */
+    public List<HammingIndex.Match> search(long hash, int maxDistance, int maxResults) {
+
+        if (!loaded) {
+            update(false);
+        }
+
+        return index.search(hash, maxDistance, maxResults);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Reads the hashes of the documents modified since the last update (all of them if full is true, or if the index
+     * was never loaded), returns the number of hashes read. A full update builds a new index, the current one is used
+     * for lookups until it is done.
+     * <p>
+     * An incremental update reads the documents modified since the most recent dc:modified already indexed, minus
+     * {@value #OVERLAP_PROPERTY} seconds, so documents committed late with an older dc:modified are not missed. It
+     * reads all of them, not only the ones with the facet: documents trashed or without a hash anymore are removed.
+     * <p>
+     * Documents are scrolled by batches of {@value #PAGE_SIZE_PROPERTY}, each batch read in its own transaction (so a
+     * full update of millions of documents does not run in a single transaction). Only committed changes are read.
+     */
+    public synchronized int update(boolean full) {
+
+        HammingIndex target = full || !loaded ? new HammingIndex() : index;
+        Calendar since = full || !loaded ? null : lastModified;
+
+        String query;
+        if (since == null) {
+            query = FULL_QUERY;
+        } else {
+            Calendar from = (Calendar) since.clone();
+            from.add(Calendar.SECOND, -getOverlapSeconds());
+            query = MODIFIED_QUERY + " AND dc:modified >= TIMESTAMP '" + TIMESTAMP_FORMAT.format(from.toInstant())
+                    + "'";
+        }
+
+        int batchSize = getPageSize();
+        int[] count = { 0 };
+        Calendar[] mostRecent = { since };
+        TransactionHelper.runWithoutTransaction(() -> {
+            String scrollId = null;
+            boolean hasResults;
+            do {
+                String currentScrollId = scrollId;
+                ScrollResult<String> scroll = TransactionHelper.runInTransaction(
+                        () -> CoreInstance.doPrivileged(repositoryName, (CoreSession session) -> {
+                            ScrollResult<String> result = currentScrollId == null
+                                    ? session.scroll(query, batchSize, SCROLL_KEEP_ALIVE_SECONDS)
+                                    : session.scroll(currentScrollId);
+                            if (result.hasResults()) {
+                                count[0] += indexBatch(session, result.getResults(), target, mostRecent);
+                            }
+                            return result;
+                        }));
+                scrollId = scroll.getScrollId();
+                hasResults = scroll.hasResults();
+            } while (hasResults);
+        });
+
+        index = target;
+        lastModified = mostRecent[0];
+        loaded = true;
+        log.debug("Perceptual hash index of " + repositoryName + ": " + count[0] + " hashes read, " + target.size()
+                + " indexed");
+
+        return count[0];
+    }
+
+    /**
+     * Reads the hashes of a batch of documents, removes the ones trashed or without hash. Returns the number of hashes
+     * read.
+     */
+    protected int indexBatch(CoreSession session, List<String> ids, HammingIndex target, Calendar[] mostRecent) {
+
+        String query = BATCH_QUERY + ids.stream().map(id -> "'" + id + "'").collect(Collectors.joining(", ")) + ")";
+        int count = 0;
+        for (Map<String, Serializable> row : session.queryProjection(query, 0, 0)) {
+            String id = (String) row.get("ecm:uuid");
+            String hex = (String) row.get(HASH_XPATH);
+            Calendar modified = (Calendar) row.get("dc:modified");
+            if (modified != null && (mostRecent[0] == null || modified.after(mostRecent[0]))) {
+                mostRecent[0] = modified;
+            }
+            if (Boolean.TRUE.equals(row.get("ecm:isTrashed")) || StringUtils.isBlank(hex)) {
+                target.remove(id);
+                continue;
+            }
+            try {
+                target.put(id, PerceptualHash.fromHex(hex));
+                count += 1;
+            } catch (IllegalArgumentException e) {
+                log.warn("Invalid perceptual hash for document " + id + ": " + hex);
+            }
+        }
+
+        return count;
+    }
+
+    protected static int getOverlapSeconds() {
+
+        String value = Framework.getProperty(OVERLAP_PROPERTY);
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                return Math.max(0, Integer.parseInt(value.trim()));
+            } catch (NumberFormatException e) {
+                log.warn("Invalid value for " + OVERLAP_PROPERTY + ": " + value);
+            }
+        }
+
+        return DEFAULT_OVERLAP_SECONDS;
+    }
+
+    protected static int getPageSize() {
+
+        String value = Framework.getProperty(PAGE_SIZE_PROPERTY);
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                return Math.max(1, Integer.parseInt(value.trim()));
+            } catch (NumberFormatException e) {
+                log.warn("Invalid value for " + PAGE_SIZE_PROPERTY + ": " + value);
+            }
+        }
+
+        return DEFAULT_PAGE_SIZE;
+    }
+
+}
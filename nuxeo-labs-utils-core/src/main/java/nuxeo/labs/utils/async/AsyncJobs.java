@@ -0,0 +1,187 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.async;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.automation.core.util.BlobList;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.ecm.core.transientstore.api.TransientStore;
+import org.nuxeo.ecm.core.transientstore.api.TransientStoreService;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Runs operations asynchronously, in the {@value #QUEUE_ID} WorkManager queue (see {@link AsyncOperationWork}).
+ * <p>
+ * A job is identified by a random id. Its status, input and result blobs are stored in the {@value #STORE_NAME}
+ * transient store, shared by the nodes of the cluster, so the status and the result can be read from any node, until
+ * the store expires them.
+ * <p>
+ * Only the operations listed in {@value #ALLOWED_OPERATIONS_PROPERTY} can be run (default:
+ * {@value #DEFAULT_ALLOWED_OPERATIONS}).
+ *
+ * @since 2023
+ */
+public class AsyncJobs {
+
+    public static final String QUEUE_ID = "nxlabsAsync";
+
+    public static final String STORE_NAME = "nxlabsAsync";
+
+    public static final String ALLOWED_OPERATIONS_PROPERTY = "nuxeo.labs.utils.async.operations";
+
+    public static final String DEFAULT_ALLOWED_OPERATIONS = "Labs.PictureCrop,Labs.PictureRotate,Labs.PictureTransform,"
+            + "Labs.ConcatenateImages,Labs.VideoAddToTranscodedVideos";
+
+    public static final String STATUS_SCHEDULED = "scheduled";
+
+    public static final String STATUS_RUNNING = "running";
+
+    public static final String STATUS_COMPLETED = "completed";
+
+    public static final String STATUS_FAILED = "failed";
+
+    public static final String STATUS_UNKNOWN = "unknown";
+
+    // Transient store parameters of a job
+    public static final String PARAM_STATUS = "status";
+
+    public static final String PARAM_OPERATION_ID = "operationId";
+
+    public static final String PARAM_USER = "user";
+
+    public static final String PARAM_ERROR = "error";
+
+    public static final String PARAM_DOCUMENT_ID = "documentId";
+
+    public static final String PARAM_CREATED = "created";
+
+    public static final String PARAM_STARTED = "started";
+
+    public static final String PARAM_COMPLETED = "completed";
+
+    // The input blobs are stored under the job id + this suffix, the result blobs under the job id
+    protected static final String INPUT_SUFFIX = "-input";
+
+    private AsyncJobs() {
+        // Static utility
+    }
+
+    public static TransientStore getStore() {
+        return Framework.getService(TransientStoreService.class).getStore(STORE_NAME);
+    }
+
+    public static Set<String> getAllowedOperations() {
+
+        String value = Framework.getProperty(ALLOWED_OPERATIONS_PROPERTY, DEFAULT_ALLOWED_OPERATIONS);
+
+        return Arrays.stream(value.split(","))
+                     .map(String::trim)
+                     .filter(StringUtils::isNotBlank)
+                     .collect(Collectors.toSet());
+    }
+
+    /**
+     * Schedules the operation, returns the id of the job. input can be null, a Blob, a BlobList or a DocumentModel.
+     *
+     * @throws IllegalArgumentException if the operation is not allowed or the input type is not supported
+     */
+    public static String submit(CoreSession session, String operationId, Map<String, String> params, Object input) {
+
+        if (!getAllowedOperations().contains(operationId)) {
+            throw new IllegalArgumentException("Operation not allowed to run asynchronously: " + operationId
+                    + " (see " + ALLOWED_OPERATIONS_PROPERTY + ")");
+        }
+
+        String jobId = UUID.randomUUID().toString();
+        TransientStore store = getStore();
+
+        AsyncOperationWork.InputType inputType;
+        String docId = null;
+        if (input == null) {
+            inputType = AsyncOperationWork.InputType.VOID;
+        } else if (input instanceof Blob) {
+            inputType = AsyncOperationWork.InputType.BLOB;
+            store.putBlobs(getInputKey(jobId), List.of((Blob) input));
+        } else if (input instanceof BlobList) {
+            inputType = AsyncOperationWork.InputType.BLOBS;
+            store.putBlobs(getInputKey(jobId), (BlobList) input);
+        } else if (input instanceof DocumentModel) {
+            inputType = AsyncOperationWork.InputType.DOCUMENT;
+            docId = ((DocumentModel) input).getId();
+        } else {
+            throw new IllegalArgumentException("Unsupported input: " + input.getClass().getName());
+        }
+
+        Map<String, Serializable> jobParams = new HashMap<>();
+        jobParams.put(PARAM_STATUS, STATUS_SCHEDULED);
+        jobParams.put(PARAM_OPERATION_ID, operationId);
+        jobParams.put(PARAM_USER, session.getPrincipal().getName());
+        jobParams.put(PARAM_CREATED, System.currentTimeMillis());
+        store.putParameters(jobId, jobParams);
+
+        AsyncOperationWork work = new AsyncOperationWork(jobId, operationId,
+                params == null ? new HashMap<>() : new HashMap<>(params), inputType, session.getRepositoryName(),
+                docId);
+        work.setOriginatingUsername(session.getPrincipal().getName());
+        Framework.getService(WorkManager.class).schedule(work);
+
+        return jobId;
+    }
+
+    /**
+     * Returns the status of the job, {@value #STATUS_UNKNOWN} if it does not exist (or expired), or if it was not
+     * submitted by the principal (unless the principal is an administrator)
+     */
+    public static String getStatus(String jobId, NuxeoPrincipal principal) {
+
+        if (!canAccess(jobId, principal)) {
+            return STATUS_UNKNOWN;
+        }
+
+        return (String) getStore().getParameter(jobId, PARAM_STATUS);
+    }
+
+    public static boolean canAccess(String jobId, NuxeoPrincipal principal) {
+
+        TransientStore store = getStore();
+        if (StringUtils.isBlank(jobId) || !store.exists(jobId)) {
+            return false;
+        }
+
+        return principal.isAdministrator() || principal.getName().equals(store.getParameter(jobId, PARAM_USER));
+    }
+
+    protected static String getInputKey(String jobId) {
+        return jobId + INPUT_SUFFIX;
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.async;
+
+import static nuxeo.labs.utils.async.AsyncJobs.PARAM_COMPLETED;
+import static nuxeo.labs.utils.async.AsyncJobs.PARAM_DOCUMENT_ID;
+import static nuxeo.labs.utils.async.AsyncJobs.PARAM_ERROR;
+import static nuxeo.labs.utils.async.AsyncJobs.PARAM_STARTED;
+import static nuxeo.labs.utils.async.AsyncJobs.PARAM_STATUS;
+import static nuxeo.labs.utils.async.AsyncJobs.STATUS_COMPLETED;
+import static nuxeo.labs.utils.async.AsyncJobs.STATUS_FAILED;
+import static nuxeo.labs.utils.async.AsyncJobs.STATUS_RUNNING;
+
+import java.util.HashMap;
+import java.util.List;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.automation.AutomationService;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.OperationException;
+import org.nuxeo.ecm.automation.core.util.BlobList;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.transientstore.api.TransientStore;
+import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Runs an operation as the user who submitted it (see {@link AsyncJobs#submit}) and stores its result in the transient
+ * store: the blob(s) it returns, or the id of the document it returns.
+ * <p>
+ * A failure of the operation is stored in the job status, the work itself does not fail (it would be retried). The
+ * job is {@value AsyncJobs#STATUS_COMPLETED} only once the transaction of the work is committed.
+ *
+ * @since 2023
+ */
+public class AsyncOperationWork extends AbstractWork {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger log = LogManager.getLogger(AsyncOperationWork.class);
+
+    public enum InputType {
+        VOID, BLOB, BLOBS, DOCUMENT
+    }
+
+    protected final String operationId;
+
+    protected final HashMap<String, String> params;
+
+    protected final InputType inputType;
+
+    public AsyncOperationWork(String jobId, String operationId, HashMap<String, String> params, InputType inputType,
+            String repositoryName, String docId) {
+        super(jobId);
+        this.operationId = operationId;
+        this.params = params;
+        this.inputType = inputType;
+        if (docId == null) {
+            this.repositoryName = repositoryName;
+        } else {
+            setDocument(repositoryName, docId);
+        }
+    }
+
+    @Override
+    public String getCategory() {
+        return AsyncJobs.QUEUE_ID;
+    }
+
+    @Override
+    public String getTitle() {
+        return "Async " + operationId;
+    }
+
+    @Override
+    public void work() {
+
+        String jobId = getId();
+        TransientStore store = AsyncJobs.getStore();
+        store.putParameter(jobId, PARAM_STATUS, STATUS_RUNNING);
+        store.putParameter(jobId, PARAM_STARTED, System.currentTimeMillis());
+        setStatus("Running " + operationId);
+
+        try {
+            openUserSession();
+            OperationContext ctx = new OperationContext(session);
+            ctx.setInput(getInput(store));
+            Object result = Framework.getService(AutomationService.class).run(ctx, operationId, new HashMap<>(params));
+            storeResult(store, jobId, result);
+            completeWhenCommitted(store, jobId);
+        } catch (OperationException | RuntimeException e) {
+            log.warn("Async job " + jobId + " (" + operationId + ") failed", e);
+            complete(store, jobId, STATUS_FAILED, ExceptionUtils.getRootCauseMessage(e));
+        } finally {
+            store.remove(AsyncJobs.getInputKey(jobId));
+            setStatus(null);
+        }
+    }
+
+    /**
+     * The job is completed only once the transaction of the work commits, so a client never reads the result of an
+     * operation whose changes were rolled back (the job then fails).
+     */
+    protected void completeWhenCommitted(TransientStore store, String jobId) {
+
+        boolean registered = TransactionHelper.registerSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+                // Nothing
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    complete(store, jobId, STATUS_COMPLETED, null);
+                } else {
+                    log.warn("Async job " + jobId + " (" + operationId + ") rolled back");
+                    complete(store, jobId, STATUS_FAILED, "The transaction of the operation was rolled back");
+                }
+            }
+        });
+        if (!registered) {
+            complete(store, jobId, STATUS_COMPLETED, null);
+        }
+    }
+
+    protected void complete(TransientStore store, String jobId, String status, String error) {
+
+        if (error != null) {
+            store.putParameter(jobId, PARAM_ERROR, error);
+        }
+        store.putParameter(jobId, PARAM_STATUS, status);
+        store.putParameter(jobId, PARAM_COMPLETED, System.currentTimeMillis());
+        store.setCompleted(jobId, true);
+    }
+
+    protected Object getInput(TransientStore store) {
+
+        switch (inputType) {
+        case BLOB:
+            List<Blob> blobs = store.getBlobs(AsyncJobs.getInputKey(getId()));
+            return blobs == null || blobs.isEmpty() ? null : blobs.get(0);
+        case BLOBS:
+            return new BlobList(store.getBlobs(AsyncJobs.getInputKey(getId())));
+        case DOCUMENT:
+            return session.getDocument(new IdRef(docId));
+        default:
+            return null;
+        }
+    }
+
+    protected void storeResult(TransientStore store, String jobId, Object result) {
+
+        if (result instanceof Blob) {
+            store.putBlobs(jobId, List.of((Blob) result));
+        } else if (result instanceof BlobList) {
+            store.putBlobs(jobId, (BlobList) result);
+        } else if (result instanceof DocumentModel) {
+            store.putParameter(jobId, PARAM_DOCUMENT_ID, ((DocumentModel) result).getId());
+        }
+    }
+
+}
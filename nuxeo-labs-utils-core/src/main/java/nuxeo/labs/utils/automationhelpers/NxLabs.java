@@ -190,4 +190,23 @@ public class NxLabs implements ContextHelper {
         return Base64.getEncoder().encodeToString(str.getBytes());
     }
 
+    /**
+     * Return the blob as a base64 data URI ("data:image/png;base64,..."), to be used for example in the src of an
+     * img tag
+     * 
+     * @param blob the blob to encode, its mime type is used in the URI
+     * @return the data URI, or "" if blob is null
+     * @throws IOException if the blob cannot be read
+     *
+     * @since 2023
+     */
+    public String dataUri(Blob blob) throws IOException {
+
+        if (blob == null) {
+            return "";
+        }
+
+        return "data:" + blob.getMimeType() + ";base64," + base64(blob);
+    }
+
 }
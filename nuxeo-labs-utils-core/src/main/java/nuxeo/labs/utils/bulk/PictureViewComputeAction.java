@@ -0,0 +1,398 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.bulk;
+
+import static org.nuxeo.ecm.core.bulk.BulkServiceImpl.STATUS_STREAM;
+import static org.nuxeo.lib.stream.computation.AbstractComputation.INPUT_1;
+import static org.nuxeo.lib.stream.computation.AbstractComputation.OUTPUT_1;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.blobholder.SimpleBlobHolder;
+import org.nuxeo.ecm.core.bulk.action.computation.AbstractBulkComputation;
+import org.nuxeo.ecm.core.convert.api.ConversionService;
+import org.nuxeo.ecm.platform.picture.api.ImageInfo;
+import org.nuxeo.ecm.platform.picture.api.PictureView;
+import org.nuxeo.ecm.platform.picture.api.adapters.MultiviewPicture;
+import org.nuxeo.lib.stream.computation.Topology;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.kv.KeyValueService;
+import org.nuxeo.runtime.kv.KeyValueStore;
+import org.nuxeo.runtime.stream.StreamProcessorTopology;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+import nuxeo.labs.utils.ImageInfoCache;
+import nuxeo.labs.utils.images.PictureTransformation;
+import nuxeo.labs.utils.operations.pictures.PictureAddToViews;
+import nuxeo.labs.utils.operations.pictures.PictureTransformConverter;
+
+/**
+ * Bulk action (re)computing a custom view of picture:views, for all the documents of a query.
+ * <p>
+ * The view is the result of either the {@value #PARAM_STEPS} parameter (see {@link PictureTransformation}, run in a
+ * single ImageMagick call) or a converter ({@value #PARAM_CONVERTER}, with its {@value #PARAM_CONVERTER_PARAMETERS}),
+ * applied to the blob at {@value #PARAM_XPATH} (file:content by default).
+ * <p>
+ * Once a view is saved, the digest of its source, a fingerprint of the conversion and the digest of the view are
+ * stored in the {@value #KV_STORE_NAME} key/value store, for {@value #MARKER_TTL_PROPERTY} seconds (30 days by
+ * default). Documents whose view is still the one computed from the same source with the same conversion are skipped
+ * (unless {@value #PARAM_FORCE} is true), so the action can be re-run on the same query to process only the new or
+ * modified pictures (or the ones whose view was modified by something else).
+ * <p>
+ * Documents are processed in batches by the workers of each node (see bulk-contrib.xml), and at most
+ * {@value #MAX_CONVERSIONS_PROPERTY} conversions run at the same time on a node, whatever the number of workers. The
+ * conversions of a batch run outside of its transaction: the documents to process are selected in the transaction of
+ * the batch, which is committed, then the views are computed, then each document is saved in a new transaction (a
+ * document whose source was modified in the meantime is skipped). Versions and proxies are skipped.
+ *
+ * @since 2023
+ */
+public class PictureViewComputeAction implements StreamProcessorTopology {
+
+    private static final Logger log = LogManager.getLogger(PictureViewComputeAction.class);
+
+    public static final String ACTION_NAME = "nxlabsComputePictureView";
+
+    public static final String ACTION_FULL_NAME = "bulk/" + ACTION_NAME;
+
+    public static final String PARAM_VIEW_NAME = "viewName";
+
+    public static final String PARAM_DESCRIPTION = "description";
+
+    public static final String PARAM_STEPS = "steps";
+
+    public static final String PARAM_CONVERTER = "converter";
+
+    public static final String PARAM_CONVERTER_PARAMETERS = "converterParameters";
+
+    public static final String PARAM_XPATH = "xpath";
+
+    public static final String PARAM_FORCE = "force";
+
+    public static final String DEFAULT_XPATH = "file:content";
+
+    public static final String KV_STORE_NAME = "nxlabs-pictureviews";
+
+    public static final String MAX_CONVERSIONS_PROPERTY = "nuxeo.labs.utils.bulk.computePictureView.maxConversions";
+
+    public static final int DEFAULT_MAX_CONVERSIONS = 2;
+
+    public static final String MARKER_TTL_PROPERTY = "nuxeo.labs.utils.bulk.computePictureView.markerTTL";
+
+    public static final long DEFAULT_MARKER_TTL = 30L * 24 * 3600;
+
+    @Override
+    public Topology getTopology(Map<String, String> options) {
+        return Topology.builder()
+                       .addComputation(PictureViewComputation::new,
+                               Arrays.asList(INPUT_1 + ":" + ACTION_FULL_NAME, OUTPUT_1 + ":" + STATUS_STREAM))
+                       .build();
+    }
+
+    /**
+     * Identifies the conversion: same steps (or same converter with the same parameters), same fingerprint.
+     */
+    public static String getFingerprint(Map<String, Serializable> properties) {
+
+        String steps = (String) properties.get(PARAM_STEPS);
+        if (StringUtils.isNotBlank(steps)) {
+            return DigestUtils.md5Hex(PARAM_STEPS + ":" + PictureTransformation.parse(steps));
+        }
+
+        @SuppressWarnings("unchecked")
+        Map<String, Serializable> parameters = (Map<String, Serializable>) properties.get(PARAM_CONVERTER_PARAMETERS);
+        Map<String, Serializable> sorted = parameters == null ? new TreeMap<>() : new TreeMap<>(parameters);
+
+        return DigestUtils.md5Hex(PARAM_CONVERTER + ":" + properties.get(PARAM_CONVERTER) + ":" + sorted);
+    }
+
+    public static class PictureViewComputation extends AbstractBulkComputation {
+
+        // Shared by all the workers of the node
+        protected static final Semaphore conversions = new Semaphore(getMaxConversions(), true);
+
+        public PictureViewComputation() {
+            super(ACTION_FULL_NAME);
+        }
+
+        @Override
+        protected void compute(CoreSession session, List<String> ids, Map<String, Serializable> properties) {
+
+            String viewName = (String) properties.get(PARAM_VIEW_NAME);
+            String description = (String) properties.get(PARAM_DESCRIPTION);
+            String xpath = StringUtils.defaultIfBlank((String) properties.get(PARAM_XPATH), DEFAULT_XPATH);
+            boolean force = Boolean.parseBoolean(String.valueOf(properties.get(PARAM_FORCE)));
+            String fingerprint = getFingerprint(properties);
+            KeyValueStore store = Framework.getService(KeyValueService.class).getKeyValueStore(KV_STORE_NAME);
+
+            // 1. The documents whose view must be (re)computed
+            List<PendingView> pending = new ArrayList<>();
+            int skipped = 0;
+            for (DocumentModel doc : loadDocuments(session, ids)) {
+                if (!doc.hasSchema("picture") || PictureViewsPurgeAction.isReadOnly(doc)) {
+                    continue;
+                }
+                Blob source = (Blob) doc.getPropertyValue(xpath);
+                if (source == null) {
+                    continue;
+                }
+
+                String key = getKey(doc, viewName);
+                String value = StringUtils.isBlank(source.getDigest()) ? null : source.getDigest() + "/" + fingerprint;
+                String viewDigest = getViewDigest(doc.getAdapter(MultiviewPicture.class), viewName);
+                if (!force && value != null && viewDigest != null
+                        && (value + "/" + viewDigest).equals(store.getString(key))) {
+                    skipped += 1;
+                    continue;
+                }
+                pending.add(new PendingView(doc.getId(), key, source, value));
+            }
+
+            // 2. The conversions (and the wait for one of the maxConversions slots) can be long, they run outside
+            // of the transaction of the batch
+            runWithoutTransaction(() -> {
+                for (PendingView p : pending) {
+                    try {
+                        p.view = convert(p.source, viewName, properties);
+                        p.info = ImageInfoCache.getImageInfo(p.view);
+                        if (p.info == null) {
+                            log.warn("Cannot get the info of the view " + viewName + " of " + p.docId);
+                        }
+                    } catch (NuxeoException e) {
+                        // Do not fail the whole batch for one bad image
+                        log.warn("Cannot compute the view " + viewName + " of " + p.docId, e);
+                    }
+                }
+            });
+
+            // 3. The views are saved in a new transaction, each document separately
+            Map<String, String> markers = new HashMap<>();
+            int saved = 0;
+            for (PendingView p : pending) {
+                if (p.view == null || p.info == null) {
+                    continue;
+                }
+                try {
+                    DocumentModel doc = session.getDocument(new IdRef(p.docId));
+                    Blob source = (Blob) doc.getPropertyValue(xpath);
+                    if (source == null || !Objects.equals(source.getDigest(), p.source.getDigest())) {
+                        // Modified during the conversion, the next run will compute it again
+                        log.debug("Source of " + p.docId + " modified during the conversion, view not saved");
+                        continue;
+                    }
+                    MultiviewPicture mvp = doc.getAdapter(MultiviewPicture.class);
+                    mvp.addView(PictureAddToViews.createView(p.view, viewName, description, null, p.info));
+                    doc = session.saveDocument(doc);
+                    saved += 1;
+                    String viewDigest = getViewDigest(doc.getAdapter(MultiviewPicture.class), viewName);
+                    if (p.value != null && viewDigest != null) {
+                        markers.put(p.key, p.value + "/" + viewDigest);
+                    }
+                } catch (NuxeoException e) {
+                    log.warn("Cannot save the view " + viewName + " of " + p.docId, e);
+                }
+            }
+            storeWhenCommitted(store, markers);
+
+            log.debug("View " + viewName + ": " + saved + " computed, " + skipped + " up to date, out of "
+                    + ids.size() + " documents");
+        }
+
+        /**
+         * Commits the current transaction (if any), runs the runnable, and starts a new transaction, committed by the
+         * bulk framework once the batch is computed.
+         */
+        protected static void runWithoutTransaction(Runnable runnable) {
+
+            if (!TransactionHelper.isTransactionActive()) {
+                runnable.run();
+                return;
+            }
+            TransactionHelper.commitOrRollbackTransaction();
+            try {
+                runnable.run();
+            } finally {
+                TransactionHelper.startTransaction();
+            }
+        }
+
+        protected static String getKey(DocumentModel doc, String viewName) {
+            return doc.getId() + "/" + viewName;
+        }
+
+        /**
+         * Returns the digest of the blob of the view, or null if there is no such view (or no digest).
+         */
+        protected static String getViewDigest(MultiviewPicture mvp, String viewName) {
+
+            PictureView view = mvp == null ? null : mvp.getView(viewName);
+            Blob blob = view == null ? null : view.getBlob();
+
+            return blob == null ? null : StringUtils.defaultIfBlank(blob.getDigest(), null);
+        }
+
+        protected Blob convert(Blob source, String viewName, Map<String, Serializable> properties) {
+
+            String baseName = StringUtils.defaultIfBlank(FilenameUtils.getBaseName(source.getFilename()), "picture");
+            String steps = (String) properties.get(PARAM_STEPS);
+            String converter;
+            Map<String, Serializable> params = new HashMap<>();
+            if (StringUtils.isNotBlank(steps)) {
+                PictureTransformation transformation = PictureTransformation.parse(steps);
+                converter = PictureTransformConverter.converterName;
+                params.put("steps", steps);
+                params.put("targetFileName", baseName + "-" + viewName + "."
+                        + StringUtils.defaultIfBlank(transformation.getFormat(), "jpg"));
+            } else {
+                converter = (String) properties.get(PARAM_CONVERTER);
+                @SuppressWarnings("unchecked")
+                Map<String, Serializable> parameters = (Map<String, Serializable>) properties.get(
+                        PARAM_CONVERTER_PARAMETERS);
+                if (parameters != null) {
+                    params.putAll(parameters);
+                }
+                params.putIfAbsent("targetFileName", baseName + "-" + viewName + ".jpg");
+            }
+
+            try {
+                conversions.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NuxeoException(e);
+            }
+            try {
+                Blob result = Framework.getService(ConversionService.class)
+                                       .convert(converter, new SimpleBlobHolder(source), params)
+                                       .getBlob();
+                if (result == null) {
+                    throw new NuxeoException("The " + converter + " converter returned no blob");
+                }
+                if (StringUtils.isBlank(result.getFilename())) {
+                    result.setFilename((String) params.get("targetFileName"));
+                }
+                return result;
+            } finally {
+                conversions.release();
+            }
+        }
+
+        /**
+         * The digests are stored only if the transaction saving the views commits, so a rolled back batch is not
+         * considered as up to date the next time. They expire after {@link #getMarkerTTL()} seconds.
+         */
+        protected void storeWhenCommitted(KeyValueStore store, Map<String, String> computed) {
+
+            if (computed.isEmpty()) {
+                return;
+            }
+            long ttl = getMarkerTTL();
+            boolean registered = TransactionHelper.registerSynchronization(new Synchronization() {
+                @Override
+                public void beforeCompletion() {
+                    // Nothing
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    if (status == Status.STATUS_COMMITTED) {
+                        computed.forEach((key, value) -> store.put(key, value, ttl));
+                    }
+                }
+            });
+            if (!registered) {
+                computed.forEach((key, value) -> store.put(key, value, ttl));
+            }
+        }
+
+        /**
+         * A view to compute for a document: its source, and the view once converted.
+         */
+        protected static class PendingView {
+
+            protected final String docId;
+
+            protected final String key;
+
+            protected final Blob source;
+
+            // Source digest and fingerprint, null if the source has no digest
+            protected final String value;
+
+            protected Blob view;
+
+            protected ImageInfo info;
+
+            protected PendingView(String docId, String key, Blob source, String value) {
+                this.docId = docId;
+                this.key = key;
+                this.source = source;
+                this.value = value;
+            }
+        }
+
+        protected static int getMaxConversions() {
+
+            String value = Framework.getProperty(MAX_CONVERSIONS_PROPERTY);
+            if (StringUtils.isNotBlank(value)) {
+                try {
+                    return Math.max(1, Integer.parseInt(value.trim()));
+                } catch (NumberFormatException e) {
+                    log.warn("Invalid value for " + MAX_CONVERSIONS_PROPERTY + ": " + value);
+                }
+            }
+
+            return DEFAULT_MAX_CONVERSIONS;
+        }
+
+        protected static long getMarkerTTL() {
+
+            String value = Framework.getProperty(MARKER_TTL_PROPERTY);
+            if (StringUtils.isNotBlank(value)) {
+                try {
+                    return Math.max(1, Long.parseLong(value.trim()));
+                } catch (NumberFormatException e) {
+                    log.warn("Invalid value for " + MARKER_TTL_PROPERTY + ": " + value);
+                }
+            }
+
+            return DEFAULT_MARKER_TTL;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.bulk;
+
+import static nuxeo.labs.utils.bulk.PictureViewComputeAction.PARAM_CONVERTER;
+import static nuxeo.labs.utils.bulk.PictureViewComputeAction.PARAM_CONVERTER_PARAMETERS;
+import static nuxeo.labs.utils.bulk.PictureViewComputeAction.PARAM_DESCRIPTION;
+import static nuxeo.labs.utils.bulk.PictureViewComputeAction.PARAM_FORCE;
+import static nuxeo.labs.utils.bulk.PictureViewComputeAction.PARAM_STEPS;
+import static nuxeo.labs.utils.bulk.PictureViewComputeAction.PARAM_VIEW_NAME;
+import static nuxeo.labs.utils.bulk.PictureViewComputeAction.PARAM_XPATH;
+
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.core.bulk.AbstractBulkActionValidation;
+import org.nuxeo.ecm.core.bulk.message.BulkCommand;
+import org.nuxeo.ecm.core.convert.api.ConversionService;
+import org.nuxeo.runtime.api.Framework;
+
+import nuxeo.labs.utils.images.PictureTransformation;
+
+/**
+ * Checks the {@link PictureViewComputeAction} command has a view name and either valid steps or an existing converter.
+ *
+ * @since 2023
+ */
+public class PictureViewComputeValidation extends AbstractBulkActionValidation {
+
+    @Override
+    protected List<String> getParametersToValidate() {
+        return List.of(PARAM_VIEW_NAME, PARAM_DESCRIPTION, PARAM_STEPS, PARAM_CONVERTER, PARAM_CONVERTER_PARAMETERS,
+                PARAM_XPATH, PARAM_FORCE);
+    }
+
+    @Override
+    protected void validateCommand(BulkCommand command) throws IllegalArgumentException {
+
+        validateString(PARAM_VIEW_NAME, command);
+        if (StringUtils.isBlank(command.getParam(PARAM_VIEW_NAME))) {
+            throw new IllegalArgumentException(PARAM_VIEW_NAME + " is required");
+        }
+
+        String steps = command.getParam(PARAM_STEPS);
+        String converter = command.getParam(PARAM_CONVERTER);
+        if (StringUtils.isNotBlank(steps)) {
+            // Throws IllegalArgumentException if invalid
+            PictureTransformation.parse(steps);
+        } else if (StringUtils.isBlank(converter)) {
+            throw new IllegalArgumentException("Either " + PARAM_STEPS + " or " + PARAM_CONVERTER + " is required");
+        } else if (!Framework.getService(ConversionService.class).getRegistredConverters().contains(converter)) {
+            throw new IllegalArgumentException("Unknown converter: " + converter);
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.bulk;
+
+import static org.nuxeo.ecm.core.bulk.BulkServiceImpl.STATUS_STREAM;
+import static org.nuxeo.lib.stream.computation.AbstractComputation.INPUT_1;
+import static org.nuxeo.lib.stream.computation.AbstractComputation.OUTPUT_1;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.bulk.action.computation.AbstractBulkComputation;
+import org.nuxeo.ecm.platform.picture.api.PictureView;
+import org.nuxeo.ecm.platform.picture.api.adapters.MultiviewPicture;
+import org.nuxeo.lib.stream.computation.Topology;
+import org.nuxeo.runtime.stream.StreamProcessorTopology;
+
+/**
+ * Bulk action removing views from picture:views, for all the documents of a query.
+ * <p>
+ * The views to remove are given by the {@value #PARAM_VIEW_NAMES} parameter, a list of names (or a comma-separated
+ * string), case insensitive, where "*" matches any sequence of characters ("Medium", "watermarked-*", ...).
+ * <p>
+ * Documents are processed in batches (see the action and stream processor in bulk-contrib.xml): each batch is loaded,
+ * modified and saved with a single saveDocuments, and committed, by one of the workers.
+ * <p>
+ * Versions, proxies and other immutable documents returned by the query are skipped, they cannot be modified.
+ *
+ * @since 2023
+ */
+public class PictureViewsPurgeAction implements StreamProcessorTopology {
+
+    private static final Logger log = LogManager.getLogger(PictureViewsPurgeAction.class);
+
+    public static final String ACTION_NAME = "nxlabsPurgePictureViews";
+
+    public static final String ACTION_FULL_NAME = "bulk/" + ACTION_NAME;
+
+    public static final String PARAM_VIEW_NAMES = "viewNames";
+
+    @Override
+    public Topology getTopology(Map<String, String> options) {
+        return Topology.builder()
+                       .addComputation(PictureViewsPurgeComputation::new,
+                               Arrays.asList(INPUT_1 + ":" + ACTION_FULL_NAME, OUTPUT_1 + ":" + STATUS_STREAM))
+                       .build();
+    }
+
+    /**
+     * Returns the patterns of the viewNames parameter (a list or a comma-separated string)
+     */
+    public static List<Pattern> getPatterns(Serializable viewNames) {
+
+        List<String> names = new ArrayList<>();
+        if (viewNames instanceof Collection) {
+            for (Object name : (Collection<?>) viewNames) {
+                names.add(String.valueOf(name));
+            }
+        } else if (viewNames instanceof String[]) {
+            names.addAll(Arrays.asList((String[]) viewNames));
+        } else if (viewNames != null) {
+            names.addAll(Arrays.asList(viewNames.toString().split(",")));
+        }
+
+        List<Pattern> patterns = new ArrayList<>();
+        for (String name : names) {
+            if (StringUtils.isNotBlank(name)) {
+                patterns.add(toPattern(name.trim()));
+            }
+        }
+
+        return patterns;
+    }
+
+    protected static Pattern toPattern(String name) {
+
+        StringBuilder regex = new StringBuilder();
+        for (String part : name.split("\\*", -1)) {
+            if (regex.length() > 0 || name.startsWith("*")) {
+                regex.append(".*");
+            }
+            if (!part.isEmpty()) {
+                regex.append(Pattern.quote(part));
+            }
+        }
+
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+
+    protected static boolean matches(String viewName, List<Pattern> patterns) {
+
+        if (viewName == null) {
+            return false;
+        }
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(viewName).matches()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Versions, proxies and immutable documents cannot be saved, they are skipped by the bulk actions.
+     */
+    public static boolean isReadOnly(DocumentModel doc) {
+        return doc.isVersion() || doc.isProxy() || doc.isImmutable();
+    }
+
+    public static class PictureViewsPurgeComputation extends AbstractBulkComputation {
+
+        public PictureViewsPurgeComputation() {
+            super(ACTION_FULL_NAME);
+        }
+
+        @Override
+        protected void compute(CoreSession session, List<String> ids, Map<String, Serializable> properties) {
+
+            List<Pattern> patterns = getPatterns(properties.get(PARAM_VIEW_NAMES));
+            if (patterns.isEmpty()) {
+                return;
+            }
+
+            List<DocumentModel> modified = new ArrayList<>();
+            for (DocumentModel doc : loadDocuments(session, ids)) {
+                if (!doc.hasSchema("picture") || isReadOnly(doc)) {
+                    continue;
+                }
+                MultiviewPicture mvp = doc.getAdapter(MultiviewPicture.class);
+                boolean changed = false;
+                for (PictureView view : mvp.getViews()) {
+                    if (matches(view.getTitle(), patterns)) {
+                        mvp.removeView(view.getTitle());
+                        changed = true;
+                    }
+                }
+                if (changed) {
+                    modified.add(doc);
+                }
+            }
+
+            if (!modified.isEmpty()) {
+                session.saveDocuments(modified.toArray(new DocumentModel[0]));
+                log.debug("Removed views from " + modified.size() + "/" + ids.size() + " documents");
+            }
+        }
+    }
+}
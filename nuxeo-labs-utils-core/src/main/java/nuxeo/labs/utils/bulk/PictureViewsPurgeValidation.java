@@ -0,0 +1,47 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.bulk;
+
+import static nuxeo.labs.utils.bulk.PictureViewsPurgeAction.PARAM_VIEW_NAMES;
+
+import java.util.List;
+
+import org.nuxeo.ecm.core.bulk.AbstractBulkActionValidation;
+import org.nuxeo.ecm.core.bulk.message.BulkCommand;
+
+/**
+ * Checks the {@link PictureViewsPurgeAction} command has at least one view name.
+ *
+ * @since 2023
+ */
+public class PictureViewsPurgeValidation extends AbstractBulkActionValidation {
+
+    @Override
+    protected List<String> getParametersToValidate() {
+        return List.of(PARAM_VIEW_NAMES);
+    }
+
+    @Override
+    protected void validateCommand(BulkCommand command) throws IllegalArgumentException {
+        if (PictureViewsPurgeAction.getPatterns(command.getParam(PARAM_VIEW_NAMES)).isEmpty()) {
+            throw new IllegalArgumentException("At least one view name is required in " + PARAM_VIEW_NAMES);
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.images;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+/**
+ * A grid of images (a contact sheet): columns x rows cells of cellWidth x cellHeight, separated (and surrounded) by
+ * spacing pixels. Each image is centered in its cell, on a white background.
+ * <p>
+ * The sheet only holds the final pixels, images are expected to be already reduced to the cell size (see
+ * {@link ImageIOUtils#readToFit(java.io.File, int, int)}), so memory depends on the sheet size only, which is
+ * limited by the maxPixels passed to the constructor.
+ *
+ * @since 2023
+ */
+public class ContactSheet {
+
+    protected final int columns;
+
+    protected final int cellWidth;
+
+    protected final int cellHeight;
+
+    protected final int spacing;
+
+    protected final BufferedImage image;
+
+    /**
+     * @throws IllegalArgumentException if a value is invalid, or if the sheet would have more than maxPixels pixels
+     */
+    public ContactSheet(int count, int columns, int cellWidth, int cellHeight, int spacing, long maxPixels) {
+
+        if (count < 1 || columns < 1 || cellWidth < 1 || cellHeight < 1 || spacing < 0) {
+            throw new IllegalArgumentException("Invalid contact sheet: " + count + " images, " + columns
+                    + " columns, cells of " + cellWidth + "x" + cellHeight + ", spacing " + spacing);
+        }
+
+        this.columns = Math.min(columns, count);
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        this.spacing = spacing;
+
+        int rows = (count + this.columns - 1) / this.columns;
+        long sheetWidth = (long) this.columns * cellWidth + (long) (this.columns + 1) * spacing;
+        long sheetHeight = (long) rows * cellHeight + (long) (rows + 1) * spacing;
+        // Checked before multiplying, so the product cannot overflow
+        if (sheetWidth > maxPixels || sheetHeight > maxPixels || sheetWidth * sheetHeight > maxPixels) {
+            throw new IllegalArgumentException("Contact sheet too big: " + sheetWidth + "x" + sheetHeight
+                    + " pixels, the maximum is " + maxPixels + " pixels");
+        }
+        int width = (int) sheetWidth;
+        int height = (int) sheetHeight;
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = image.createGraphics();
+        try {
+            g2d.setColor(Color.WHITE);
+            g2d.fillRect(0, 0, width, height);
+        } finally {
+            g2d.dispose();
+        }
+    }
+
+    /**
+     * Draws the image, centered, in the cell at index. If it is bigger than the cell, it is scaled down first.
+     */
+    public void draw(int index, BufferedImage cell) {
+
+        if (cell.getWidth() > cellWidth || cell.getHeight() > cellHeight) {
+            cell = ImageScaler.scaleToFit(cell, cellWidth, cellHeight);
+        }
+        int x = spacing + (index % columns) * (cellWidth + spacing) + (cellWidth - cell.getWidth()) / 2;
+        int y = spacing + (index / columns) * (cellHeight + spacing) + (cellHeight - cell.getHeight()) / 2;
+
+        Graphics2D g2d = image.createGraphics();
+        try {
+            g2d.drawImage(cell, x, y, null);
+        } finally {
+            g2d.dispose();
+        }
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+}
@@ -0,0 +1,301 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.images;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory multi-index of 64 bits hashes (see {@link PerceptualHash}), each one associated to an id, for Hamming
+ * distance lookups.
+ * <p>
+ * The hashes are split in 4 chunks of 16 bits, each chunk indexed in its own table. Two hashes at distance d or less
+ * have at least one chunk at distance d / 4 or less, so a search only checks the hashes sharing a chunk close to the
+ * same chunk of the searched hash, instead of all of them.
+ * <p>
+ * Putting an id again replaces its hash. Thread safe: searches run concurrently, modifications are exclusive.
+ *
+ * @since 2023
+ */
+public class HammingIndex {
+
+    public static class Match {
+
+        protected final String id;
+
+        protected final long hash;
+
+        protected final int distance;
+
+        protected Match(String id, long hash, int distance) {
+            this.id = id;
+            this.hash = hash;
+            this.distance = distance;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public long getHash() {
+            return hash;
+        }
+
+        public int getDistance() {
+            return distance;
+        }
+    }
+
+    protected static final int CHUNKS = 4;
+
+    protected static final int CHUNK_BITS = 16;
+
+    protected static final int CHUNK_VALUES = 1 << CHUNK_BITS;
+
+    protected final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    protected final Map<String, Integer> slotsById = new HashMap<>();
+
+    // Slots, reused after a remove
+    protected long[] hashes = new long[1024];
+
+    protected String[] ids = new String[1024];
+
+    protected int slotCount;
+
+    protected int[] freeSlots = new int[16];
+
+    protected int freeCount;
+
+    // buckets[chunk][chunk value] = slots, bucketSizes[chunk][chunk value] = number of slots
+    protected final int[][][] buckets = new int[CHUNKS][CHUNK_VALUES][];
+
+    protected final int[][] bucketSizes = new int[CHUNKS][CHUNK_VALUES];
+
+    public void put(String id, long hash) {
+
+        lock.writeLock().lock();
+        try {
+            Integer slot = slotsById.get(id);
+            if (slot != null) {
+                if (hashes[slot] == hash) {
+                    return;
+                }
+                removeSlot(slot);
+            }
+            slotsById.put(id, addSlot(id, hash));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean remove(String id) {
+
+        lock.writeLock().lock();
+        try {
+            Integer slot = slotsById.remove(id);
+            if (slot == null) {
+                return false;
+            }
+            removeSlot(slot);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the hash of the id, null if it is not in the index
+     */
+    public Long get(String id) {
+
+        lock.readLock().lock();
+        try {
+            Integer slot = slotsById.get(id);
+            return slot == null ? null : hashes[slot];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the ids whose hash is at maxDistance or less from hash, closest first. maxResults <= 0 means no limit.
+     *
+     * @throws IllegalArgumentException if maxDistance is not between 0 and 32
+     */
+    public List<Match> search(long hash, int maxDistance, int maxResults) {
+
+        if (maxDistance < 0 || maxDistance > 32) {
+            throw new IllegalArgumentException("maxDistance must be between 0 and 32: " + maxDistance);
+        }
+        int radius = maxDistance / CHUNKS;
+        int[] chunks = new int[CHUNKS];
+        for (int c = 0; c < CHUNKS; c++) {
+            chunks[c] = chunk(hash, c);
+        }
+
+        List<Match> matches = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (int c = 0; c < CHUNKS; c++) {
+                searchChunk(hash, chunks, c, chunks[c], 0, radius, radius, maxDistance, matches);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        matches.sort(Comparator.comparingInt(Match::getDistance).thenComparing(Match::getId));
+        if (maxResults > 0 && matches.size() > maxResults) {
+            return new ArrayList<>(matches.subList(0, maxResults));
+        }
+
+        return matches;
+    }
+
+    public int size() {
+
+        lock.readLock().lock();
+        try {
+            return slotsById.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void clear() {
+
+        lock.writeLock().lock();
+        try {
+            slotsById.clear();
+            hashes = new long[1024];
+            ids = new String[1024];
+            slotCount = 0;
+            freeCount = 0;
+            for (int c = 0; c < CHUNKS; c++) {
+                Arrays.fill(buckets[c], null);
+                Arrays.fill(bucketSizes[c], 0);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Checks the slots of all the values of the chunk at flips bits or less from value, flipping the bits from fromBit.
+     */
+    protected void searchChunk(long hash, int[] chunks, int c, int value, int fromBit, int flips, int radius,
+            int maxDistance, List<Match> matches) {
+
+        int[] bucket = buckets[c][value];
+        int size = bucketSizes[c][value];
+        for (int i = 0; i < size; i++) {
+            int slot = bucket[i];
+            long candidate = hashes[slot];
+            if (foundInPreviousChunk(candidate, chunks, c, radius)) {
+                continue;
+            }
+            int distance = PerceptualHash.distance(hash, candidate);
+            if (distance <= maxDistance) {
+                matches.add(new Match(ids[slot], candidate, distance));
+            }
+        }
+        if (flips > 0) {
+            for (int bit = fromBit; bit < CHUNK_BITS; bit++) {
+                searchChunk(hash, chunks, c, value ^ (1 << bit), bit + 1, flips - 1, radius, maxDistance, matches);
+            }
+        }
+    }
+
+    // A candidate is checked only from the first chunk it is close enough on
+    protected static boolean foundInPreviousChunk(long candidate, int[] chunks, int c, int radius) {
+
+        for (int previous = 0; previous < c; previous++) {
+            if (Integer.bitCount(chunk(candidate, previous) ^ chunks[previous]) <= radius) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    protected int addSlot(String id, long hash) {
+
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (slotCount == hashes.length) {
+                hashes = Arrays.copyOf(hashes, slotCount * 2);
+                ids = Arrays.copyOf(ids, slotCount * 2);
+            }
+            slot = slotCount++;
+        }
+        hashes[slot] = hash;
+        ids[slot] = id;
+
+        for (int c = 0; c < CHUNKS; c++) {
+            int value = chunk(hash, c);
+            int[] bucket = buckets[c][value];
+            int size = bucketSizes[c][value];
+            if (bucket == null) {
+                bucket = new int[2];
+            } else if (size == bucket.length) {
+                bucket = Arrays.copyOf(bucket, size * 2);
+            }
+            bucket[size] = slot;
+            buckets[c][value] = bucket;
+            bucketSizes[c][value] = size + 1;
+        }
+
+        return slot;
+    }
+
+    protected void removeSlot(int slot) {
+
+        long hash = hashes[slot];
+        for (int c = 0; c < CHUNKS; c++) {
+            int value = chunk(hash, c);
+            int[] bucket = buckets[c][value];
+            int size = bucketSizes[c][value];
+            for (int i = 0; i < size; i++) {
+                if (bucket[i] == slot) {
+                    bucket[i] = bucket[size - 1];
+                    bucketSizes[c][value] = size - 1;
+                    break;
+                }
+            }
+        }
+        ids[slot] = null;
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    protected static int chunk(long hash, int c) {
+        return (int) (hash >>> (c * CHUNK_BITS)) & (CHUNK_VALUES - 1);
+    }
+
+}
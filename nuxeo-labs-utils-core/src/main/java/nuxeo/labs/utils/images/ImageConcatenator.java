@@ -0,0 +1,427 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.images;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Vector;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Appends images one after the other with ImageIO, in the JVM (no ImageMagick process). The result is the same as
+ * <code>convert img1 img2 ... -append</code> (or <code>+append</code>): images aligned on the top-left, empty space
+ * filled with white (or transparent when the output has alpha).
+ * <p>
+ * When appending vertically to a png, the output is streamed: the png writer pulls the rows as it encodes them, and
+ * inputs are decoded one at a time, when the first of their rows is needed. Each input is fully decoded, so the memory
+ * used is about the biggest input (twice, when it must be converted to RGB/ARGB) plus one strip of
+ * {@value #STRIP_HEIGHT} rows of the result, whatever the size of the result. Other cases (horizontal append, other
+ * output formats, whose ImageIO writers need the full raster) build the whole result in memory, plus one decoded input
+ * at a time, and are handled only if the result has less than maxInMemoryPixels pixels.
+ * <p>
+ * {@link #concatenate(List, boolean, String, File, long)} returns false when it cannot handle the inputs or the
+ * output format, so the caller can use ImageMagick instead.
+ *
+ * @since 2023
+ */
+public class ImageConcatenator {
+
+    public static final long DEFAULT_MAX_IN_MEMORY_PIXELS = 50_000_000L;
+
+    // Height of the tiles of the streamed result
+    public static final int STRIP_HEIGHT = 64;
+
+    protected final List<File> inputs;
+
+    protected final boolean horizontal;
+
+    protected final int[] widths;
+
+    protected final int[] heights;
+
+    protected int width;
+
+    protected int height;
+
+    protected boolean hasAlpha;
+
+    protected ImageConcatenator(List<File> inputs, boolean horizontal) {
+        this.inputs = inputs;
+        this.horizontal = horizontal;
+        widths = new int[inputs.size()];
+        heights = new int[inputs.size()];
+    }
+
+    /**
+     * Appends the images and writes the result in output.
+     *
+     * @param inputs the images, in order
+     * @param horizontal true to append horizontally, false to append vertically
+     * @param fileExtension the extension of the output file, giving its format ("png", "jpg", ...)
+     * @param output the file to write to
+     * @param maxInMemoryPixels when the result cannot be streamed, maximum number of pixels it can have
+     * @return false if the images or the output format are not supported (or the result would be too big), in which
+     *         case the content of output is undefined
+     * @throws IOException
+     */
+    public static boolean concatenate(List<File> inputs, boolean horizontal, String fileExtension, File output,
+            long maxInMemoryPixels) throws IOException {
+
+        if (inputs == null || inputs.isEmpty() || fileExtension == null) {
+            return false;
+        }
+
+        String suffix = fileExtension.toLowerCase();
+        if (!ImageIOUtils.canWrite(suffix)) {
+            return false;
+        }
+
+        ImageConcatenator concatenator = new ImageConcatenator(inputs, horizontal);
+        if (!concatenator.readHeaders()) {
+            return false;
+        }
+
+        boolean isPng = "png".equals(suffix);
+        boolean streamed = isPng && !horizontal;
+        if (!streamed && (long) concatenator.width * concatenator.height > maxInMemoryPixels) {
+            return false;
+        }
+        int type = isPng && concatenator.hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+
+        try {
+            RenderedImage image = streamed ? concatenator.new VerticalStream(type) : concatenator.render(type);
+            if (image == null) {
+                return false;
+            }
+            ImageIOUtils.write(image, suffix, output);
+        } catch (UncheckedIOException e) {
+            // An input could not be decoded while streaming
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the dimensions of each input without decoding it, returns false if one of them has no ImageIO reader.
+     */
+    protected boolean readHeaders() throws IOException {
+
+        width = 0;
+        height = 0;
+        hasAlpha = false;
+        for (int i = 0; i < inputs.size(); i++) {
+            try (ImageInputStream in = ImageIO.createImageInputStream(inputs.get(i))) {
+                if (in == null) {
+                    return false;
+                }
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                if (!readers.hasNext()) {
+                    return false;
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(in, true, true);
+                    widths[i] = reader.getWidth(0);
+                    heights[i] = reader.getHeight(0);
+                    ImageTypeSpecifier rawType = reader.getRawImageType(0);
+                    if (rawType != null && rawType.getColorModel().hasAlpha()) {
+                        hasAlpha = true;
+                    }
+                } finally {
+                    reader.dispose();
+                }
+            }
+            if (horizontal) {
+                width += widths[i];
+                height = Math.max(height, heights[i]);
+            } else {
+                width = Math.max(width, widths[i]);
+                height += heights[i];
+            }
+        }
+
+        return width > 0 && height > 0;
+    }
+
+    /**
+     * Decodes the input at index i, as an image of the given type. Returns null if it cannot be decoded.
+     */
+    protected BufferedImage decode(int i, int type) throws IOException {
+
+        BufferedImage image;
+        try {
+            image = ImageIO.read(inputs.get(i));
+        } catch (IOException | RuntimeException e) {
+            // Unsupported variant of a known format (CMYK jpeg, ...)
+            return null;
+        }
+        if (image == null || image.getType() == type) {
+            return image;
+        }
+
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        Graphics2D g2d = converted.createGraphics();
+        try {
+            if (type == BufferedImage.TYPE_INT_RGB) {
+                g2d.setColor(Color.WHITE);
+                g2d.fillRect(0, 0, image.getWidth(), image.getHeight());
+            }
+            g2d.drawImage(image, 0, 0, null);
+        } finally {
+            g2d.dispose();
+        }
+
+        return converted;
+    }
+
+    /**
+     * Builds the whole result in memory. Returns null if an input cannot be decoded.
+     */
+    protected BufferedImage render(int type) throws IOException {
+
+        BufferedImage result = new BufferedImage(width, height, type);
+        Graphics2D g2d = result.createGraphics();
+        try {
+            if (type == BufferedImage.TYPE_INT_RGB) {
+                g2d.setColor(Color.WHITE);
+                g2d.fillRect(0, 0, width, height);
+            }
+            int offset = 0;
+            for (int i = 0; i < inputs.size(); i++) {
+                BufferedImage image = decode(i, type);
+                if (image == null) {
+                    return null;
+                }
+                if (horizontal) {
+                    g2d.drawImage(image, offset, 0, null);
+                    offset += widths[i];
+                } else {
+                    g2d.drawImage(image, 0, offset, null);
+                    offset += heights[i];
+                }
+            }
+        } finally {
+            g2d.dispose();
+        }
+
+        return result;
+    }
+
+    /**
+     * The vertical concatenation, as an image whose rows are read from the inputs on demand. The writer asks for the
+     * rows from top to bottom, so each input is decoded once and only the current one is kept. The image is made of
+     * horizontal strips of {@value #STRIP_HEIGHT} rows, so getting a tile never builds the full canvas (only
+     * {@link #getData()} does).
+     */
+    protected class VerticalStream implements RenderedImage {
+
+        protected final ColorModel colorModel;
+
+        protected final SampleModel sampleModel;
+
+        protected final int background;
+
+        protected final int[] offsets;
+
+        protected int currentIndex = -1;
+
+        protected BufferedImage current;
+
+        protected VerticalStream(int type) {
+            colorModel = new BufferedImage(1, 1, type).getColorModel();
+            sampleModel = colorModel.createCompatibleSampleModel(width, getTileHeight());
+            background = type == BufferedImage.TYPE_INT_ARGB ? 0 : 0xFFFFFF;
+            offsets = new int[inputs.size()];
+            for (int i = 1; i < offsets.length; i++) {
+                offsets[i] = offsets[i - 1] + heights[i - 1];
+            }
+        }
+
+        protected BufferedImage getInput(int i) {
+
+            if (i != currentIndex) {
+                current = null;
+                try {
+                    current = decode(i, colorModel.hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+                            : BufferedImage.TYPE_INT_RGB);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (current == null) {
+                    throw new UncheckedIOException(new IOException("Cannot decode " + inputs.get(i)));
+                }
+                currentIndex = i;
+            }
+
+            return current;
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+
+            WritableRaster raster = colorModel.createCompatibleWritableRaster(rect.width, rect.height)
+                                              .createWritableTranslatedChild(rect.x, rect.y);
+            int[] row = new int[rect.width];
+            int index = 0;
+            for (int y = rect.y; y < rect.y + rect.height; y++) {
+                Arrays.fill(row, background);
+                raster.setDataElements(rect.x, y, rect.width, 1, row);
+
+                while (index < offsets.length - 1 && y >= offsets[index + 1]) {
+                    index += 1;
+                }
+                int x0 = Math.max(rect.x, 0);
+                int x1 = Math.min(rect.x + rect.width, widths[index]);
+                if (x1 > x0) {
+                    BufferedImage input = getInput(index);
+                    Object pixels = input.getRaster().getDataElements(x0, y - offsets[index], x1 - x0, 1, null);
+                    raster.setDataElements(x0, y, x1 - x0, 1, pixels);
+                }
+            }
+
+            return raster;
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, width, height));
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                raster = colorModel.createCompatibleWritableRaster(width, height);
+            }
+            raster.setRect(getData(raster.getBounds()));
+            return raster;
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+
+            int y = tileY * getTileHeight();
+            return getData(new Rectangle(0, y, width, Math.min(getTileHeight(), height - y)));
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return sampleModel;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return 1;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return (height + getTileHeight() - 1) / getTileHeight();
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return width;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return Math.min(STRIP_HEIGHT, height);
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+    }
+
+}
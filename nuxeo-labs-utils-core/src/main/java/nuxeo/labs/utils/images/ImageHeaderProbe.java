@@ -0,0 +1,394 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.images;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the dimensions, format, color space and depth of an image from its header only, without decoding it: JPEG
+ * (SOF marker), PNG (IHDR), GIF, BMP, WebP (VP8, VP8L, VP8X) and TIFF (first IFD).
+ * <p>
+ * Only the bytes needed are read (a few KB usually, {@value #MAX_BYTES} at most, for JPEGs with big EXIF/ICC
+ * segments or TIFFs whose IFD is not at the beginning). {@link #probe(InputStream)} returns null when the format is
+ * not one of these or the header cannot be found, so the caller can use a full probe.
+ * <p>
+ * Format and color space names are the ones ImageMagick uses ("JPEG", "PNG", ..., "sRGB", "Gray", "CMYK").
+ *
+ * @since 2023
+ */
+public class ImageHeaderProbe {
+
+    public static final int MAX_BYTES = 1024 * 1024;
+
+    public static class Header {
+
+        protected final String format;
+
+        protected final int width;
+
+        protected final int height;
+
+        protected final String colorSpace;
+
+        protected final int depth;
+
+        public Header(String format, int width, int height, String colorSpace, int depth) {
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.colorSpace = colorSpace;
+            this.depth = depth;
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public String getColorSpace() {
+            return colorSpace;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+    }
+
+    protected final InputStream in;
+
+    protected long position;
+
+    protected ImageHeaderProbe(InputStream in) {
+        this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in, 8192);
+    }
+
+    /**
+     * Reads the header of the image. Does not close the stream.
+     *
+     * @return the header, or null if the format is not supported or the header is invalid
+     */
+    public static Header probe(InputStream in) throws IOException {
+
+        try {
+            Header header = new ImageHeaderProbe(in).read();
+            return header != null && header.getWidth() > 0 && header.getHeight() > 0 ? header : null;
+        } catch (EOFException e) {
+            // Truncated, or MAX_BYTES reached
+            return null;
+        }
+    }
+
+    protected Header read() throws IOException {
+
+        byte[] magic = readBytes(4);
+        int b0 = magic[0] & 0xFF;
+        int b1 = magic[1] & 0xFF;
+
+        if (b0 == 0xFF && b1 == 0xD8) {
+            return readJpeg(magic);
+        }
+        if (b0 == 0x89 && magic[1] == 'P' && magic[2] == 'N' && magic[3] == 'G') {
+            return readPng();
+        }
+        if (magic[0] == 'G' && magic[1] == 'I' && magic[2] == 'F' && magic[3] == '8') {
+            return readGif();
+        }
+        if (magic[0] == 'B' && magic[1] == 'M') {
+            return readBmp();
+        }
+        if (magic[0] == 'R' && magic[1] == 'I' && magic[2] == 'F' && magic[3] == 'F') {
+            return readWebp();
+        }
+        if ((magic[0] == 'I' && magic[1] == 'I' && magic[2] == 42 && magic[3] == 0)
+                || (magic[0] == 'M' && magic[1] == 'M' && magic[2] == 0 && magic[3] == 42)) {
+            return readTiff(magic[0] == 'I');
+        }
+
+        return null;
+    }
+
+    protected Header readJpeg(byte[] magic) throws IOException {
+
+        // magic[2], magic[3] are the first marker
+        int marker0 = magic[2] & 0xFF;
+        int marker = magic[3] & 0xFF;
+        while (true) {
+            if (marker0 != 0xFF) {
+                return null;
+            }
+            // Fill bytes
+            while (marker == 0xFF) {
+                marker = readByte();
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                // End of image or start of scan before any frame header
+                return null;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // No length
+                marker0 = readByte();
+                marker = readByte();
+                continue;
+            }
+            int length = readUnsignedShort(false);
+            if (length < 2) {
+                return null;
+            }
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                int precision = readByte();
+                int height = readUnsignedShort(false);
+                int width = readUnsignedShort(false);
+                int components = readByte();
+                String colorSpace = components == 1 ? "Gray" : components == 4 ? "CMYK" : "sRGB";
+                return new Header("JPEG", width, height, colorSpace, precision);
+            }
+            skip(length - 2);
+            marker0 = readByte();
+            marker = readByte();
+        }
+    }
+
+    protected Header readPng() throws IOException {
+
+        // Rest of the signature, IHDR length and type
+        skip(4 + 4);
+        byte[] type = readBytes(4);
+        if (type[0] != 'I' || type[1] != 'H' || type[2] != 'D' || type[3] != 'R') {
+            return null;
+        }
+        int width = readInt(false);
+        int height = readInt(false);
+        int bitDepth = readByte();
+        int colorType = readByte();
+        String colorSpace = colorType == 0 || colorType == 4 ? "Gray" : "sRGB";
+        // Palette images are 8 bits per channel once expanded
+        return new Header("PNG", width, height, colorSpace, colorType == 3 ? 8 : bitDepth);
+    }
+
+    protected Header readGif() throws IOException {
+
+        // Rest of the version ("7a" or "9a")
+        skip(2);
+        int width = readUnsignedShort(true);
+        int height = readUnsignedShort(true);
+        return new Header("GIF", width, height, "sRGB", 8);
+    }
+
+    protected Header readBmp() throws IOException {
+
+        // File size, reserved, pixel data offset
+        skip(2 + 4 + 4);
+        long headerSize = readInt(true) & 0xFFFFFFFFL;
+        int width;
+        int height;
+        int bitCount;
+        if (headerSize == 12) {
+            width = readUnsignedShort(true);
+            height = readUnsignedShort(true);
+            skip(2);
+            bitCount = readUnsignedShort(true);
+        } else if (headerSize >= 40) {
+            width = readInt(true);
+            height = Math.abs(readInt(true));
+            skip(2);
+            bitCount = readUnsignedShort(true);
+        } else {
+            return null;
+        }
+        String colorSpace = bitCount == 1 ? "Gray" : "sRGB";
+        return new Header("BMP", width, height, colorSpace, bitCount == 1 ? 1 : 8);
+    }
+
+    protected Header readWebp() throws IOException {
+
+        // RIFF size
+        skip(4);
+        byte[] webp = readBytes(4);
+        if (webp[0] != 'W' || webp[1] != 'E' || webp[2] != 'B' || webp[3] != 'P') {
+            return null;
+        }
+        byte[] chunk = readBytes(4);
+        String chunkType = new String(chunk, StandardCharsets.US_ASCII);
+        // Chunk size
+        skip(4);
+        switch (chunkType) {
+        case "VP8 ": {
+            // Frame tag
+            skip(3);
+            byte[] startCode = readBytes(3);
+            if ((startCode[0] & 0xFF) != 0x9D || (startCode[1] & 0xFF) != 0x01 || (startCode[2] & 0xFF) != 0x2A) {
+                return null;
+            }
+            int width = readUnsignedShort(true) & 0x3FFF;
+            int height = readUnsignedShort(true) & 0x3FFF;
+            return new Header("WEBP", width, height, "sRGB", 8);
+        }
+        case "VP8L": {
+            if (readByte() != 0x2F) {
+                return null;
+            }
+            long bits = readInt(true) & 0xFFFFFFFFL;
+            int width = (int) (bits & 0x3FFF) + 1;
+            int height = (int) ((bits >> 14) & 0x3FFF) + 1;
+            return new Header("WEBP", width, height, "sRGB", 8);
+        }
+        case "VP8X": {
+            // Flags and reserved
+            skip(4);
+            int width = readUnsigned24() + 1;
+            int height = readUnsigned24() + 1;
+            return new Header("WEBP", width, height, "sRGB", 8);
+        }
+        default:
+            return null;
+        }
+    }
+
+    protected Header readTiff(boolean littleEndian) throws IOException {
+
+        long ifdOffset = readInt(littleEndian) & 0xFFFFFFFFL;
+        if (ifdOffset < position || ifdOffset > MAX_BYTES) {
+            return null;
+        }
+        skip(ifdOffset - position);
+
+        int entries = readUnsignedShort(littleEndian);
+        int width = 0;
+        int height = 0;
+        int depth = 8;
+        int photometric = -1;
+        for (int i = 0; i < entries; i++) {
+            int tag = readUnsignedShort(littleEndian);
+            int type = readUnsignedShort(littleEndian);
+            long count = readInt(littleEndian) & 0xFFFFFFFFL;
+            byte[] value = readBytes(4);
+            // SHORT values are in the first 2 bytes, LONG values use the 4 bytes
+            int intValue;
+            if (type == 3) {
+                intValue = littleEndian ? (value[0] & 0xFF) | (value[1] & 0xFF) << 8
+                        : (value[0] & 0xFF) << 8 | (value[1] & 0xFF);
+            } else if (type == 4) {
+                intValue = littleEndian
+                        ? (value[0] & 0xFF) | (value[1] & 0xFF) << 8 | (value[2] & 0xFF) << 16 | (value[3] & 0xFF) << 24
+                        : (value[0] & 0xFF) << 24 | (value[1] & 0xFF) << 16 | (value[2] & 0xFF) << 8 | (value[3] & 0xFF);
+            } else {
+                continue;
+            }
+            switch (tag) {
+            case 256:
+                width = intValue;
+                break;
+            case 257:
+                height = intValue;
+                break;
+            case 258:
+                // With several samples, the value is an offset to the list, and they are the same in practice
+                if (count == 1 || (type == 3 && count == 2)) {
+                    depth = intValue;
+                }
+                break;
+            case 262:
+                photometric = intValue;
+                break;
+            default:
+                break;
+            }
+        }
+        String colorSpace = photometric == 0 || photometric == 1 ? "Gray" : photometric == 5 ? "CMYK" : "sRGB";
+        return new Header("TIFF", width, height, colorSpace, depth);
+    }
+
+    protected int readByte() throws IOException {
+
+        if (position >= MAX_BYTES) {
+            throw new EOFException();
+        }
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        position += 1;
+
+        return b;
+    }
+
+    protected byte[] readBytes(int count) throws IOException {
+
+        byte[] bytes = new byte[count];
+        for (int i = 0; i < count; i++) {
+            bytes[i] = (byte) readByte();
+        }
+
+        return bytes;
+    }
+
+    protected void skip(long count) throws IOException {
+
+        if (position + count > MAX_BYTES) {
+            throw new EOFException();
+        }
+        long remaining = count;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                // skip() may return 0 before the end, read to know
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+        position += count;
+    }
+
+    protected int readUnsignedShort(boolean littleEndian) throws IOException {
+
+        int b0 = readByte();
+        int b1 = readByte();
+
+        return littleEndian ? b0 | b1 << 8 : b0 << 8 | b1;
+    }
+
+    protected int readUnsigned24() throws IOException {
+        return readByte() | readByte() << 8 | readByte() << 16;
+    }
+
+    protected int readInt(boolean littleEndian) throws IOException {
+
+        int b0 = readByte();
+        int b1 = readByte();
+        int b2 = readByte();
+        int b3 = readByte();
+
+        return littleEndian ? b0 | b1 << 8 | b2 << 16 | b3 << 24 : b0 << 24 | b1 << 16 | b2 << 8 | b3;
+    }
+
+}
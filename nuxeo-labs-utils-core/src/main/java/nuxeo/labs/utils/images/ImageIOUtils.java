@@ -0,0 +1,157 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.images;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * ImageIO reading/writing helpers shared by the java image engines.
+ *
+ * @since 2023
+ */
+public class ImageIOUtils {
+
+    // Close to ImageMagick's default
+    public static final float JPEG_QUALITY = 0.92f;
+
+    private ImageIOUtils() {
+        // Static utility
+    }
+
+    /**
+     * Returns true if ImageIO can write files with this extension ("png", "jpg", ...)
+     */
+    public static boolean canWrite(String fileExtension) {
+        return fileExtension != null && ImageIO.getImageWritersBySuffix(fileExtension.toLowerCase()).hasNext();
+    }
+
+    /**
+     * Writes the image in the format given by the file extension, lossy formats being written with
+     * {@link #JPEG_QUALITY}. Images with transparency written to a format without alpha (jpg, bmp) are flattened on
+     * white first. Returns false if there is no ImageIO writer for this extension.
+     */
+    public static boolean write(RenderedImage image, String fileExtension, File output) throws IOException {
+
+        if (fileExtension == null) {
+            return false;
+        }
+        String suffix = fileExtension.toLowerCase();
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix(suffix);
+        if (!writers.hasNext()) {
+            return false;
+        }
+
+        if (image instanceof BufferedImage && image.getColorModel().hasAlpha()
+                && ("jpg".equals(suffix) || "jpeg".equals(suffix) || "bmp".equals(suffix))) {
+            image = flatten((BufferedImage) image);
+        }
+
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(output)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (!"png".equals(suffix) && param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                if (param.getCompressionType() == null && param.getCompressionTypes() != null) {
+                    param.setCompressionType(param.getCompressionTypes()[0]);
+                }
+                param.setCompressionQuality(JPEG_QUALITY);
+            }
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+
+        return true;
+    }
+
+    /**
+     * Draws the image on a white background, without alpha.
+     */
+    public static BufferedImage flatten(BufferedImage image) {
+
+        BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = result.createGraphics();
+        try {
+            g2d.setColor(Color.WHITE);
+            g2d.fillRect(0, 0, image.getWidth(), image.getHeight());
+            g2d.drawImage(image, 0, 0, null);
+        } finally {
+            g2d.dispose();
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads the image so it fits in maxWidth x maxHeight (smaller images are not scaled up). Big images are subsampled
+     * while decoding (only about one pixel out of n is read, n depending on the ratio between the image and the target
+     * size), so the full resolution raster is never in memory. Returns null if the image cannot be decoded.
+     */
+    public static BufferedImage readToFit(File file, int maxWidth, int maxHeight) throws IOException {
+
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                // Read at about twice the target size, the final scaling smoothes the subsampling
+                int factor = Math.min(width / maxWidth, height / maxHeight) / 2;
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (factor > 1) {
+                    param.setSourceSubsampling(factor, factor, 0, 0);
+                }
+                BufferedImage image = reader.read(0, param);
+                if (image.getWidth() <= maxWidth && image.getHeight() <= maxHeight) {
+                    return image;
+                }
+                return ImageScaler.scaleToFit(image, maxWidth, maxHeight);
+            } catch (IOException | RuntimeException e) {
+                // Unsupported variant of a known format (CMYK jpeg, ...)
+                return null;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+}
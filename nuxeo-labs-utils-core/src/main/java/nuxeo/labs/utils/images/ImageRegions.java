@@ -0,0 +1,154 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.images;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Reads regions of an image with ImageIO, decoding only what is needed (source regions): the memory used depends on
+ * the size of the regions, not on the size of the image.
+ * <p>
+ * Several regions are read in a single decode of their bounding box, unless it is bigger than maxUnionPixels (regions
+ * far from each other in a big image), in which case each region is read separately.
+ *
+ * @since 2023
+ */
+public class ImageRegions {
+
+    public static final long DEFAULT_MAX_UNION_PIXELS = 50_000_000L;
+
+    private ImageRegions() {
+        // Static utility
+    }
+
+    /**
+     * Parses a list of WxH+X+Y geometries, separated by ";", "," or new lines.
+     *
+     * @throws IllegalArgumentException if a geometry is invalid or the list is empty
+     */
+    public static List<Rectangle> parse(String value) {
+
+        List<Rectangle> regions = new ArrayList<>();
+        if (value != null) {
+            for (String token : value.split("[;,\\n]")) {
+                if (!token.isBlank()) {
+                    regions.add(PictureTransformation.parseCropGeometry(token));
+                }
+            }
+        }
+        if (regions.isEmpty()) {
+            throw new IllegalArgumentException("No region");
+        }
+
+        return regions;
+    }
+
+    /**
+     * Reads a single region. Returns null if the image cannot be decoded.
+     *
+     * @throws IllegalArgumentException if the region is outside the image
+     */
+    public static BufferedImage read(File file, Rectangle region) throws IOException {
+
+        List<BufferedImage> images = read(file, List.of(region), DEFAULT_MAX_UNION_PIXELS);
+
+        return images == null ? null : images.get(0);
+    }
+
+    /**
+     * Reads the regions, restricted to the image as ImageMagick does. The images are returned in the order of the
+     * regions. When they are read in a single decode, they share the same raster (they are sub-images of the bounding
+     * box), so they must not be modified. Returns null if the image cannot be decoded.
+     *
+     * @throws IllegalArgumentException if a region is outside the image
+     */
+    public static List<BufferedImage> read(File file, List<Rectangle> regions, long maxUnionPixels)
+            throws IOException {
+
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                // Reading regions separately needs to go back in the stream
+                reader.setInput(in, false, true);
+                Rectangle bounds = new Rectangle(reader.getWidth(0), reader.getHeight(0));
+
+                List<Rectangle> clipped = new ArrayList<>(regions.size());
+                Rectangle union = null;
+                for (Rectangle region : regions) {
+                    Rectangle r = region.intersection(bounds);
+                    if (r.isEmpty()) {
+                        throw new IllegalArgumentException("Region " + region.width + "x" + region.height + "+"
+                                + region.x + "+" + region.y + " is outside the image (" + bounds.width + "x"
+                                + bounds.height + ")");
+                    }
+                    clipped.add(r);
+                    union = union == null ? new Rectangle(r) : union.union(r);
+                }
+
+                List<BufferedImage> images = new ArrayList<>(clipped.size());
+                if (clipped.size() == 1 || (long) union.width * union.height <= maxUnionPixels) {
+                    BufferedImage image = readRegion(reader, union);
+                    for (Rectangle r : clipped) {
+                        images.add(r.equals(union) ? image
+                                : image.getSubimage(r.x - union.x, r.y - union.y, r.width, r.height));
+                    }
+                } else {
+                    for (Rectangle r : clipped) {
+                        images.add(readRegion(reader, r));
+                    }
+                }
+
+                return images;
+
+            } catch (IOException | IllegalStateException | UnsupportedOperationException e) {
+                // Unsupported variant of a known format (CMYK jpeg, ...)
+                return null;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    protected static BufferedImage readRegion(ImageReader reader, Rectangle region) throws IOException {
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(region);
+
+        return reader.read(0, param);
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.images;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+/**
+ * High quality image scaling with Java2D.
+ * <p>
+ * When downscaling by more than 2, the image is halved several times with bilinear interpolation before the final
+ * bicubic step, which gives a result close to ImageMagick's without the cost of a process fork.
+ *
+ * @since 2023
+ */
+public class ImageScaler {
+
+    private ImageScaler() {
+        // Static utility
+    }
+
+    /**
+     * Scales the image so it fits in maxWidth x maxHeight, keeping its aspect ratio. Small images are scaled up.
+     */
+    public static BufferedImage scaleToFit(BufferedImage source, int maxWidth, int maxHeight) {
+
+        double ratio = Math.min((double) maxWidth / source.getWidth(), (double) maxHeight / source.getHeight());
+        int width = Math.max(1, (int) Math.round(source.getWidth() * ratio));
+        int height = Math.max(1, (int) Math.round(source.getHeight() * ratio));
+
+        return scale(source, width, height);
+    }
+
+    public static BufferedImage scale(BufferedImage source, int width, int height) {
+
+        if (source.getWidth() == width && source.getHeight() == height) {
+            return source;
+        }
+
+        int type = source.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage current = source;
+        int currentWidth = source.getWidth();
+        int currentHeight = source.getHeight();
+
+        // Progressive halving
+        while (currentWidth / 2 >= width && currentHeight / 2 >= height) {
+            currentWidth /= 2;
+            currentHeight /= 2;
+            current = draw(current, currentWidth, currentHeight, type,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        }
+
+        if (currentWidth != width || currentHeight != height) {
+            current = draw(current, width, height, type, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        }
+
+        return current;
+    }
+
+    protected static BufferedImage draw(BufferedImage source, int width, int height, int type, Object interpolation) {
+
+        BufferedImage result = new BufferedImage(width, height, type);
+        Graphics2D g2d = result.createGraphics();
+        try {
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+            g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2d.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            g2d.dispose();
+        }
+
+        return result;
+    }
+
+}
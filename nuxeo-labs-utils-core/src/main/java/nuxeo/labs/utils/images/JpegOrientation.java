@@ -0,0 +1,428 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.images;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+/**
+ * Lossless right-angle rotation of JPEGs, by rewriting the EXIF orientation tag: the compressed image data is copied
+ * as is, nothing is decoded.
+ * <p>
+ * The current orientation is combined with the rotation (a 90 degrees rotation of an image already tagged "rotate
+ * 90" gives "rotate 180", ...). When the file has no EXIF segment (wherever it is among the metadata segments, an XMP
+ * APP1 segment can come first), a minimal one, holding only the orientation, is inserted. When it has one without an orientation tag, a copy of IFD0 with the tag is appended to the segment and
+ * becomes IFD0 (all the other offsets are relative to the TIFF header, they do not change).
+ * <p>
+ * The pixels are not changed: the width and height of the image stay the same, and only readers that honor the EXIF
+ * orientation (browsers, viewers, ImageMagick's -auto-orient, ...) display it rotated.
+ *
+ * @since 2023
+ */
+public class JpegOrientation {
+
+    public static final int TAG_ORIENTATION = 0x0112;
+
+    // Orientation after a 90 degrees clockwise rotation, for each orientation (index 0 is unused)
+    protected static final int[] ROTATE_90 = { 0, 6, 7, 8, 5, 2, 3, 4, 1 };
+
+    protected static final int SOI = 0xD8;
+
+    protected static final int APP0 = 0xE0;
+
+    protected static final int APP1 = 0xE1;
+
+    protected static final int SOS = 0xDA;
+
+    protected static final byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+
+    private JpegOrientation() {
+        // Static utility
+    }
+
+    /**
+     * Returns the orientation after rotating an image of this orientation by angle degrees (clockwise, multiple of
+     * 90). Invalid orientations are considered as 1 (normal).
+     */
+    public static int rotate(int orientation, int angle) {
+
+        if (angle % 90 != 0) {
+            throw new IllegalArgumentException("Not a right angle: " + angle);
+        }
+        int result = orientation >= 1 && orientation <= 8 ? orientation : 1;
+        int quarters = ((angle / 90) % 4 + 4) % 4;
+        for (int i = 0; i < quarters; i++) {
+            result = ROTATE_90[result];
+        }
+
+        return result;
+    }
+
+    /**
+     * Writes input to output with its orientation tag rotated by angle degrees (clockwise, multiple of 90).
+     *
+     * @return false if input is not a JPEG (or its EXIF segment cannot be parsed), in which case the content of output
+     *         is undefined
+     * @throws IOException
+     */
+    public static boolean rotate(File input, File output, int angle) throws IOException {
+
+        if (angle % 90 != 0) {
+            return false;
+        }
+
+        // Do not insert an EXIF segment if there is one after other metadata segments
+        boolean hasExif = hasExifSegment(input);
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(input.toPath())));
+                OutputStream out = new BufferedOutputStream(Files.newOutputStream(output.toPath()))) {
+
+            if (in.readUnsignedByte() != 0xFF || in.readUnsignedByte() != SOI) {
+                return false;
+            }
+            out.write(0xFF);
+            out.write(SOI);
+
+            boolean exifWritten = false;
+            while (true) {
+                int marker = readMarker(in);
+                if (marker < 0) {
+                    return false;
+                }
+                if (marker == SOS || (marker >= 0xD0 && marker <= 0xD9) || marker == 0x01) {
+                    // No (more) metadata segment. The rest is copied as is.
+                    if (!exifWritten && !hasExif) {
+                        writeExifSegment(out, rotate(1, angle));
+                    }
+                    out.write(0xFF);
+                    out.write(marker);
+                    break;
+                }
+                int length = in.readUnsignedShort();
+                if (length < 2) {
+                    return false;
+                }
+                byte[] data = new byte[length - 2];
+                in.readFully(data);
+
+                if (marker == APP1 && !exifWritten && isExif(data)) {
+                    if (!rotateOrientationTag(data, angle)) {
+                        data = addOrientationTag(data, rotate(1, angle));
+                        if (data == null) {
+                            return false;
+                        }
+                        length = data.length + 2;
+                    }
+                    exifWritten = true;
+                } else if (!exifWritten && !hasExif && marker != APP0) {
+                    // The inserted EXIF segment comes first (just after JFIF, if any)
+                    writeExifSegment(out, rotate(1, angle));
+                    exifWritten = true;
+                }
+                out.write(0xFF);
+                out.write(marker);
+                out.write(length >> 8);
+                out.write(length & 0xFF);
+                out.write(data);
+            }
+
+            in.transferTo(out);
+        } catch (EOFException e) {
+            // Truncated
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the EXIF orientation of the JPEG (1 to 8), 1 if it has none, -1 if it is not a JPEG. Only the
+     * metadata segments are read.
+     */
+    public static int getOrientation(InputStream stream) throws IOException {
+
+        DataInputStream in = new DataInputStream(stream);
+        try {
+            if (in.readUnsignedByte() != 0xFF || in.readUnsignedByte() != SOI) {
+                return -1;
+            }
+            byte[] data = readExifSegment(in);
+            if (data == null) {
+                return 1;
+            }
+            int offset = findOrientationTag(data);
+            if (offset < 0) {
+                return 1;
+            }
+            int value = readShort(data, offset + 8, data[6] == 'I');
+            return value >= 1 && value <= 8 ? value : 1;
+        } catch (EOFException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Returns true if the file is a JPEG with an EXIF segment. Only the metadata segments are read.
+     */
+    protected static boolean hasExifSegment(File file) throws IOException {
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            return in.readUnsignedByte() == 0xFF && in.readUnsignedByte() == SOI && readExifSegment(in) != null;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the metadata segments, just after SOI, until the EXIF one. Returns its content (after the length), or
+     * null if there is none.
+     */
+    protected static byte[] readExifSegment(DataInputStream in) throws IOException {
+
+        while (true) {
+            int marker = readMarker(in);
+            if (marker < 0 || marker == SOS || (marker >= 0xD0 && marker <= 0xD9) || marker == 0x01) {
+                return null;
+            }
+            int length = in.readUnsignedShort();
+            if (length < 2) {
+                return null;
+            }
+            if (marker == APP1) {
+                byte[] data = new byte[length - 2];
+                in.readFully(data);
+                if (isExif(data)) {
+                    return data;
+                }
+            } else {
+                in.skipNBytes(length - 2);
+            }
+        }
+    }
+
+    /**
+     * Reads the next marker, skipping fill bytes. Returns -1 if there is no marker here.
+     */
+    protected static int readMarker(DataInputStream in) throws IOException {
+
+        if (in.readUnsignedByte() != 0xFF) {
+            return -1;
+        }
+        int marker = in.readUnsignedByte();
+        while (marker == 0xFF) {
+            marker = in.readUnsignedByte();
+        }
+
+        return marker;
+    }
+
+    protected static boolean isExif(byte[] data) {
+
+        if (data.length < EXIF_HEADER.length + 8) {
+            return false;
+        }
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (data[i] != EXIF_HEADER[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the offset of IFD0 from the start of data (the APP1 segment), or -1 if it is invalid.
+     */
+    protected static int getIfd0(byte[] data) {
+
+        int tiff = EXIF_HEADER.length;
+        boolean littleEndian = data[tiff] == 'I';
+        if (!littleEndian && data[tiff] != 'M') {
+            return -1;
+        }
+        long ifd = readInt(data, tiff + 4, littleEndian) & 0xFFFFFFFFL;
+        if (ifd < 8 || tiff + ifd + 2 > data.length) {
+            return -1;
+        }
+        int entries = readShort(data, (int) (tiff + ifd), littleEndian);
+        if (tiff + ifd + 2 + entries * 12 + 4 > data.length) {
+            return -1;
+        }
+
+        return (int) (tiff + ifd);
+    }
+
+    /**
+     * Returns the offset, in data (the APP1 segment), of the orientation entry of IFD0, or -1.
+     */
+    protected static int findOrientationTag(byte[] data) {
+
+        int ifd = getIfd0(data);
+        if (ifd < 0) {
+            return -1;
+        }
+        boolean littleEndian = data[EXIF_HEADER.length] == 'I';
+        int entries = readShort(data, ifd, littleEndian);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (readShort(data, entry, littleEndian) == TAG_ORIENTATION) {
+                // Must be a SHORT
+                return readShort(data, entry + 2, littleEndian) == 3 ? entry : -1;
+            }
+        }
+
+        return -1;
+    }
+
+    protected static boolean rotateOrientationTag(byte[] data, int angle) {
+
+        int entry = findOrientationTag(data);
+        if (entry < 0) {
+            return false;
+        }
+        boolean littleEndian = data[EXIF_HEADER.length] == 'I';
+        writeShort(data, entry + 8, rotate(readShort(data, entry + 8, littleEndian), angle), littleEndian);
+
+        return true;
+    }
+
+    /**
+     * Returns a copy of data (the APP1 segment) with a new IFD0, holding the entries of the current one plus the
+     * orientation, appended at the end. Returns null if IFD0 is invalid or the segment would be too big.
+     */
+    protected static byte[] addOrientationTag(byte[] data, int orientation) {
+
+        int ifd = getIfd0(data);
+        if (ifd < 0) {
+            return null;
+        }
+        int tiff = EXIF_HEADER.length;
+        boolean littleEndian = data[tiff] == 'I';
+        int entries = readShort(data, ifd, littleEndian);
+
+        // IFDs start on a word boundary
+        int newIfd = data.length + ((data.length - tiff) % 2);
+        int newLength = newIfd + 2 + (entries + 1) * 12 + 4;
+        if (newLength + 2 > 0xFFFF) {
+            return null;
+        }
+
+        byte[] result = new byte[newLength];
+        System.arraycopy(data, 0, result, 0, data.length);
+        writeInt(result, tiff + 4, newIfd - tiff, littleEndian);
+        writeShort(result, newIfd, entries + 1, littleEndian);
+        int target = newIfd + 2;
+        boolean added = false;
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + i * 12;
+            // Entries are sorted by tag
+            if (!added && readShort(data, entry, littleEndian) > TAG_ORIENTATION) {
+                writeOrientationEntry(result, target, orientation, littleEndian);
+                target += 12;
+                added = true;
+            }
+            System.arraycopy(data, entry, result, target, 12);
+            target += 12;
+        }
+        if (!added) {
+            writeOrientationEntry(result, target, orientation, littleEndian);
+            target += 12;
+        }
+        // Offset of IFD1 (thumbnail), if any
+        System.arraycopy(data, ifd + 2 + entries * 12, result, target, 4);
+
+        return result;
+    }
+
+    protected static void writeOrientationEntry(byte[] data, int offset, int orientation, boolean littleEndian) {
+        writeShort(data, offset, TAG_ORIENTATION, littleEndian);
+        // SHORT, count 1, value and padding
+        writeShort(data, offset + 2, 3, littleEndian);
+        writeInt(data, offset + 4, 1, littleEndian);
+        writeShort(data, offset + 8, orientation, littleEndian);
+        writeShort(data, offset + 10, 0, littleEndian);
+    }
+
+    /**
+     * Writes an APP1 EXIF segment with a single tag in IFD0, the orientation
+     */
+    protected static void writeExifSegment(OutputStream out, int orientation) throws IOException {
+
+        byte[] segment = {
+                // Marker, length (2 + 6 + 8 + 2 + 12 + 4)
+                (byte) 0xFF, (byte) APP1, 0, 34,
+                // Exif header
+                'E', 'x', 'i', 'f', 0, 0,
+                // TIFF header, big endian, IFD0 at 8
+                'M', 'M', 0, 42, 0, 0, 0, 8,
+                // 1 entry: orientation, SHORT, count 1, value
+                0, 1, 0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0,
+                // No next IFD
+                0, 0, 0, 0 };
+        out.write(segment);
+    }
+
+    protected static int readShort(byte[] data, int offset, boolean littleEndian) {
+
+        int b0 = data[offset] & 0xFF;
+        int b1 = data[offset + 1] & 0xFF;
+
+        return littleEndian ? b0 | b1 << 8 : b0 << 8 | b1;
+    }
+
+    protected static int readInt(byte[] data, int offset, boolean littleEndian) {
+
+        int b0 = data[offset] & 0xFF;
+        int b1 = data[offset + 1] & 0xFF;
+        int b2 = data[offset + 2] & 0xFF;
+        int b3 = data[offset + 3] & 0xFF;
+
+        return littleEndian ? b0 | b1 << 8 | b2 << 16 | b3 << 24 : b0 << 24 | b1 << 16 | b2 << 8 | b3;
+    }
+
+    protected static void writeShort(byte[] data, int offset, int value, boolean littleEndian) {
+
+        if (littleEndian) {
+            data[offset] = (byte) value;
+            data[offset + 1] = (byte) (value >> 8);
+        } else {
+            data[offset] = (byte) (value >> 8);
+            data[offset + 1] = (byte) value;
+        }
+    }
+
+    protected static void writeInt(byte[] data, int offset, int value, boolean littleEndian) {
+
+        if (littleEndian) {
+            writeShort(data, offset, value & 0xFFFF, true);
+            writeShort(data, offset + 2, value >>> 16, true);
+        } else {
+            writeShort(data, offset, value >>> 16, false);
+            writeShort(data, offset + 2, value & 0xFFFF, false);
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.images;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Difference hash (dHash) of an image: a 64 bits fingerprint that changes very little when the image is re-encoded,
+ * resized or slightly retouched, so near-duplicates have hashes at a small Hamming distance (usually less than 10).
+ * <p>
+ * The image is decoded subsampled (see {@link ImageIOUtils#readToFit}), reduced to 9x8 gray pixels, and each bit tells
+ * if a pixel is brighter than its right neighbour.
+ *
+ * @since 2023
+ */
+public class PerceptualHash {
+
+    public static final int MAX_DISTANCE = 64;
+
+    protected static final int DECODE_SIZE = 64;
+
+    private PerceptualHash() {
+        // Static utility
+    }
+
+    /**
+     * Returns null if the image cannot be decoded
+     */
+    public static Long dHash(File file) throws IOException {
+
+        BufferedImage image = ImageIOUtils.readToFit(file, DECODE_SIZE, DECODE_SIZE);
+
+        return image == null ? null : dHash(image);
+    }
+
+    public static long dHash(BufferedImage image) {
+
+        if (image.getColorModel().hasAlpha()) {
+            image = ImageIOUtils.flatten(image);
+        }
+        BufferedImage small = ImageScaler.scale(image, 9, 8);
+
+        long hash = 0;
+        for (int y = 0; y < 8; y++) {
+            int left = gray(small.getRGB(0, y));
+            for (int x = 1; x < 9; x++) {
+                int right = gray(small.getRGB(x, y));
+                hash = (hash << 1) | (left > right ? 1 : 0);
+                left = right;
+            }
+        }
+
+        return hash;
+    }
+
+    public static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+
+    /**
+     * Returns the 16 characters, lowercase, hexadecimal value of the hash
+     */
+    public static String toHex(long hash) {
+        return String.format("%016x", hash);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the value is not a 64 bits hexadecimal value
+     */
+    public static long fromHex(String value) {
+
+        if (value == null || value.isBlank() || value.trim().length() > 16) {
+            throw new IllegalArgumentException("Invalid hash: " + value);
+        }
+        try {
+            return Long.parseUnsignedLong(value.trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid hash: " + value, e);
+        }
+    }
+
+    protected static int gray(int rgb) {
+        return (((rgb >> 16) & 0xff) * 299 + ((rgb >> 8) & 0xff) * 587 + (rgb & 0xff) * 114) / 1000;
+    }
+
+}
@@ -0,0 +1,508 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.images;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * An ordered list of transformation steps applied to an image, either as the arguments of a single ImageMagick
+ * <code>convert</code> call ({@link #toImageMagickArguments()}), or in the JVM in one decode/encode pass
+ * ({@link #apply(File, File, String, long)}).
+ * <p>
+ * Steps are separated by ";" or new lines, each one is <code>name:value</code>:
+ * <ul>
+ * <li><code>crop:WxH+X+Y</code>: the region of W x H pixels whose top-left corner is at X,Y (ImageMagick geometry)</li>
+ * <li><code>rotate:angle</code>: clockwise, in degrees. Other angles than multiples of 90 enlarge the image, the
+ * corners being filled with white</li>
+ * <li><code>resize:geometry</code>: <code>WxH</code> (fit in W x H, keeping the aspect ratio), <code>W</code>,
+ * <code>xH</code>, <code>WxH!</code> (exact size, ignoring the aspect ratio) or <code>N%</code></li>
+ * <li><code>format:ext</code>: the format of the result ("png", "jpg", ...)</li>
+ * </ul>
+ * For example: <code>crop:800x600+10+20; rotate:90; resize:400x400; format:png</code>
+ *
+ * @since 2023
+ */
+public class PictureTransformation {
+
+    public static final String CROP = "crop";
+
+    public static final String ROTATE = "rotate";
+
+    public static final String RESIZE = "resize";
+
+    public static final String FORMAT = "format";
+
+    protected static final Pattern CROP_GEOMETRY = Pattern.compile("(\\d+)x(\\d+)([+-]\\d+)([+-]\\d+)");
+
+    protected static final Pattern RESIZE_GEOMETRY = Pattern.compile("(\\d+)?(?:x(\\d+))?(!)?");
+
+    protected static final Pattern RESIZE_PERCENT = Pattern.compile("(\\d+(?:\\.\\d+)?)%");
+
+    // Plain decimal angle: no exponent, no hexadecimal, no NaN or Infinity, no "d" or "f" suffix
+    protected static final Pattern ROTATE_ANGLE = Pattern.compile("[+-]?\\d+(?:\\.\\d+)?");
+
+    public static class Step {
+
+        protected final String name;
+
+        protected final String value;
+
+        public Step(String name, String value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return name + ":" + value;
+        }
+    }
+
+    protected final List<Step> steps;
+
+    protected final String format;
+
+    protected PictureTransformation(List<Step> steps, String format) {
+        this.steps = steps;
+        this.format = format;
+    }
+
+    /**
+     * Parses and validates the steps.
+     *
+     * @throws IllegalArgumentException if a step is unknown or its value is invalid
+     */
+    public static PictureTransformation parse(String value) {
+
+        List<Step> steps = new ArrayList<>();
+        String format = null;
+        if (value != null) {
+            for (String token : value.split("[;\\n]")) {
+                token = token.trim();
+                if (token.isEmpty()) {
+                    continue;
+                }
+                int pos = token.indexOf(':');
+                if (pos < 1) {
+                    throw new IllegalArgumentException("Invalid step, expecting name:value: " + token);
+                }
+                String name = token.substring(0, pos).trim().toLowerCase();
+                String stepValue = token.substring(pos + 1).trim();
+                switch (name) {
+                case CROP:
+                    if (!CROP_GEOMETRY.matcher(stepValue).matches()) {
+                        throw new IllegalArgumentException("Invalid crop, expecting WxH+X+Y: " + stepValue);
+                    }
+                    break;
+                case ROTATE:
+                    if (!isValidAngle(stepValue)) {
+                        throw new IllegalArgumentException("Invalid rotation angle: " + stepValue);
+                    }
+                    break;
+                case RESIZE:
+                    if (!isValidResize(stepValue)) {
+                        throw new IllegalArgumentException(
+                                "Invalid resize, expecting WxH, W, xH, WxH! or N%, greater than 0: " + stepValue);
+                    }
+                    break;
+                case FORMAT:
+                    if (!stepValue.matches("[A-Za-z0-9]+")) {
+                        throw new IllegalArgumentException("Invalid format: " + stepValue);
+                    }
+                    // Not an image operation, the last one wins
+                    format = stepValue.toLowerCase();
+                    continue;
+                default:
+                    throw new IllegalArgumentException("Unknown step: " + name);
+                }
+                steps.add(new Step(name, stepValue));
+            }
+        }
+
+        return new PictureTransformation(steps, format);
+    }
+
+    protected static boolean isValidAngle(String value) {
+
+        return ROTATE_ANGLE.matcher(value).matches() && Double.isFinite(Double.parseDouble(value));
+    }
+
+    protected static boolean isValidResize(String value) {
+
+        Matcher percent = RESIZE_PERCENT.matcher(value);
+        if (percent.matches()) {
+            return Double.parseDouble(percent.group(1)) > 0;
+        }
+        Matcher m = RESIZE_GEOMETRY.matcher(value);
+        if (value.isEmpty() || !m.matches() || (m.group(1) == null && m.group(2) == null)
+                || (m.group(3) != null && (m.group(1) == null || m.group(2) == null))) {
+            return false;
+        }
+
+        return isValidDimension(m.group(1)) && isValidDimension(m.group(2));
+    }
+
+    /**
+     * A dimension not passed (null) is valid, else it must be an int greater than 0.
+     */
+    protected static boolean isValidDimension(String value) {
+
+        if (value == null) {
+            return true;
+        }
+        try {
+            return Integer.parseInt(value) > 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * The extension of the result, if a format step was passed, else null.
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * The arguments to insert between the input and the output file of an ImageMagick <code>convert</code> call.
+     * Crops are followed by <code>+repage</code>, so the next steps are not applied to the original canvas.
+     */
+    public List<String> toImageMagickArguments() {
+
+        List<String> args = new ArrayList<>();
+        for (Step step : steps) {
+            switch (step.getName()) {
+            case CROP:
+                args.add("-crop");
+                args.add(step.getValue());
+                args.add("+repage");
+                break;
+            case ROTATE:
+                args.add("-background");
+                args.add("white");
+                args.add("-rotate");
+                args.add(step.getValue());
+                break;
+            case RESIZE:
+                args.add("-resize");
+                args.add(step.getValue());
+                break;
+            default:
+                break;
+            }
+        }
+
+        return args;
+    }
+
+    /**
+     * Reads input, applies the steps and writes the result to output in the format given by fileExtension. If the
+     * first step is a crop, only the cropped region is decoded.
+     *
+     * @return false if ImageIO cannot read the input or write this format, or if the decoded image, or the result of
+     *         any of the steps, would have more than maxPixels pixels, in which case the content of output is undefined
+     * @throws IOException
+     */
+    public boolean apply(File input, File output, String fileExtension, long maxPixels) throws IOException {
+
+        if (!ImageIOUtils.canWrite(fileExtension)) {
+            return false;
+        }
+
+        BufferedImage image;
+        int first = 0;
+        try (ImageInputStream in = ImageIO.createImageInputStream(input)) {
+            if (in == null) {
+                return false;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return false;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                Rectangle bounds = new Rectangle(reader.getWidth(0), reader.getHeight(0));
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (!steps.isEmpty() && CROP.equals(steps.get(0).getName())) {
+                    bounds = getCropRegion(steps.get(0).getValue(), bounds.width, bounds.height);
+                    param.setSourceRegion(bounds);
+                    first = 1;
+                }
+                if (!fits(bounds.getSize(), first, maxPixels)) {
+                    return false;
+                }
+                image = reader.read(0, param);
+            } catch (IOException | RuntimeException e) {
+                // Unsupported variant of a known format (CMYK jpeg, ...)
+                return false;
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        for (int i = first; i < steps.size(); i++) {
+            image = apply(steps.get(i), image);
+        }
+
+        return ImageIOUtils.write(image, fileExtension, output);
+    }
+
+    /**
+     * Checks, before decoding anything, that the image and the result of each step, starting at the step first, have
+     * at most maxPixels pixels.
+     */
+    protected boolean fits(Dimension size, int first, long maxPixels) {
+
+        if ((long) size.width * size.height > maxPixels) {
+            return false;
+        }
+        for (int i = first; i < steps.size(); i++) {
+            size = getSize(steps.get(i), size);
+            if ((long) size.width * size.height > maxPixels) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * The size of the result of the step applied to an image of this size.
+     */
+    protected static Dimension getSize(Step step, Dimension size) {
+
+        switch (step.getName()) {
+        case CROP:
+            return getCropRegion(step.getValue(), size.width, size.height).getSize();
+        case ROTATE:
+            return getRotatedSize(size.width, size.height, Double.parseDouble(step.getValue()));
+        case RESIZE:
+            return getResizedSize(size.width, size.height, step.getValue());
+        default:
+            return size;
+        }
+    }
+
+    /**
+     * Applies the steps to the image, in memory.
+     */
+    public BufferedImage apply(BufferedImage image) {
+
+        for (Step step : steps) {
+            image = apply(step, image);
+        }
+
+        return image;
+    }
+
+    protected BufferedImage apply(Step step, BufferedImage image) {
+
+        switch (step.getName()) {
+        case CROP:
+            Rectangle region = getCropRegion(step.getValue(), image.getWidth(), image.getHeight());
+            return image.getSubimage(region.x, region.y, region.width, region.height);
+        case ROTATE:
+            return rotate(image, Double.parseDouble(step.getValue()));
+        case RESIZE:
+            return resize(image, step.getValue());
+        default:
+            return image;
+        }
+    }
+
+    /**
+     * The crop geometry, restricted to the image, as ImageMagick does.
+     *
+     * @throws IllegalArgumentException if the region is outside the image
+     */
+    public static Rectangle getCropRegion(String geometry, int imageWidth, int imageHeight) {
+
+        Rectangle result = parseCropGeometry(geometry).intersection(new Rectangle(imageWidth, imageHeight));
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "Crop region " + geometry + " is outside the image (" + imageWidth + "x" + imageHeight + ")");
+        }
+
+        return result;
+    }
+
+    /**
+     * Parses a WxH+X+Y geometry.
+     *
+     * @throws IllegalArgumentException if the geometry is invalid
+     */
+    public static Rectangle parseCropGeometry(String geometry) {
+
+        Matcher m = CROP_GEOMETRY.matcher(geometry.trim());
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Invalid crop, expecting WxH+X+Y: " + geometry);
+        }
+
+        return new Rectangle(Integer.parseInt(m.group(3).replace("+", "")),
+                Integer.parseInt(m.group(4).replace("+", "")), Integer.parseInt(m.group(1)),
+                Integer.parseInt(m.group(2)));
+    }
+
+    protected static double normalizeAngle(double angle) {
+        return ((angle % 360) + 360) % 360;
+    }
+
+    /**
+     * The size of the image rotated by angle, enlarged to contain the rotated image.
+     */
+    protected static Dimension getRotatedSize(int width, int height, double angle) {
+
+        double normalized = normalizeAngle(angle);
+        double radians = Math.toRadians(normalized);
+        double sin = Math.abs(Math.sin(radians));
+        double cos = Math.abs(Math.cos(radians));
+        // Exact sizes for right angles
+        if (normalized % 90 == 0) {
+            sin = Math.round(sin);
+            cos = Math.round(cos);
+        }
+
+        return new Dimension(toSize(width * cos + height * sin), toSize(width * sin + height * cos));
+    }
+
+    protected static BufferedImage rotate(BufferedImage image, double angle) {
+
+        double normalized = normalizeAngle(angle);
+        if (normalized == 0) {
+            return image;
+        }
+
+        double radians = Math.toRadians(normalized);
+        Dimension size = getRotatedSize(image.getWidth(), image.getHeight(), angle);
+        int width = size.width;
+        int height = size.height;
+
+        boolean hasAlpha = image.getColorModel().hasAlpha();
+        BufferedImage result = new BufferedImage(width, height,
+                hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = result.createGraphics();
+        try {
+            if (!hasAlpha) {
+                g2d.setColor(Color.WHITE);
+                g2d.fillRect(0, 0, width, height);
+            }
+            if (normalized % 90 != 0) {
+                g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            }
+            AffineTransform transform = new AffineTransform();
+            transform.translate(width / 2.0, height / 2.0);
+            transform.rotate(radians);
+            transform.translate(-image.getWidth() / 2.0, -image.getHeight() / 2.0);
+            g2d.drawImage(image, transform, null);
+        } finally {
+            g2d.dispose();
+        }
+
+        return result;
+    }
+
+    protected static BufferedImage resize(BufferedImage image, String geometry) {
+
+        Dimension size = getResizedSize(image.getWidth(), image.getHeight(), geometry);
+
+        return ImageScaler.scale(image, size.width, size.height);
+    }
+
+    /**
+     * The size of the image resized to geometry, as ImageMagick does (and {@link ImageScaler#scaleToFit} for
+     * <code>WxH</code>).
+     */
+    protected static Dimension getResizedSize(int width, int height, String geometry) {
+
+        Matcher percent = RESIZE_PERCENT.matcher(geometry);
+        if (percent.matches()) {
+            double ratio = Double.parseDouble(percent.group(1)) / 100;
+            return new Dimension(toSize(width * ratio), toSize(height * ratio));
+        }
+
+        Matcher m = RESIZE_GEOMETRY.matcher(geometry);
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Invalid resize: " + geometry);
+        }
+        if (m.group(3) != null) {
+            return new Dimension(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)));
+        }
+        int maxWidth = m.group(1) == null ? Integer.MAX_VALUE : Integer.parseInt(m.group(1));
+        int maxHeight = m.group(2) == null ? Integer.MAX_VALUE : Integer.parseInt(m.group(2));
+        double ratio = Math.min((double) maxWidth / width, (double) maxHeight / height);
+
+        return new Dimension(toSize(width * ratio), toSize(height * ratio));
+    }
+
+    /**
+     * Rounds a computed width or height, at least 1, at most Integer.MAX_VALUE
+     */
+    protected static int toSize(double value) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.round(value)));
+    }
+
+    @Override
+    public String toString() {
+
+        List<String> all = new ArrayList<>();
+        for (Step step : steps) {
+            all.add(step.toString());
+        }
+        if (format != null) {
+            all.add(FORMAT + ":" + format);
+        }
+
+        return String.join("; ", all);
+    }
+
+}
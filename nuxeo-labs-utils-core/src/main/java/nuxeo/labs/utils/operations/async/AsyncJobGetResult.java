@@ -0,0 +1,73 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.operations.async;
+
+import java.util.List;
+
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+import nuxeo.labs.utils.async.AsyncJobs;
+
+/**
+ * Returns a blob returned by a job queued with {@link RunOperationAsync}
+ *
+ * @since 2023
+ */
+@Operation(id = AsyncJobGetResult.ID, category = Constants.CAT_SERVICES, label = "Async Job Get Result", description = ""
+        + "Returns the blob returned by the operation of a completed job (queued with Labs.RunOperationAsync). "
+        + "When the operation returned a list of blobs, index (default 0) selects the blob. "
+        + "Fails if the job is unknown, not completed, failed, or did not return a blob (for a document, see "
+        + "documentId in Labs.AsyncJobGetStatus).")
+public class AsyncJobGetResult {
+
+    public static final String ID = "Labs.AsyncJobGetResult";
+
+    @Context
+    protected CoreSession session;
+
+    @Param(name = "jobId", required = true)
+    protected String jobId;
+
+    @Param(name = "index", required = false)
+    protected Integer index = 0;
+
+    @OperationMethod
+    public Blob run() {
+
+        String status = AsyncJobs.getStatus(jobId, session.getPrincipal());
+        if (!AsyncJobs.STATUS_COMPLETED.equals(status)) {
+            throw new NuxeoException("Job " + jobId + " is " + status);
+        }
+
+        List<Blob> blobs = AsyncJobs.getStore().getBlobs(jobId);
+        int i = index == null ? 0 : index;
+        if (blobs == null || i < 0 || i >= blobs.size()) {
+            throw new NuxeoException("No blob #" + i + " in the result of job " + jobId);
+        }
+
+        return blobs.get(i);
+    }
+}
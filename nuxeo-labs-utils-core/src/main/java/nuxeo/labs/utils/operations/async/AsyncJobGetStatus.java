@@ -0,0 +1,89 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.operations.async;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.transientstore.api.TransientStore;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import nuxeo.labs.utils.async.AsyncJobs;
+
+/**
+ * Returns the status of a job queued with {@link RunOperationAsync}
+ *
+ * @since 2023
+ */
+@Operation(id = AsyncJobGetStatus.ID, category = Constants.CAT_SERVICES, label = "Async Job Get Status", description = ""
+        + "Returns a JSON blob with the status of a job queued with Labs.RunOperationAsync: {jobId, status, "
+        + "operationId, created, started, completed, error, documentId, blobCount}. status is scheduled, running, "
+        + "completed, failed or unknown (no such job, expired, or queued by another user). Dates are in "
+        + "milliseconds since epoch. documentId is set when the operation returned a document, blobCount is the "
+        + "number of blobs it returned.")
+public class AsyncJobGetStatus {
+
+    public static final String ID = "Labs.AsyncJobGetStatus";
+
+    protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Context
+    protected CoreSession session;
+
+    @Param(name = "jobId", required = true)
+    protected String jobId;
+
+    @OperationMethod
+    public Blob run() throws IOException {
+
+        ObjectNode result = MAPPER.createObjectNode();
+        result.put("jobId", jobId);
+        if (!AsyncJobs.canAccess(jobId, session.getPrincipal())) {
+            result.put("status", AsyncJobs.STATUS_UNKNOWN);
+            return Blobs.createJSONBlob(MAPPER.writeValueAsString(result));
+        }
+
+        TransientStore store = AsyncJobs.getStore();
+        for (String param : List.of(AsyncJobs.PARAM_STATUS, AsyncJobs.PARAM_OPERATION_ID, AsyncJobs.PARAM_CREATED,
+                AsyncJobs.PARAM_STARTED, AsyncJobs.PARAM_COMPLETED, AsyncJobs.PARAM_ERROR,
+                AsyncJobs.PARAM_DOCUMENT_ID)) {
+            Serializable value = store.getParameter(jobId, param);
+            if (value instanceof Long) {
+                result.put(param, (Long) value);
+            } else if (value != null) {
+                result.put(param, value.toString());
+            }
+        }
+        List<Blob> blobs = store.getBlobs(jobId);
+        result.put("blobCount", blobs == null ? 0 : blobs.size());
+
+        return Blobs.createJSONBlob(MAPPER.writeValueAsString(result));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.operations.async;
+
+import java.io.IOException;
+
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.BlobList;
+import org.nuxeo.ecm.automation.core.util.Properties;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import nuxeo.labs.utils.async.AsyncJobs;
+
+/**
+ * Queues an operation in the nxlabsAsync WorkManager queue, see {@link AsyncJobs}
+ *
+ * @since 2023
+ */
+@Operation(id = RunOperationAsync.ID, category = Constants.CAT_SERVICES, label = "Run Operation Async", description = ""
+        + "Queues operationId, with its parameters and the input (none, a blob, a list of blobs or a document), in "
+        + "the nxlabsAsync WorkManager queue, and returns immediately a JSON blob with the jobId. The operation runs "
+        + "as the current user. Use Labs.AsyncJobGetStatus and Labs.AsyncJobGetResult to follow the job and get its "
+        + "result. Only the operations listed in the nuxeo.labs.utils.async.operations configuration parameter can "
+        + "be queued (default: Labs.PictureCrop, Labs.PictureRotate, Labs.PictureTransform, Labs.ConcatenateImages "
+        + "and Labs.VideoAddToTranscodedVideos).")
+public class RunOperationAsync {
+
+    public static final String ID = "Labs.RunOperationAsync";
+
+    protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Context
+    protected CoreSession session;
+
+    @Param(name = "operationId", required = true)
+    protected String operationId;
+
+    @Param(name = "parameters", required = false)
+    protected Properties parameters;
+
+    @OperationMethod
+    public Blob run() throws IOException {
+        return submit(null);
+    }
+
+    @OperationMethod
+    public Blob run(Blob input) throws IOException {
+        return submit(input);
+    }
+
+    @OperationMethod
+    public Blob run(BlobList input) throws IOException {
+        return submit(input);
+    }
+
+    @OperationMethod
+    public Blob run(DocumentModel input) throws IOException {
+        return submit(input);
+    }
+
+    protected Blob submit(Object input) throws IOException {
+
+        String jobId = AsyncJobs.submit(session, operationId, parameters, input);
+
+        ObjectNode result = MAPPER.createObjectNode();
+        result.put("jobId", jobId);
+        result.put("operationId", operationId);
+        result.put("status", AsyncJobs.STATUS_SCHEDULED);
+
+        return Blobs.createJSONBlob(MAPPER.writeValueAsString(result));
+    }
+}
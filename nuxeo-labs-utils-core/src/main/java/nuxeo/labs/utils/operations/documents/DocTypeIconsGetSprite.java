@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.operations.documents;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.StringList;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import nuxeo.labs.utils.DocTypeIconSprite;
+import nuxeo.labs.utils.DocTypeIconThumbnailFactory;
+
+/**
+ * Returns the doc type icons in a single JSON, so a listing can display them without one request per row
+ *
+ * @since 2023
+ */
+@Operation(id = DocTypeIconsGetSprite.ID, category = Constants.CAT_DOCUMENT, label = "Get Doc Type Icons Sprite", description = ""
+        + "Return a JSON blob with the icons of document types, each one resized to fit in a size x size square (default 32). "
+        + "The doc types are the ones passed in docTypes, or the types of the input documents, or every doc type cached by "
+        + "the icon thumbnail factory. With mode=sprite (default), the JSON has the sprite image as a base64 data URI and the "
+        + "position of each doc type icon: {size, width, height, digest, image, icons: {docType: {x, y, width, height}}}. "
+        + "With mode=dataUri, each icon is returned as a base64 data URI: {size, icons: {docType: dataUri}}.")
+public class DocTypeIconsGetSprite {
+
+    public static final String ID = "Labs.DocTypeIconsGetSprite";
+
+    public static final int DEFAULT_SIZE = 32;
+
+    public static final String MODE_SPRITE = "sprite";
+
+    public static final String MODE_DATA_URI = "dataUri";
+
+    protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Param(name = "size", required = false)
+    protected Integer size = DEFAULT_SIZE;
+
+    @Param(name = "mode", required = false)
+    protected String mode = MODE_SPRITE;
+
+    @Param(name = "docTypes", required = false)
+    protected StringList docTypes;
+
+    @OperationMethod
+    public Blob run() throws IOException {
+        return build(docTypes);
+    }
+
+    @OperationMethod
+    public Blob run(DocumentModelList input) throws IOException {
+
+        if (docTypes != null && !docTypes.isEmpty()) {
+            return build(docTypes);
+        }
+
+        Collection<String> types = new TreeSet<>();
+        for (DocumentModel doc : input) {
+            types.add(doc.getType());
+        }
+
+        return build(types);
+    }
+
+    protected Blob build(Collection<String> types) throws IOException {
+
+        int iconSize = size == null ? DEFAULT_SIZE : size;
+        DocTypeIconThumbnailFactory factory = new DocTypeIconThumbnailFactory();
+
+        ObjectNode result = MAPPER.createObjectNode();
+        result.put("size", iconSize);
+        ObjectNode icons = MAPPER.createObjectNode();
+
+        if (StringUtils.isBlank(mode) || MODE_SPRITE.equals(mode)) {
+            DocTypeIconSprite sprite = factory.getSprite(types, iconSize);
+            Blob image = sprite.getImage();
+            result.put("width", sprite.getWidth());
+            result.put("height", sprite.getHeight());
+            result.put("digest", image.getDigest());
+            result.put("image", toDataUri(image));
+            for (Map.Entry<String, Rectangle> entry : sprite.getIcons().entrySet()) {
+                Rectangle cell = entry.getValue();
+                ObjectNode icon = icons.putObject(entry.getKey());
+                icon.put("x", cell.x);
+                icon.put("y", cell.y);
+                icon.put("width", cell.width);
+                icon.put("height", cell.height);
+            }
+        } else if (MODE_DATA_URI.equals(mode)) {
+            if (types == null || types.isEmpty()) {
+                types = DocTypeIconThumbnailFactory.getCachedDocTypes();
+            }
+            for (String docType : types) {
+                icons.put(docType, toDataUri(factory.getDocTypeThumbnail(docType, iconSize)));
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+        result.set("icons", icons);
+
+        return Blobs.createJSONBlob(MAPPER.writeValueAsString(result));
+    }
+
+    protected static String toDataUri(Blob blob) throws IOException {
+        return "data:" + blob.getMimeType() + ";base64," + Base64.getEncoder().encodeToString(blob.getByteArray());
+    }
+}
@@ -18,14 +18,28 @@
  */
 package nuxeo.labs.utils.operations.documents;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
 import org.nuxeo.ecm.automation.core.Constants;
 import org.nuxeo.ecm.automation.core.annotations.Context;
 import org.nuxeo.ecm.automation.core.annotations.Operation;
 import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.BlobList;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.core.api.thumbnail.ThumbnailService;
+import org.nuxeo.ecm.core.blob.ManagedBlob;
+
+import nuxeo.labs.utils.DocTypeIconThumbnailFactory;
+import nuxeo.labs.utils.ParallelTasks;
 
 /**
  * Return the the thumbnail of the input document
@@ -33,7 +47,12 @@ import org.nuxeo.ecm.core.api.thumbnail.ThumbnailService;
  * @since 2021.27
  */
 @Operation(id = DocumentGetThumbnail.ID, category = Constants.CAT_DOCUMENT, label = "Get Thumbnail", description = ""
-        + "Return the thumbnail of the input document.")
+        + "Return the thumbnail of the input document. "
+        + "If size is passed and the document has no thumbnail, returns the icon of its document type resized "
+        + "to fit in a size x size square. "
+        + "With a list of documents, returns the list of thumbnails in the same order (the icon of the document "
+        + "type for documents without thumbnail), their binaries fetched in parallel (at most parallelism at a "
+        + "time, default 4).")
 public class DocumentGetThumbnail {
 
     public static final String ID = "Labs.DocumentGetThumbnail";
@@ -44,9 +63,95 @@ public class DocumentGetThumbnail {
     @Context
     protected ThumbnailService thumbnailService;
 
+    @Param(name = "size", required = false)
+    protected Integer size;
+
+    @Param(name = "parallelism", required = false)
+    protected Integer parallelism = ParallelTasks.DEFAULT_PARALLELISM;
+
     @OperationMethod
     public Blob run(DocumentModel input) {
 
-        return thumbnailService.getThumbnail(input, session);
+        return getThumbnail(session, thumbnailService, input, size);
+    }
+
+    @OperationMethod
+    public BlobList run(DocumentModelList input) {
+
+        BlobList result = new BlobList();
+        List<Blob> thumbnails = getThumbnails(session, thumbnailService, input, size, parallelism, true);
+        DocTypeIconThumbnailFactory factory = new DocTypeIconThumbnailFactory();
+        for (int i = 0; i < input.size(); i++) {
+            Blob blob = thumbnails.get(i);
+            if (blob == null) {
+                // Keep the positions, so result.get(i) is the thumbnail of input.get(i)
+                DocumentModel doc = input.get(i);
+                blob = size != null && size > 0 ? factory.getDefaultThumbnail(doc, size)
+                        : factory.getDefaultThumbnail(doc);
+            }
+            result.add(blob);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the thumbnail given by the ThumbnailService (so the factory of the document type is used). If size is
+     * passed and this thumbnail is the icon of the document type, returns the icon resized to fit in size x size.
+     */
+    public static Blob getThumbnail(CoreSession session, ThumbnailService thumbnailService, DocumentModel doc,
+            Integer size) {
+
+        Blob thumbnail = thumbnailService.getThumbnail(doc, session);
+        if (size != null && size > 0) {
+            DocTypeIconThumbnailFactory factory = new DocTypeIconThumbnailFactory();
+            if (factory.isDocTypeThumbnail(thumbnail, doc)) {
+                return factory.getDefaultThumbnail(doc, size);
+            }
+        }
+
+        return thumbnail;
+    }
+
+    /**
+     * Returns the thumbnails of the documents, in the same order (a thumbnail can be null).
+     * <p>
+     * Thumbnails are resolved with the session of the caller, in its thread and transaction. Documents of the same
+     * type share the same cached icon when the ThumbnailFactory is a {@link DocTypeIconThumbnailFactory}.
+     * <br>
+     * If prefetch is true, the binaries are then fetched from the BinaryManager (useful with a remote blob store), at
+     * most parallelism at a time on the pool of {@link ParallelTasks} shared by the node, so they can be read right
+     * away. Fetching a binary does not need a session.
+     *
+     * @since 2023
+     */
+    public static List<Blob> getThumbnails(CoreSession session, ThumbnailService thumbnailService,
+            List<DocumentModel> docs, Integer size, Integer parallelism, boolean prefetch) {
+
+        List<Blob> result = new ArrayList<>(docs.size());
+        List<ManagedBlob> toFetch = new ArrayList<>();
+        for (DocumentModel doc : docs) {
+            Blob blob = getThumbnail(session, thumbnailService, doc, size);
+            result.add(blob);
+            if (prefetch && blob instanceof ManagedBlob) {
+                toFetch.add((ManagedBlob) blob);
+            }
+        }
+
+        List<Callable<File>> tasks = new ArrayList<>(toFetch.size());
+        for (ManagedBlob blob : toFetch) {
+            // Makes the BinaryManager download the binary to its local cache if needed
+            tasks.add(blob::getFile);
+        }
+        try {
+            ParallelTasks.invokeAll(tasks, parallelism);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException(e);
+        } catch (ExecutionException e) {
+            throw new NuxeoException("Error fetching the thumbnails", e.getCause());
+        }
+
+        return result;
     }
 }
@@ -0,0 +1,113 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.operations.documents;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
+import org.nuxeo.ecm.core.api.thumbnail.ThumbnailService;
+
+import nuxeo.labs.utils.ParallelTasks;
+
+/**
+ * Return the thumbnails of the input documents in a single zip
+ * 
+ * @since 2023
+ */
+@Operation(id = DocumentGetThumbnailsZip.ID, category = Constants.CAT_DOCUMENT, label = "Get Thumbnails as Zip", description = ""
+        + "Return a zip containing the thumbnails of the input documents. Each entry is named docId-thumbnailFileName. "
+        + "Thumbnails are resolved in the caller transaction, their binaries are fetched in parallel (at most "
+        + "parallelism at a time, default 4), then they are streamed to the zip. "
+        + "If size is passed, documents without thumbnail get the icon of their type resized to fit in a size x size "
+        + "square. fileName is the name of the zip (default thumbnails.zip). Documents without thumbnail are skipped.")
+public class DocumentGetThumbnailsZip {
+
+    public static final String ID = "Labs.DocumentGetThumbnailsZip";
+
+    public static final String DEFAULT_FILE_NAME = "thumbnails.zip";
+
+    @Context
+    protected CoreSession session;
+
+    @Context
+    protected ThumbnailService thumbnailService;
+
+    @Param(name = "size", required = false)
+    protected Integer size;
+
+    @Param(name = "parallelism", required = false)
+    protected Integer parallelism = ParallelTasks.DEFAULT_PARALLELISM;
+
+    @Param(name = "fileName", required = false)
+    protected String fileName;
+
+    @OperationMethod
+    public Blob run(DocumentModelList input) throws IOException {
+
+        List<Blob> thumbnails = DocumentGetThumbnail.getThumbnails(session, thumbnailService, input, size,
+                parallelism, true);
+
+        Blob zip = Blobs.createBlobWithExtension(".zip");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip.getFile()))) {
+            for (int i = 0; i < input.size(); i++) {
+                Blob thumbnail = thumbnails.get(i);
+                if (thumbnail == null) {
+                    continue;
+                }
+                String entryName = input.get(i).getId() + "-"
+                        + StringUtils.defaultIfBlank(thumbnail.getFilename(), "thumbnail");
+                out.putNextEntry(new ZipEntry(entryName));
+                try (InputStream in = thumbnail.getStream()) {
+                    IOUtils.copy(in, out);
+                }
+                out.closeEntry();
+            }
+        }
+        zip.setMimeType("application/zip");
+        zip.setFilename(StringUtils.defaultIfBlank(fileName, DEFAULT_FILE_NAME));
+
+        return zip;
+    }
+
+    @OperationMethod
+    public Blob run(DocumentModel input) throws IOException {
+
+        DocumentModelList docs = new DocumentModelListImpl();
+        docs.add(input);
+
+        return run(docs);
+    }
+}
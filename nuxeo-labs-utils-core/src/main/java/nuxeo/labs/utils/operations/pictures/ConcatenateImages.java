@@ -18,11 +18,16 @@
  */
 package nuxeo.labs.utils.operations.pictures;
 
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -35,10 +40,19 @@ import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
 import org.nuxeo.ecm.automation.core.annotations.Param;
 import org.nuxeo.ecm.automation.core.util.BlobList;
 import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CloseableFile;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
 import org.nuxeo.ecm.core.api.blobholder.SimpleBlobHolder;
 import org.nuxeo.ecm.core.convert.api.ConversionService;
+import org.nuxeo.runtime.api.Framework;
+
+import nuxeo.labs.utils.ParallelTasks;
+import nuxeo.labs.utils.images.ContactSheet;
+import nuxeo.labs.utils.images.ImageConcatenator;
+import nuxeo.labs.utils.images.ImageIOUtils;
 
 /**
  * Return the ImageInfo in the nxlabs_ImageInfo context variable
@@ -49,6 +63,15 @@ import org.nuxeo.ecm.core.convert.api.ConversionService;
         + "Concatenates images found at files:files. "
         + "destMimeType is required, and so is targetFileName, which must also contains the file extension. "
         + "concatHorizontally is optional. By default, concatenation is vertical. "
+        + "engine is optional: imagemagick (default) or java. With java, images are appended in the JVM with ImageIO, "
+        + "no process is forked. Formats (or sizes) the java engine cannot handle are concatenated with ImageMagick. "
+        + "groupSize is optional: the maximum number of images concatenated in one step (default 100, see "
+        + "nuxeo.labs.utils.concatenate.maxImagesPerCall). When there are more images, they are split in balanced groups, "
+        + "concatenated concurrently (at most parallelism at a time, default 4, on a pool shared by the node, see "
+        + "nuxeo.labs.utils.parallel.maxThreads), then the partial results are concatenated. "
+        + "columns is optional: when passed, the images are laid out in a grid (contact sheet) of columns x n rows, "
+        + "each one reduced to fit in a cellWidth x cellHeight cell (default 256 x 256), cells separated by spacing "
+        + "pixels (default 0). "
         + "If there is only one blob, it is returned unchanged, not converted.")
 public class ConcatenateImages {
 
@@ -58,6 +81,23 @@ public class ConcatenateImages {
 
     public static final String DEFAULT_XPATH = "files:files";
 
+    public static final String ENGINE_IMAGEMAGICK = "imagemagick";
+
+    public static final String ENGINE_JAVA = "java";
+
+    public static final String JAVA_MAX_IN_MEMORY_PIXELS_PROPERTY = "nuxeo.labs.utils.concatenate.java.maxInMemoryPixels";
+
+    public static final String MAX_IMAGES_PER_CALL_PROPERTY = "nuxeo.labs.utils.concatenate.maxImagesPerCall";
+
+    public static final int DEFAULT_MAX_IMAGES_PER_CALL = 100;
+
+    public static final int DEFAULT_CELL_SIZE = 256;
+
+    // Partial results are lossless, whatever the final format
+    protected static final String INTERMEDIATE_FILE_NAME = "partial.png";
+
+    protected static final String INTERMEDIATE_MIME_TYPE = "image/png";
+
     @Context
     ConversionService conversionService;
 
@@ -70,6 +110,27 @@ public class ConcatenateImages {
     @Param(name = "concatHorizontally", required = false)
     protected Boolean concatHorizontally = false;
 
+    @Param(name = "engine", required = false)
+    protected String engine = ENGINE_IMAGEMAGICK;
+
+    @Param(name = "groupSize", required = false)
+    protected Integer groupSize;
+
+    @Param(name = "parallelism", required = false)
+    protected Integer parallelism = ParallelTasks.DEFAULT_PARALLELISM;
+
+    @Param(name = "columns", required = false)
+    protected Integer columns;
+
+    @Param(name = "cellWidth", required = false)
+    protected Integer cellWidth;
+
+    @Param(name = "cellHeight", required = false)
+    protected Integer cellHeight;
+
+    @Param(name = "spacing", required = false)
+    protected Integer spacing;
+
     @OperationMethod
     public Blob run(DocumentModel input) {
 
@@ -98,6 +159,10 @@ public class ConcatenateImages {
             return null;
         }
 
+        if (columns != null && columns > 0) {
+            return contactSheet(blobs);
+        }
+
         if (blobs.size() == 1) {
             // Check if we must convert. We convert if file extension or mimetype are not the same
             Blob blob = blobs.get(0);
@@ -114,10 +179,7 @@ public class ConcatenateImages {
             String mimeType = blob.getMimeType();
             Blob convertedBlob = null;
             if(!StringUtils.equals(ext, destExt) || !StringUtils.equals(mimeType, destMimeType)) {
-                Map<String, Serializable> params = new HashMap<>();
-                params.put("targetFileName", targetFileName);
-                BlobHolder holder = conversionService.convert("simpleConverterByFileName", new SimpleBlobHolder(blob), params);
-                convertedBlob = holder.getBlob();
+                convertedBlob = convertToTargetFile(blob);
             } else {
                 convertedBlob = blob;
             }
@@ -125,31 +187,261 @@ public class ConcatenateImages {
             return convertedBlob;
         }
 
-        // Concat first 2 ones
-        result = concatenate(blobs.get(0), blobs.get(1));
-        // Now the others
-        for (int i = 2; i < blobs.size(); i++) {
-            result = concatenate(result, blobs.get(i));
+        if (StringUtils.isNotBlank(engine) && !StringUtils.equalsAny(engine, ENGINE_IMAGEMAGICK, ENGINE_JAVA)) {
+            throw new IllegalArgumentException("Unknown engine: " + engine);
+        }
+
+        int maxPerCall = getGroupSize();
+        if (blobs.size() > maxPerCall) {
+            result = concatenateInGroups(blobs, maxPerCall);
+        } else {
+            result = concatenateOnce(blobs, targetFileName, destMimeType);
         }
 
         return result;
     }
 
-    protected Blob concatenate(Blob b1, Blob b2) {
+    /**
+     * Concatenates the blobs in stages, each call handling at most groupSize images. The blobs are split in balanced
+     * groups, the groups are concatenated concurrently (at most parallelism at a time, on the pool of
+     * {@link ParallelTasks} shared by the node) as lossless png, then the partial results are concatenated the same
+     * way, until there are no more than groupSize of them.
+     * 
+     * @since 2023
+     */
+    protected Blob concatenateInGroups(List<Blob> blobs, int groupSize) {
+
+        try {
+            List<Blob> current = blobs;
+            while (current.size() > groupSize) {
+                List<Callable<Blob>> tasks = new ArrayList<>();
+                for (List<Blob> group : splitInGroups(current, groupSize)) {
+                    tasks.add(() -> concatenateOnce(group, INTERMEDIATE_FILE_NAME, INTERMEDIATE_MIME_TYPE));
+                }
+                current = ParallelTasks.invokeAll(tasks, parallelism);
+            }
+
+            return concatenateOnce(current, targetFileName, destMimeType);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException(e);
+        } catch (ExecutionException e) {
+            throw new NuxeoException("Error concatenating " + blobs.size() + " images", e.getCause());
+        }
+    }
+
+    /**
+     * Builds a grid of columns x n rows, each image being reduced to fit in a cellWidth x cellHeight cell. Images are
+     * read subsampled and reduced concurrently (at most parallelism at a time, on the shared pool), so they are never
+     * in memory at full resolution. Images ImageIO cannot read are converted with ImageMagick first.
+     * 
+     * @since 2023
+     */
+    protected Blob contactSheet(List<Blob> blobs) {
+
+        int width = cellWidth == null || cellWidth < 1 ? DEFAULT_CELL_SIZE : cellWidth;
+        int height = cellHeight == null || cellHeight < 1 ? width : cellHeight;
+        ContactSheet sheet = new ContactSheet(blobs.size(), columns, width, height,
+                spacing == null ? 0 : Math.max(0, spacing), getJavaMaxInMemoryPixels());
+
+        try {
+            List<Callable<BufferedImage>> tasks = new ArrayList<>(blobs.size());
+            for (Blob blob : blobs) {
+                tasks.add(() -> readCell(blob, width, height));
+            }
+            List<BufferedImage> cells = ParallelTasks.invokeAll(tasks, parallelism);
+            for (int i = 0; i < cells.size(); i++) {
+                BufferedImage cell = cells.get(i);
+                if (cell == null) {
+                    log.warn("Cannot read image " + blobs.get(i).getFilename() + ", its cell is left empty");
+                    continue;
+                }
+                sheet.draw(i, cell);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException(e);
+        } catch (ExecutionException e) {
+            throw new NuxeoException("Error building the contact sheet", e.getCause());
+        }
+
+        try {
+            String destExt = FilenameUtils.getExtension(targetFileName);
+            Blob result = Blobs.createBlobWithExtension("." + destExt);
+            if (!ImageIOUtils.write(sheet.getImage(), destExt, result.getFile())) {
+                // No ImageIO writer for this format
+                Blob png = Blobs.createBlobWithExtension(".png");
+                ImageIOUtils.write(sheet.getImage(), "png", png.getFile());
+                png.setMimeType("image/png");
+                result = convertToTargetFile(png);
+            }
+            result.setFilename(targetFileName);
+            result.setMimeType(destMimeType);
+
+            return result;
+
+        } catch (IOException e) {
+            throw new NuxeoException("Error writing the contact sheet", e);
+        }
+    }
+
+    protected BufferedImage readCell(Blob blob, int width, int height) throws IOException {
 
-        List<Blob> twoBlobs = new ArrayList<Blob>();
-        twoBlobs.add(b1);
-        twoBlobs.add(b2);
-        SimpleBlobHolder sbh = new SimpleBlobHolder(twoBlobs);
+        try (CloseableFile file = blob.getCloseableFile()) {
+            BufferedImage cell = ImageIOUtils.readToFit(file.getFile(), width, height);
+            if (cell != null) {
+                return cell;
+            }
+        }
+
+        Map<String, Serializable> params = new HashMap<>();
+        params.put("targetFileName", "cell.png");
+        Blob png = conversionService.convert("simpleConverterByFileName", new SimpleBlobHolder(blob), params)
+                                    .getBlob();
+        try (CloseableFile file = png.getCloseableFile()) {
+            return ImageIOUtils.readToFit(file.getFile(), width, height);
+        }
+    }
+
+    protected Blob convertToTargetFile(Blob blob) {
 
         Map<String, Serializable> params = new HashMap<>();
         params.put("targetFileName", targetFileName);
-        params.put("destMimeType", destMimeType);
+        BlobHolder holder = conversionService.convert("simpleConverterByFileName", new SimpleBlobHolder(blob), params);
+
+        return holder.getBlob();
+    }
+
+    /**
+     * Splits the list in the smallest number of groups of at most groupSize elements, the groups having the same size
+     * (+/- 1), in the original order.
+     * 
+     * @since 2023
+     */
+    public static <T> List<List<T>> splitInGroups(List<T> list, int groupSize) {
+
+        int nbGroups = (list.size() + groupSize - 1) / groupSize;
+        List<List<T>> groups = new ArrayList<>(nbGroups);
+        int start = 0;
+        for (int i = 0; i < nbGroups; i++) {
+            int size = list.size() / nbGroups + (i < list.size() % nbGroups ? 1 : 0);
+            groups.add(new ArrayList<>(list.subList(start, start + size)));
+            start += size;
+        }
+
+        return groups;
+    }
+
+    /**
+     * Concatenates the blobs in a single step, with the java engine if it was requested and can handle them, else
+     * with ImageMagick.
+     * 
+     * @since 2023
+     */
+    protected Blob concatenateOnce(List<Blob> blobs, String fileName, String mimeType) {
+
+        if (ENGINE_JAVA.equals(engine)) {
+            Blob result = concatenateWithJava(blobs, fileName, mimeType);
+            if (result != null) {
+                return result;
+            }
+            log.debug("The java engine cannot concatenate the images, using ImageMagick");
+        }
+
+        return concatenate(blobs, fileName, mimeType);
+    }
+
+    protected int getGroupSize() {
+
+        if (groupSize != null && groupSize > 1) {
+            return groupSize;
+        }
+
+        String value = Framework.getProperty(MAX_IMAGES_PER_CALL_PROPERTY);
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                return Math.max(2, Integer.parseInt(value.trim()));
+            } catch (NumberFormatException e) {
+                log.warn("Invalid value for " + MAX_IMAGES_PER_CALL_PROPERTY + ": " + value);
+            }
+        }
+
+        return DEFAULT_MAX_IMAGES_PER_CALL;
+    }
+
+    /**
+     * Appends the blobs with {@link ImageConcatenator}, returns null if it cannot handle them
+     * 
+     * @since 2023
+     */
+    protected Blob concatenateWithJava(List<Blob> blobs, String fileName, String mimeType) {
+
+        boolean horizontal = concatHorizontally != null && concatHorizontally;
+        String destExt = FilenameUtils.getExtension(fileName);
+        List<CloseableFile> files = new ArrayList<>();
+        try {
+            List<File> inputs = new ArrayList<>();
+            for (Blob blob : blobs) {
+                CloseableFile file = blob.getCloseableFile();
+                files.add(file);
+                inputs.add(file.getFile());
+            }
+
+            Blob result = Blobs.createBlobWithExtension("." + destExt);
+            if (!ImageConcatenator.concatenate(inputs, horizontal, destExt, result.getFile(),
+                    getJavaMaxInMemoryPixels())) {
+                return null;
+            }
+            result.setFilename(fileName);
+            result.setMimeType(mimeType);
+
+            return result;
+
+        } catch (IOException e) {
+            throw new NuxeoException("Error concatenating " + blobs.size() + " images", e);
+        } finally {
+            for (CloseableFile file : files) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // Nothing to do, it's a temp. file
+                }
+            }
+        }
+    }
+
+    protected static long getJavaMaxInMemoryPixels() {
+
+        String value = Framework.getProperty(JAVA_MAX_IN_MEMORY_PIXELS_PROPERTY);
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Invalid value for " + JAVA_MAX_IN_MEMORY_PIXELS_PROPERTY + ": " + value);
+            }
+        }
+
+        return ImageConcatenator.DEFAULT_MAX_IN_MEMORY_PIXELS;
+    }
+
+    /**
+     * Appends all the blobs in a single ImageMagick call
+     * 
+     * @since 2023
+     */
+    protected Blob concatenate(List<Blob> blobs, String fileName, String mimeType) {
+
+        SimpleBlobHolder sbh = new SimpleBlobHolder(blobs);
+
+        Map<String, Serializable> params = new HashMap<>();
+        params.put("targetFileName", fileName);
+        params.put("destMimeType", mimeType);
         if (concatHorizontally != null && concatHorizontally) {
             params.put("horizontalAppend", "true");// All params must be strings
         }
 
-        BlobHolder result = conversionService.convert("concatenateImages", sbh, params);
+        BlobHolder result = conversionService.convert(ConcatenateMultipleImagesConverter.converterName, sbh, params);
         Blob resultBlob = result.getBlob();
 
         return resultBlob;
@@ -41,8 +41,8 @@ public class ConcatenateImagesConverter extends CommandLineConverter {
      * "horizontalAppend" (optional): by default, we append vertically. If horizontalAppend is passed
      * and true, we append horizontally
      * WARNING: The class handles only 2 files, and appends the 2d after the first in the blobHolder.
-     * To concatenate more, just re-call the converter with the result of previous conversion. See
-     * an exemple in the operation {@code ConcatenateImages}
+     * To concatenate more, use {@link ConcatenateMultipleImagesConverter}, which appends them all in
+     * a single call.
      */
     @Override
     public BlobHolder convert(BlobHolder blobHolder, Map<String, Serializable> parameters) throws ConversionException {
@@ -0,0 +1,140 @@
+/*
+ * (C) Copyright 2024 Hyland (https://hyland.com/nuxeo) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.operations.pictures;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CloseableFile;
+import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
+import org.nuxeo.ecm.core.api.blobholder.SimpleBlobHolder;
+import org.nuxeo.ecm.core.convert.api.ConversionException;
+import org.nuxeo.ecm.core.convert.extension.Converter;
+import org.nuxeo.ecm.core.convert.extension.ConverterDescriptor;
+import org.nuxeo.ecm.platform.commandline.executor.api.CmdParameters;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandLineExecutorService;
+import org.nuxeo.ecm.platform.commandline.executor.api.ExecResult;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Appends any number of images in a single ImageMagick call.
+ * <p>
+ * Unlike {@link ConcatenateImagesConverter}, which handles only 2 images and must be re-called with the result of the
+ * previous call (so for N images, ImageMagick runs N - 1 times and re-reads/re-writes every intermediate result), all
+ * the images are passed at once to the command.
+ *
+ * @since 2023
+ */
+public class ConcatenateMultipleImagesConverter implements Converter {
+
+    // As defined in xml extension
+    public static final String converterName = "concatenateMultipleImages";
+
+    public static final String DEFAULT_COMMAND_NAME = "concatenateMultipleImages";
+
+    protected String commandName = DEFAULT_COMMAND_NAME;
+
+    @Override
+    public void init(ConverterDescriptor descriptor) {
+        String name = descriptor.getParameters().get("CommandLineName");
+        if (StringUtils.isNotBlank(name)) {
+            commandName = name;
+        }
+    }
+
+    /**
+     * REQUIRED INPUT PARAMETERS (in parameters)
+     * "destMimeType" is required, it will set the result blob's mime type
+     * "targetFileName" is required. Just the file name _with its extension_
+     * "horizontalAppend" (optional): by default, we append vertically. If horizontalAppend is passed
+     * and true, we append horizontally
+     * The blobs are appended in the order of the blobHolder.
+     */
+    @Override
+    public BlobHolder convert(BlobHolder blobHolder, Map<String, Serializable> parameters) throws ConversionException {
+
+        List<Blob> blobs = blobHolder.getBlobs();
+        if (blobs == null || blobs.isEmpty()) {
+            throw new ConversionException("The concatenateMultipleImages converter received no blob");
+        }
+
+        String destMimeType = (String) parameters.get("destMimeType");
+        if (destMimeType == null) {
+            throw new ConversionException(
+                    "The concatenateMultipleImages converter expects a required parameter, destMimeType");
+        }
+        String targetFileName = (String) parameters.get("targetFileName");
+        if (StringUtils.isBlank(targetFileName)) {
+            throw new ConversionException(
+                    "The concatenateMultipleImages converter expects a required parameter, targetFileName");
+        }
+
+        String horizontal = (String) parameters.get("horizontalAppend");
+        String horV = horizontal != null && "true".equals(horizontal.toLowerCase()) ? "+" : "-";
+
+        List<CloseableFile> files = new ArrayList<>();
+        try {
+            List<String> paths = new ArrayList<>();
+            for (Blob blob : blobs) {
+                String ext = FilenameUtils.getExtension(blob.getFilename());
+                CloseableFile file = blob.getCloseableFile(StringUtils.isBlank(ext) ? null : "." + ext);
+                files.add(file);
+                paths.add(file.getFile().getAbsolutePath());
+            }
+
+            Blob result = Blobs.createBlobWithExtension("." + FilenameUtils.getExtension(targetFileName));
+
+            CommandLineExecutorService cles = Framework.getService(CommandLineExecutorService.class);
+            CmdParameters params = cles.getDefaultCmdParameters();
+            params.addNamedParameter("inputFilePaths", paths);
+            params.addNamedParameter("HorV", horV);
+            params.addNamedParameter("targetFilePath", result.getFile().getAbsolutePath());
+
+            ExecResult execResult = cles.execCommand(commandName, params);
+            if (!execResult.isSuccessful()) {
+                throw new ConversionException("Error concatenating " + blobs.size() + " images: "
+                        + StringUtils.join(execResult.getOutput(), "\n"), execResult.getError());
+            }
+
+            result.setFilename(targetFileName);
+            result.setMimeType(destMimeType);
+
+            return new SimpleBlobHolder(result);
+
+        } catch (IOException e) {
+            throw new ConversionException("Error concatenating " + blobs.size() + " images", e);
+        } finally {
+            for (CloseableFile file : files) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // Nothing to do, it's a temp. file
+                }
+            }
+        }
+    }
+
+}
@@ -18,21 +18,32 @@
  */
 package nuxeo.labs.utils.operations.pictures;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
 import org.apache.commons.lang3.StringUtils;
 import org.nuxeo.ecm.automation.core.Constants;
 import org.nuxeo.ecm.automation.core.annotations.Context;
 import org.nuxeo.ecm.automation.core.annotations.Operation;
 import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
 import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.BlobList;
+import org.nuxeo.ecm.automation.core.util.StringList;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.platform.picture.api.ImageInfo;
 import org.nuxeo.ecm.platform.picture.api.ImagingService;
 import org.nuxeo.ecm.platform.picture.api.PictureView;
 import org.nuxeo.ecm.platform.picture.api.PictureViewImpl;
 import org.nuxeo.ecm.platform.picture.api.adapters.MultiviewPicture;
 
+import nuxeo.labs.utils.ImageInfoCache;
+import nuxeo.labs.utils.ParallelTasks;
+
 /**
  * Add a view (aka rendition) to picture:views
  * 
@@ -43,7 +54,10 @@ import org.nuxeo.ecm.platform.picture.api.adapters.MultiviewPicture;
         + "If viewName already exists, it is replaced. If fileName is not passed, the blob's file name is used. "
         + "If the document does not have the picture schema, the operation does nothing. "
         + "Returns the modified document (saved if saveDoc is passed and true). "
-        + "Notice the description is what is displayed in the UI. If not passed, the operation uses the viewName.")
+        + "Notice the description is what is displayed in the UI. If not passed, the operation uses the viewName. "
+        + "With a list of blobs, use viewNames (required), descriptions and fileNames instead, lists of values (one "
+        + "per blob, in the same order). Blobs are probed in parallel (at most parallelism at a time, default 4) and "
+        + "the document is saved once.")
 public class PictureAddToViews {
 
     public static final String ID = "Labs.PictureAddToViews";
@@ -57,7 +71,7 @@ public class PictureAddToViews {
     @Param(name = "document", required = true)
     protected DocumentModel doc;
 
-    @Param(name = "viewName", required = true)
+    @Param(name = "viewName", required = false)
     protected String viewName;
 
     @Param(name = "description", required = false)
@@ -69,31 +83,30 @@ public class PictureAddToViews {
     @Param(name = "saveDoc", required = false)
     protected Boolean saveDoc = false;
 
-    @OperationMethod
-    public DocumentModel run(Blob input) {
+    @Param(name = "viewNames", required = false)
+    protected StringList viewNames;
 
-        if (doc.hasSchema("picture")) {
+    @Param(name = "descriptions", required = false)
+    protected StringList descriptions;
 
-            if (StringUtils.isEmpty((fileName))) {
-                fileName = input.getFilename();
-            }
+    @Param(name = "fileNames", required = false)
+    protected StringList fileNames;
 
-            if (StringUtils.isEmpty((description))) {
-                description = viewName;
-            }
+    @Param(name = "parallelism", required = false)
+    protected Integer parallelism = ParallelTasks.DEFAULT_PARALLELISM;
 
-            ImageInfo info = imagingService.getImageInfo(input);
-            PictureView view = new PictureViewImpl();
-            view.setBlob(input);
-            view.setDescription(description);
-            view.setFilename(fileName);
-            view.setHeight(info.getHeight());
-            view.setImageInfo(info);
-            view.setTitle(viewName);
-            view.setWidth(info.getWidth());
+    @OperationMethod
+    public DocumentModel run(Blob input) {
+
+        if (StringUtils.isBlank(viewName)) {
+            throw new IllegalArgumentException("viewName is required");
+        }
 
+        if (doc.hasSchema("picture")) {
+
+            ImageInfo info = ImageInfoCache.getImageInfo(input, imagingService::getImageInfo);
             MultiviewPicture mvp = doc.getAdapter(MultiviewPicture.class);
-            mvp.addView(view);
+            mvp.addView(createView(input, viewName, description, fileName, info));
 
             if (saveDoc) {
                 doc = session.saveDocument(doc);
@@ -102,4 +115,88 @@ public class PictureAddToViews {
 
         return doc;
     }
+
+    /**
+     * Adds one view per blob. viewNames (required), descriptions and fileNames are lists, in the same order as the
+     * blobs (lists, not comma-separated strings, so values can contain commas). Blobs are probed in parallel, then all
+     * the views are added to the document, which is saved once (if saveDoc is true).
+     * 
+     * @since 2023
+     */
+    @OperationMethod
+    public DocumentModel run(BlobList input) {
+
+        if (!doc.hasSchema("picture") || input.isEmpty()) {
+            return doc;
+        }
+
+        int count = viewNames == null ? 0 : viewNames.size();
+        if (count != input.size()) {
+            throw new IllegalArgumentException(
+                    "Received " + input.size() + " blobs and " + count + " view names (" + viewNames + ")");
+        }
+
+        List<ImageInfo> infos = getImageInfos(input);
+
+        MultiviewPicture mvp = doc.getAdapter(MultiviewPicture.class);
+        for (int i = 0; i < input.size(); i++) {
+            mvp.addView(createView(input.get(i), viewNames.get(i), get(descriptions, i), get(fileNames, i),
+                    infos.get(i)));
+        }
+
+        if (saveDoc) {
+            doc = session.saveDocument(doc);
+        }
+
+        return doc;
+    }
+
+    /**
+     * Creates the view. If viewFileName is empty, the blob's file name is used. If viewDescription is empty, the name
+     * is used.
+     * 
+     * @since 2023
+     */
+    public static PictureView createView(Blob blob, String name, String viewDescription, String viewFileName,
+            ImageInfo info) {
+
+        if (StringUtils.isEmpty(viewFileName)) {
+            viewFileName = blob.getFilename();
+        }
+
+        if (StringUtils.isEmpty(viewDescription)) {
+            viewDescription = name;
+        }
+
+        PictureView view = new PictureViewImpl();
+        view.setBlob(blob);
+        view.setDescription(viewDescription);
+        view.setFilename(viewFileName);
+        view.setHeight(info.getHeight());
+        view.setImageInfo(info);
+        view.setTitle(name);
+        view.setWidth(info.getWidth());
+
+        return view;
+    }
+
+    protected List<ImageInfo> getImageInfos(List<Blob> blobs) {
+
+        List<Callable<ImageInfo>> tasks = new ArrayList<>(blobs.size());
+        for (Blob blob : blobs) {
+            tasks.add(() -> ImageInfoCache.getImageInfo(blob, imagingService::getImageInfo));
+        }
+        try {
+            return ParallelTasks.invokeAll(tasks, parallelism);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException(e);
+        } catch (ExecutionException e) {
+            throw new NuxeoException("Error getting the image infos", e.getCause());
+        }
+    }
+
+    protected static String get(List<String> values, int index) {
+        return values == null || index >= values.size() ? null : values.get(index);
+    }
 }
@@ -0,0 +1,105 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.operations.pictures;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.platform.mimetype.interfaces.MimetypeRegistry;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * File name and mime type fix-ups for the blobs returned by the picture operations.
+ *
+ * @since 2023
+ */
+public class PictureBlobUtils {
+
+    private static final Logger log = LogManager.getLogger(PictureBlobUtils.class);
+
+    private PictureBlobUtils() {
+        // Static utility
+    }
+
+    /**
+     * ImagingService (crop, ...) does not set a file extension for the returned image ("something.null"), and we
+     * cannot make sure it will always be a jpg, because it is configurable. So, when the extension is missing, the mime
+     * type is read from the blob (which is "costly"...) and the extension is set from it (jpg or png only).
+     */
+    public static void fixFileNameAndMimeType(Blob blob) {
+
+        String ext = FilenameUtils.getExtension(blob.getFilename());
+        if (StringUtils.isNotBlank(ext) && !"null".equalsIgnoreCase(ext)) {
+            return;
+        }
+
+        MimetypeRegistry mimeTypeService = Framework.getService(MimetypeRegistry.class);
+        String baseName = FilenameUtils.getBaseName(blob.getFilename());
+        try {
+            String mimeType = mimeTypeService.getMimetypeFromBlob(blob);
+            blob.setMimeType(mimeType);
+            switch (mimeType) {
+            case "image/jpg":
+            case "image/jpeg":
+                blob.setFilename(baseName + ".jpg");
+                break;
+
+            case "image/png":
+                blob.setFilename(baseName + ".png");
+                break;
+
+            default:
+                // Give up...
+                break;
+            }
+        } catch (Exception e) {
+            log.error("Error when getting the mimetype of " + blob.getFilename(), e);
+        }
+    }
+
+    /**
+     * Sets the file name of the blob, and its mime type from the extension of fileName (or from the blob itself if the
+     * extension is unknown).
+     */
+    public static void setFileNameAndMimeType(Blob blob, String fileName) {
+
+        blob.setFilename(fileName);
+
+        MimetypeRegistry mimeTypeService = Framework.getService(MimetypeRegistry.class);
+        String mimeType = null;
+        try {
+            mimeType = mimeTypeService.getMimetypeFromFilename(fileName);
+        } catch (Exception e) {
+            // Unknown extension
+        }
+        if (StringUtils.isBlank(mimeType)) {
+            try {
+                mimeType = mimeTypeService.getMimetypeFromBlob(blob);
+            } catch (Exception e) {
+                log.error("Error when getting the mimetype of " + fileName, e);
+            }
+        }
+        if (StringUtils.isNotBlank(mimeType)) {
+            blob.setMimeType(mimeType);
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.operations.pictures;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CloseableFile;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.blobholder.SimpleBlobHolder;
+import org.nuxeo.ecm.core.convert.api.ConversionService;
+
+import nuxeo.labs.utils.PerceptualHashIndex;
+import nuxeo.labs.utils.images.PerceptualHash;
+
+/**
+ * Computes the perceptual hash of a picture and stores it on the document
+ *
+ * @since 2023
+ */
+@Operation(id = PictureComputePerceptualHash.ID, category = Constants.CAT_DOCUMENT, label = "Picture Compute Perceptual Hash", description = ""
+        + "Computes the perceptual hash (64 bits dHash) of the blob at xpath (default file:content) and stores it in "
+        + "nxlph:dhash (16 hexadecimal characters), adding the NxLabsPerceptualHash facet if needed. Re-encoded, "
+        + "resized or slightly modified copies of an image have close hashes, see Labs.PictureFindSimilar. "
+        + "The hash is not computed again if the blob did not change (nxlph:sourceDigest), unless force is true. "
+        + "Returns the document, saved (and added to the near-duplicate index) if saveDoc is true (default false).")
+public class PictureComputePerceptualHash {
+
+    public static final String ID = "Labs.PictureComputePerceptualHash";
+
+    @Context
+    protected CoreSession session;
+
+    @Context
+    protected ConversionService conversionService;
+
+    @Param(name = "xpath", required = false)
+    protected String xpath = "file:content";
+
+    @Param(name = "saveDoc", required = false)
+    protected Boolean saveDoc = false;
+
+    @Param(name = "force", required = false)
+    protected Boolean force = false;
+
+    @OperationMethod
+    public DocumentModel run(DocumentModel doc) {
+
+        Blob blob = (Blob) doc.getPropertyValue(xpath);
+        if (blob == null) {
+            throw new NuxeoException("No blob in " + xpath + " of document " + doc.getId());
+        }
+
+        String digest = blob.getDigest();
+        if (!force && doc.hasFacet(PerceptualHashIndex.FACET) && StringUtils.isNotBlank(digest)
+                && digest.equals(doc.getPropertyValue(PerceptualHashIndex.SOURCE_DIGEST_XPATH))
+                && StringUtils.isNotBlank((String) doc.getPropertyValue(PerceptualHashIndex.HASH_XPATH))) {
+            return doc;
+        }
+
+        Long hash = computeHash(blob, conversionService);
+        if (hash == null) {
+            throw new NuxeoException("Cannot decode " + blob.getFilename() + " in document " + doc.getId());
+        }
+
+        if (!doc.hasFacet(PerceptualHashIndex.FACET)) {
+            doc.addFacet(PerceptualHashIndex.FACET);
+        }
+        doc.setPropertyValue(PerceptualHashIndex.HASH_XPATH, PerceptualHash.toHex(hash));
+        doc.setPropertyValue(PerceptualHashIndex.SOURCE_DIGEST_XPATH, digest);
+
+        if (saveDoc) {
+            doc = session.saveDocument(doc);
+            PerceptualHashIndex.get(session.getRepositoryName()).put(doc.getId(), hash);
+        }
+
+        return doc;
+    }
+
+    /**
+     * Returns the dHash of the blob. The blob is decoded with ImageIO (subsampled), formats it cannot read are
+     * converted to png with ImageMagick first. Returns null if the blob cannot be decoded.
+     */
+    public static Long computeHash(Blob blob, ConversionService conversionService) {
+
+        try {
+            String ext = FilenameUtils.getExtension(blob.getFilename());
+            try (CloseableFile file = blob.getCloseableFile(StringUtils.isBlank(ext) ? null : "." + ext)) {
+                Long hash = PerceptualHash.dHash(file.getFile());
+                if (hash != null) {
+                    return hash;
+                }
+            }
+
+            Map<String, Serializable> params = new HashMap<>();
+            params.put("targetFileName", "source.png");
+            Blob png = conversionService.convert("simpleConverterByFileName", new SimpleBlobHolder(blob), params)
+                                        .getBlob();
+            if (png == null) {
+                return null;
+            }
+            try (CloseableFile file = png.getCloseableFile(".png")) {
+                return PerceptualHash.dHash(file.getFile());
+            }
+        } catch (IOException e) {
+            throw new NuxeoException("Error reading " + blob.getFilename(), e);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.operations.pictures;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.Properties;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.bulk.BulkService;
+import org.nuxeo.ecm.core.bulk.message.BulkCommand;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import nuxeo.labs.utils.bulk.PictureViewComputeAction;
+
+/**
+ * Starts the {@link PictureViewComputeAction} bulk action
+ *
+ * @since 2023
+ */
+@Operation(id = PictureComputeView.ID, category = Constants.CAT_DOCUMENT, label = "Picture Compute View (Bulk)", description = ""
+        + "Adds (or replaces) the viewName view in picture:views of all the documents returned by the NXQL query, "
+        + "with the Bulk Action Framework: documents are processed in batches, by parallel workers on every node, "
+        + "each batch saved and committed at once. "
+        + "The view is computed from the blob at xpath (default file:content) either with steps (same syntax as "
+        + "Labs.PictureTransform, run in a single ImageMagick call) or with a converter and its converterParameters. "
+        + "description is optional. "
+        + "A document is skipped if its view was already computed from the same source blob (digest) with the same "
+        + "steps/converter, unless force is true (default false), so the operation can be run again to process only "
+        + "new or modified pictures. bucketSize and batchSize are optional (default: the action configuration). "
+        + "Returns immediately a JSON blob with the commandId, to follow the progress with the bulk status "
+        + "(Bulk.WaitForAction, /api/v1/bulk/{commandId}).")
+public class PictureComputeView {
+
+    public static final String ID = "Labs.PictureComputeView";
+
+    protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Context
+    protected CoreSession session;
+
+    @Context
+    protected BulkService bulkService;
+
+    @Param(name = "query", required = true)
+    protected String query;
+
+    @Param(name = "viewName", required = true)
+    protected String viewName;
+
+    @Param(name = "description", required = false)
+    protected String description;
+
+    @Param(name = "steps", required = false)
+    protected String steps;
+
+    @Param(name = "converter", required = false)
+    protected String converter;
+
+    @Param(name = "converterParameters", required = false)
+    protected Properties converterParameters;
+
+    @Param(name = "xpath", required = false)
+    protected String xpath = PictureViewComputeAction.DEFAULT_XPATH;
+
+    @Param(name = "force", required = false)
+    protected Boolean force = false;
+
+    @Param(name = "bucketSize", required = false)
+    protected Integer bucketSize;
+
+    @Param(name = "batchSize", required = false)
+    protected Integer batchSize;
+
+    @OperationMethod
+    public Blob run() throws IOException {
+
+        BulkCommand.Builder builder = new BulkCommand.Builder(PictureViewComputeAction.ACTION_NAME, query,
+                session.getPrincipal().getName()).repository(session.getRepositoryName())
+                                                 .param(PictureViewComputeAction.PARAM_VIEW_NAME, viewName)
+                                                 .param(PictureViewComputeAction.PARAM_XPATH, xpath)
+                                                 .param(PictureViewComputeAction.PARAM_FORCE,
+                                                         Boolean.TRUE.equals(force));
+        if (StringUtils.isNotBlank(description)) {
+            builder.param(PictureViewComputeAction.PARAM_DESCRIPTION, description);
+        }
+        if (StringUtils.isNotBlank(steps)) {
+            builder.param(PictureViewComputeAction.PARAM_STEPS, steps);
+        }
+        if (StringUtils.isNotBlank(converter)) {
+            builder.param(PictureViewComputeAction.PARAM_CONVERTER, converter);
+        }
+        if (converterParameters != null && !converterParameters.isEmpty()) {
+            builder.param(PictureViewComputeAction.PARAM_CONVERTER_PARAMETERS,
+                    (Serializable) new HashMap<>(converterParameters));
+        }
+        if (bucketSize != null && bucketSize > 0) {
+            builder.bucket(bucketSize);
+        }
+        if (batchSize != null && batchSize > 0) {
+            builder.batch(batchSize);
+        }
+        String commandId = bulkService.submit(builder.build());
+
+        ObjectNode result = MAPPER.createObjectNode();
+        result.put("commandId", commandId);
+        result.put("action", PictureViewComputeAction.ACTION_NAME);
+
+        return Blobs.createJSONBlob(MAPPER.writeValueAsString(result));
+    }
+}
@@ -18,6 +18,10 @@
  */
 package nuxeo.labs.utils.operations.pictures;
 
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
@@ -28,9 +32,13 @@ import org.nuxeo.ecm.automation.core.annotations.Operation;
 import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
 import org.nuxeo.ecm.automation.core.annotations.Param;
 import org.nuxeo.ecm.core.api.Blob;
-import org.nuxeo.ecm.platform.mimetype.interfaces.MimetypeRegistry;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CloseableFile;
+import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.platform.picture.api.ImagingService;
-import org.nuxeo.runtime.api.Framework;
+
+import nuxeo.labs.utils.images.ImageIOUtils;
+import nuxeo.labs.utils.images.ImageRegions;
 
 /**
  * Crop an image using the default platform service
@@ -38,13 +46,20 @@ import org.nuxeo.runtime.api.Framework;
  * @since 2021.27
  */
 @Operation(id = PictureCrop.ID, category = Constants.CAT_CONVERSION, label = "Crop Picture", description = "Crop the input blob using the platform default ImagingComponent. "
-        + "top, left width and height are required and integers (pixels)")
+        + "top, left width and height are required and integers (pixels). "
+        + "engine is optional: imagemagick (default, the ImagingComponent) or java. With java, only the cropped region "
+        + "is decoded, with ImageIO, so the memory used depends on the size of the crop, not of the image. Formats "
+        + "ImageIO cannot read are cropped with the ImagingComponent.")
 public class PictureCrop {
 
     public static final String ID = "Labs.PictureCrop";
-    
+
     private static final Logger log = LogManager.getLogger(PictureCrop.class);
 
+    public static final String ENGINE_IMAGEMAGICK = "imagemagick";
+
+    public static final String ENGINE_JAVA = "java";
+
     @Context
     protected ImagingService imagingService;
 
@@ -60,41 +75,56 @@ public class PictureCrop {
     @Param(name = "height", required = true)
     protected Integer height;
 
+    @Param(name = "engine", required = false)
+    protected String engine = ENGINE_IMAGEMAGICK;
+
     @OperationMethod
     public Blob run(Blob input) {
 
-        Blob cropped = imagingService.crop(input, left, top, width, height);
-        // Unfortunately, crop() does not set a file extension for the returned image. And we cannot make sure
-        // it will always be a jpg, because it is configurable. So, we need to extract the info, which
-        // is "costly"...
-        String ext = FilenameUtils.getExtension(cropped.getFilename());
-        if(ext.equalsIgnoreCase("null") || StringUtils.isBlank(ext)) {
-            MimetypeRegistry mimeTypeService = Framework.getService(MimetypeRegistry.class);
-            String baseName = FilenameUtils.getBaseName(cropped.getFilename());
-            try {
-                String mimeType = mimeTypeService.getMimetypeFromBlob(cropped);
-                cropped.setMimeType(mimeType);
-                switch(mimeType) {
-                case "image/jpg":
-                case "image/jpeg":
-                  cropped.setFilename(baseName + ".jpg");
-                  break;
-
-                case "image/png":
-                  cropped.setFilename(baseName + ".png");
-                  break;
-
-                default:
-                    // Give up...
-                  ext = null;
-                  break;
-                }
-            } catch (Exception e) {
-                log.error("PictureCrop: Error when getting the mimetype from the cropped blob", e);
+        if (StringUtils.isNotBlank(engine) && !StringUtils.equalsAny(engine, ENGINE_IMAGEMAGICK, ENGINE_JAVA)) {
+            throw new IllegalArgumentException("Unknown engine: " + engine);
+        }
+
+        if (ENGINE_JAVA.equals(engine)) {
+            Blob cropped = cropWithJava(input);
+            if (cropped != null) {
+                return cropped;
             }
+            log.debug("The java engine cannot crop " + input.getFilename() + ", using the ImagingService");
         }
-        
+
+        Blob cropped = imagingService.crop(input, left, top, width, height);
+        PictureBlobUtils.fixFileNameAndMimeType(cropped);
 
         return cropped;
     }
+
+    /**
+     * Reads only the region with {@link ImageRegions} and encodes it in the format of the input (png if ImageIO
+     * cannot write it). Returns null if ImageIO cannot decode the input.
+     * 
+     * @since 2023
+     */
+    protected Blob cropWithJava(Blob input) {
+
+        String fileName = input.getFilename();
+        String ext = FilenameUtils.getExtension(fileName);
+        try (CloseableFile file = input.getCloseableFile(StringUtils.isBlank(ext) ? null : "." + ext)) {
+            BufferedImage image = ImageRegions.read(file.getFile(), new Rectangle(left, top, width, height));
+            if (image == null) {
+                return null;
+            }
+
+            String destExt = ImageIOUtils.canWrite(ext) ? ext.toLowerCase() : "png";
+            Blob cropped = Blobs.createBlobWithExtension("." + destExt);
+            ImageIOUtils.write(image, destExt, cropped.getFile());
+            String baseName = StringUtils.isBlank(fileName) ? "cropped" : FilenameUtils.getBaseName(fileName);
+            PictureBlobUtils.setFileNameAndMimeType(cropped, baseName + "." + destExt);
+
+            return cropped;
+
+        } catch (IOException e) {
+            throw new NuxeoException("Error cropping " + fileName, e);
+        }
+    }
 }
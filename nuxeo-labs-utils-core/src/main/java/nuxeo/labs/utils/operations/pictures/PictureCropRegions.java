@@ -0,0 +1,216 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.operations.pictures;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.BlobList;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CloseableFile;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.blobholder.SimpleBlobHolder;
+import org.nuxeo.ecm.core.convert.api.ConversionService;
+import org.nuxeo.ecm.platform.picture.api.ImagingService;
+
+import nuxeo.labs.utils.ParallelTasks;
+import nuxeo.labs.utils.images.ImageIOUtils;
+import nuxeo.labs.utils.images.ImageRegions;
+
+/**
+ * Crops several regions of the same image, decoding it once.
+ *
+ * @since 2023
+ */
+@Operation(id = PictureCropRegions.ID, category = Constants.CAT_CONVERSION, label = "Crop Picture Regions", description = ""
+        + "Crops several regions of the input blob and returns the list of cropped blobs, in the same order. "
+        + "regions is required: a list of WxH+X+Y geometries (the region of W x H pixels whose top-left corner is at "
+        + "X,Y) separated by ';', ',' or new lines. Regions are restricted to the image, a region outside the image "
+        + "is an error. "
+        + "The image is decoded once, only the part covering the regions is read, and the crops are encoded "
+        + "concurrently (at most parallelism at a time, default 4, on the shared pool sized by "
+        + "nuxeo.labs.utils.parallel.maxThreads). When the image cannot be decoded, each region is cropped with the "
+        + "ImagingService instead. "
+        + "format is optional, the extension of the results (default: the input extension, or png). "
+        + "Results are named {input base name}-{index, starting at 1}.{format}")
+public class PictureCropRegions {
+
+    public static final String ID = "Labs.PictureCropRegions";
+
+    private static final Logger log = LogManager.getLogger(PictureCropRegions.class);
+
+    @Context
+    protected ConversionService conversionService;
+
+    @Context
+    protected ImagingService imagingService;
+
+    @Param(name = "regions", required = true)
+    protected String regions;
+
+    @Param(name = "format", required = false)
+    protected String format;
+
+    @Param(name = "parallelism", required = false)
+    protected Integer parallelism = ParallelTasks.DEFAULT_PARALLELISM;
+
+    @OperationMethod
+    public BlobList run(Blob input) {
+
+        List<Rectangle> rectangles = ImageRegions.parse(regions);
+
+        String inputFileName = input.getFilename();
+        String baseName = StringUtils.isBlank(inputFileName) ? "cropped" : FilenameUtils.getBaseName(inputFileName);
+        String ext = StringUtils.isNotBlank(format) ? format.toLowerCase() : FilenameUtils.getExtension(inputFileName);
+        if (!ImageIOUtils.canWrite(ext)) {
+            if (StringUtils.isNotBlank(format)) {
+                throw new IllegalArgumentException("Unsupported format: " + format);
+            }
+            ext = "png";
+        }
+
+        List<BufferedImage> images = readRegions(input, rectangles);
+        if (images == null) {
+            log.debug("Cannot decode " + inputFileName + ", cropping each region with the ImagingService");
+            return cropWithImagingService(input, rectangles, baseName, ext);
+        }
+
+        return encode(images, baseName, ext);
+    }
+
+    /**
+     * Reads the regions with ImageIO. When ImageIO cannot decode the input, it is converted to png (once) with
+     * ImageMagick first. Returns null if it still cannot be decoded.
+     */
+    protected List<BufferedImage> readRegions(Blob input, List<Rectangle> rectangles) {
+
+        try {
+            String ext = FilenameUtils.getExtension(input.getFilename());
+            try (CloseableFile file = input.getCloseableFile(StringUtils.isBlank(ext) ? null : "." + ext)) {
+                List<BufferedImage> images = ImageRegions.read(file.getFile(), rectangles,
+                        ImageRegions.DEFAULT_MAX_UNION_PIXELS);
+                if (images != null) {
+                    return images;
+                }
+            }
+
+            Map<String, Serializable> params = new HashMap<>();
+            params.put("targetFileName", "source.png");
+            Blob png = conversionService.convert("simpleConverterByFileName", new SimpleBlobHolder(input), params)
+                                        .getBlob();
+            try (CloseableFile file = png.getCloseableFile(".png")) {
+                return ImageRegions.read(file.getFile(), rectangles, ImageRegions.DEFAULT_MAX_UNION_PIXELS);
+            }
+        } catch (IOException e) {
+            throw new NuxeoException("Error reading " + input.getFilename(), e);
+        }
+    }
+
+    protected BlobList encode(List<BufferedImage> images, String baseName, String ext) {
+
+        List<Callable<Blob>> tasks = new ArrayList<>(images.size());
+        for (int i = 0; i < images.size(); i++) {
+            BufferedImage image = images.get(i);
+            String fileName = baseName + "-" + (i + 1) + "." + ext;
+            tasks.add(() -> {
+                Blob blob = Blobs.createBlobWithExtension("." + ext);
+                ImageIOUtils.write(image, ext, blob.getFile());
+                PictureBlobUtils.setFileNameAndMimeType(blob, fileName);
+                return blob;
+            });
+        }
+
+        return runTasks(tasks, "Error encoding the cropped regions");
+    }
+
+    /**
+     * Crops each region with the ImagingService (ImageMagick), converting the result when it is not already in the
+     * expected format, so results are named and encoded the same way as when the image is decoded by ImageIO.
+     */
+    protected BlobList cropWithImagingService(Blob input, List<Rectangle> rectangles, String baseName, String ext) {
+
+        List<Callable<Blob>> tasks = new ArrayList<>(rectangles.size());
+        for (int i = 0; i < rectangles.size(); i++) {
+            Rectangle r = rectangles.get(i);
+            String fileName = baseName + "-" + (i + 1) + "." + ext;
+            tasks.add(() -> {
+                Blob cropped = imagingService.crop(input, r.x, r.y, r.width, r.height);
+                PictureBlobUtils.fixFileNameAndMimeType(cropped);
+                if (!isSameFormat(FilenameUtils.getExtension(cropped.getFilename()), ext)) {
+                    Map<String, Serializable> params = new HashMap<>();
+                    params.put("targetFileName", fileName);
+                    cropped = conversionService.convert("simpleConverterByFileName", new SimpleBlobHolder(cropped),
+                            params).getBlob();
+                }
+                PictureBlobUtils.setFileNameAndMimeType(cropped, fileName);
+                return cropped;
+            });
+        }
+
+        return runTasks(tasks, "Error cropping the regions");
+    }
+
+    protected BlobList runTasks(List<Callable<Blob>> tasks, String errorMessage) {
+
+        try {
+            return new BlobList(ParallelTasks.invokeAll(tasks, parallelism));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException(e);
+        } catch (ExecutionException e) {
+            throw new NuxeoException(errorMessage, e.getCause());
+        }
+    }
+
+    protected static boolean isSameFormat(String ext1, String ext2) {
+
+        return normalizeExtension(ext1).equals(normalizeExtension(ext2));
+    }
+
+    protected static String normalizeExtension(String ext) {
+
+        String normalized = StringUtils.defaultString(ext).toLowerCase();
+        switch (normalized) {
+        case "jpeg":
+            return "jpg";
+        case "tiff":
+            return "tif";
+        default:
+            return normalized;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.operations.pictures;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.convert.api.ConversionService;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import nuxeo.labs.utils.PerceptualHashIndex;
+import nuxeo.labs.utils.images.HammingIndex;
+import nuxeo.labs.utils.images.PerceptualHash;
+
+/**
+ * Finds the documents whose perceptual hash is close to the hash of the input
+ *
+ * @since 2023
+ */
+@Operation(id = PictureFindSimilar.ID, category = Constants.CAT_DOCUMENT, label = "Picture Find Similar", description = ""
+        + "Returns the documents whose perceptual hash (see Labs.PictureComputePerceptualHash) is at maxDistance "
+        + "(default 10, max 32) or less from the hash of the input: a blob, or a document (its nxlph:dhash if it has "
+        + "one, else the hash of its file:content, the document itself is not returned). "
+        + "The distance is the number of different bits out of 64: 0 for the same image, usually less than 10 for "
+        + "a re-encoded or resized copy. "
+        + "Lookups use an in-memory index, loaded at the first call and updated with Labs.PicturePerceptualHashIndexUpdate, "
+        + "or before the lookup if refreshIndex is true (default false). "
+        + "Returns a JSON blob, an array of {uid, distance, hash}, closest first, limited to maxResults (default 20, "
+        + "max 1000). Only the documents the current user can access are returned, checked with one query on the "
+        + "closest maxResults x 4 hashes of the index.")
+public class PictureFindSimilar {
+
+    public static final String ID = "Labs.PictureFindSimilar";
+
+    public static final int DEFAULT_MAX_DISTANCE = 10;
+
+    public static final int DEFAULT_MAX_RESULTS = 20;
+
+    public static final int MAX_RESULTS = 1000;
+
+    // Number of candidates read from the index for each result, some of them may not be accessible
+    public static final int CANDIDATES_FACTOR = 4;
+
+    protected static final String ACCESSIBLE_QUERY = "SELECT ecm:uuid FROM Document WHERE ecm:isTrashed = 0"
+            + " AND ecm:uuid IN (";
+
+    protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Context
+    protected CoreSession session;
+
+    @Context
+    protected ConversionService conversionService;
+
+    @Param(name = "maxDistance", required = false)
+    protected Integer maxDistance = DEFAULT_MAX_DISTANCE;
+
+    @Param(name = "maxResults", required = false)
+    protected Integer maxResults = DEFAULT_MAX_RESULTS;
+
+    @Param(name = "refreshIndex", required = false)
+    protected Boolean refreshIndex = false;
+
+    @OperationMethod
+    public Blob run(Blob input) throws IOException {
+
+        Long hash = PictureComputePerceptualHash.computeHash(input, conversionService);
+        if (hash == null) {
+            throw new NuxeoException("Cannot decode " + input.getFilename());
+        }
+
+        return search(hash, null);
+    }
+
+    @OperationMethod
+    public Blob run(DocumentModel input) throws IOException {
+
+        String hex = input.hasFacet(PerceptualHashIndex.FACET)
+                ? (String) input.getPropertyValue(PerceptualHashIndex.HASH_XPATH)
+                : null;
+        long hash;
+        if (StringUtils.isNotBlank(hex)) {
+            hash = PerceptualHash.fromHex(hex);
+        } else {
+            Blob blob = (Blob) input.getPropertyValue("file:content");
+            Long computed = blob == null ? null : PictureComputePerceptualHash.computeHash(blob, conversionService);
+            if (computed == null) {
+                throw new NuxeoException("No perceptual hash for document " + input.getId());
+            }
+            hash = computed;
+        }
+
+        return search(hash, input.getId());
+    }
+
+    protected Blob search(long hash, String excludedId) throws IOException {
+
+        PerceptualHashIndex index = PerceptualHashIndex.get(session.getRepositoryName());
+        if (refreshIndex) {
+            index.update(false);
+        }
+        int distance = maxDistance == null ? DEFAULT_MAX_DISTANCE : maxDistance;
+        int max = maxResults == null || maxResults < 1 ? DEFAULT_MAX_RESULTS : Math.min(maxResults, MAX_RESULTS);
+
+        // The index may return documents deleted on another node, or not accessible to the user
+        List<HammingIndex.Match> matches = index.search(hash, distance, max * CANDIDATES_FACTOR + 1);
+        Set<String> accessible = getAccessibleIds(matches);
+        ArrayNode result = MAPPER.createArrayNode();
+        for (HammingIndex.Match match : matches) {
+            if (result.size() >= max) {
+                break;
+            }
+            if (match.getId().equals(excludedId) || !accessible.contains(match.getId())) {
+                continue;
+            }
+            ObjectNode json = result.addObject();
+            json.put("uid", match.getId());
+            json.put("distance", match.getDistance());
+            json.put("hash", PerceptualHash.toHex(match.getHash()));
+        }
+
+        return Blobs.createJSONBlob(MAPPER.writeValueAsString(result));
+    }
+
+    /**
+     * Returns the ids of the matches that exist, are not trashed and can be read by the current user, in one query.
+     */
+    protected Set<String> getAccessibleIds(List<HammingIndex.Match> matches) {
+
+        Set<String> ids = new HashSet<>();
+        if (matches.isEmpty()) {
+            return ids;
+        }
+        String query = ACCESSIBLE_QUERY
+                + matches.stream().map(m -> "'" + m.getId() + "'").collect(Collectors.joining(", ")) + ")";
+        for (Map<String, Serializable> row : session.queryProjection(query, 0, 0)) {
+            ids.add((String) row.get("ecm:uuid"));
+        }
+
+        return ids;
+    }
+}
@@ -18,23 +18,36 @@
  */
 package nuxeo.labs.utils.operations.pictures;
 
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.nuxeo.ecm.automation.OperationContext;
 import org.nuxeo.ecm.automation.core.Constants;
 import org.nuxeo.ecm.automation.core.annotations.Context;
 import org.nuxeo.ecm.automation.core.annotations.Operation;
 import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
 import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.platform.picture.api.ImageInfo;
 import org.nuxeo.ecm.platform.picture.api.ImagingService;
 
+import nuxeo.labs.utils.ImageInfoCache;
+import nuxeo.labs.utils.images.ImageHeaderProbe;
+
 /**
  * Return the ImageInfo in the nxlabs_ImageInfo context variable
  * 
  * @since 2021.27
  */
-@Operation(id = PictureGetInfo.ID, category = Constants.CAT_CONVERSION, label = "Get Picture Infos", description = "Get input blob info, returns it in the nxlabs_ImageInfo Context variable. This context variable contains a Java PictureGetInfo, with width, height, format, colorSpace and depth fields.")
+@Operation(id = PictureGetInfo.ID, category = Constants.CAT_CONVERSION, label = "Get Picture Infos", description = "Get input blob info, returns it in the nxlabs_ImageInfo Context variable. This context variable contains a Java PictureGetInfo, with width, height, format, colorSpace and depth fields. Infos are cached by blob digest. "
+        + "If fast is true, the infos are read from the header of the image (JPEG, PNG, GIF, BMP, WebP, TIFF), without running ImageMagick. Other formats get the full probe.")
 public class PictureGetInfo {
 
     public static final String ID = "Labs.PictureGetInfo";
+
+    private static final Logger log = LogManager.getLogger(PictureGetInfo.class);
     
     public static final String CTX_VAR_NAME = "nxlabs_ImageInfo";
 
@@ -44,11 +57,50 @@ public class PictureGetInfo {
     @Context
     protected ImagingService imagingService;
 
+    @Param(name = "fast", required = false)
+    protected Boolean fast = false;
+
     @OperationMethod
     public Blob run(Blob input) {
 
-        ctx.put(CTX_VAR_NAME, imagingService.getImageInfo(input));
+        ImageInfo info = null;
+        if (fast != null && fast) {
+            info = getFastImageInfo(input);
+        }
+        if (info == null) {
+            info = ImageInfoCache.getImageInfo(input, imagingService::getImageInfo);
+        }
+        ctx.put(CTX_VAR_NAME, info);
 
         return input;
     }
+
+    /**
+     * Reads the infos from the first bytes of the blob only, see {@link ImageHeaderProbe}. Returns null if the format
+     * is not supported (or the header cannot be read).
+     * 
+     * @since 2023
+     */
+    public static ImageInfo getFastImageInfo(Blob blob) {
+
+        ImageHeaderProbe.Header header;
+        try (InputStream in = blob.getStream()) {
+            header = ImageHeaderProbe.probe(in);
+        } catch (IOException e) {
+            log.debug("Cannot read the header of " + blob.getFilename(), e);
+            return null;
+        }
+        if (header == null) {
+            return null;
+        }
+
+        ImageInfo info = new ImageInfo();
+        info.setFormat(header.getFormat());
+        info.setWidth(header.getWidth());
+        info.setHeight(header.getHeight());
+        info.setColorSpace(header.getColorSpace());
+        info.setDepth(header.getDepth());
+
+        return info;
+    }
 }
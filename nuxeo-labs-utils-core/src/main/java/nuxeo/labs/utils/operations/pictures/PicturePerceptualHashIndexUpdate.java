@@ -0,0 +1,72 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.operations.pictures;
+
+import java.io.IOException;
+
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreSession;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import nuxeo.labs.utils.PerceptualHashIndex;
+
+/**
+ * Updates the in-memory {@link PerceptualHashIndex} of the current repository
+ *
+ * @since 2023
+ */
+@Operation(id = PicturePerceptualHashIndexUpdate.ID, category = Constants.CAT_SERVICES, label = "Picture Perceptual Hash Index Update", description = ""
+        + "Updates the in-memory index used by Labs.PictureFindSimilar, on this node, with the perceptual hashes of "
+        + "the documents modified since the last update. If full is true (default false), the index is rebuilt from "
+        + "all the documents with a hash, which also removes the deleted documents. "
+        + "Returns a JSON blob: {repository, read, size}, the number of hashes read and the size of the index.")
+public class PicturePerceptualHashIndexUpdate {
+
+    public static final String ID = "Labs.PicturePerceptualHashIndexUpdate";
+
+    protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Context
+    protected CoreSession session;
+
+    @Param(name = "full", required = false)
+    protected Boolean full = false;
+
+    @OperationMethod
+    public Blob run() throws IOException {
+
+        PerceptualHashIndex index = PerceptualHashIndex.get(session.getRepositoryName());
+        int read = index.update(Boolean.TRUE.equals(full));
+
+        ObjectNode result = MAPPER.createObjectNode();
+        result.put("repository", session.getRepositoryName());
+        result.put("read", read);
+        result.put("size", index.size());
+
+        return Blobs.createJSONBlob(MAPPER.writeValueAsString(result));
+    }
+}
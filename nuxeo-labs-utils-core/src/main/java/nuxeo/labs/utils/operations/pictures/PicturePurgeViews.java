@@ -0,0 +1,99 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.operations.pictures;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.StringList;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.bulk.BulkService;
+import org.nuxeo.ecm.core.bulk.message.BulkCommand;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import nuxeo.labs.utils.bulk.PictureViewsPurgeAction;
+
+/**
+ * Starts the {@link PictureViewsPurgeAction} bulk action
+ * 
+ * @since 2023
+ */
+@Operation(id = PicturePurgeViews.ID, category = Constants.CAT_DOCUMENT, label = "Picture Purge Views (Bulk)", description = ""
+        + "Removes the views whose name matches one of viewNames (case insensitive, * matches any characters) from "
+        + "all the documents returned by the NXQL query, with the Bulk Action Framework: documents are processed in "
+        + "batches, by parallel workers, each batch saved and committed at once. bucketSize and batchSize are "
+        + "optional (default: the action configuration). Versions and proxies returned by the query are skipped. "
+        + "Returns immediately a JSON blob with the commandId, to follow the progress with the bulk status "
+        + "(Bulk.WaitForAction, /api/v1/bulk/{commandId}).")
+public class PicturePurgeViews {
+
+    public static final String ID = "Labs.PicturePurgeViews";
+
+    protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Context
+    protected CoreSession session;
+
+    @Context
+    protected BulkService bulkService;
+
+    @Param(name = "query", required = true)
+    protected String query;
+
+    @Param(name = "viewNames", required = true)
+    protected StringList viewNames;
+
+    @Param(name = "bucketSize", required = false)
+    protected Integer bucketSize;
+
+    @Param(name = "batchSize", required = false)
+    protected Integer batchSize;
+
+    @OperationMethod
+    public Blob run() throws IOException {
+
+        BulkCommand.Builder builder = new BulkCommand.Builder(PictureViewsPurgeAction.ACTION_NAME, query,
+                session.getPrincipal().getName()).repository(session.getRepositoryName())
+                                                 .param(PictureViewsPurgeAction.PARAM_VIEW_NAMES,
+                                                         (Serializable) new ArrayList<>(viewNames));
+        if (bucketSize != null && bucketSize > 0) {
+            builder.bucket(bucketSize);
+        }
+        if (batchSize != null && batchSize > 0) {
+            builder.batch(batchSize);
+        }
+        String commandId = bulkService.submit(builder.build());
+
+        ObjectNode result = MAPPER.createObjectNode();
+        result.put("commandId", commandId);
+        result.put("action", PictureViewsPurgeAction.ACTION_NAME);
+
+        return Blobs.createJSONBlob(MAPPER.writeValueAsString(result));
+    }
+}
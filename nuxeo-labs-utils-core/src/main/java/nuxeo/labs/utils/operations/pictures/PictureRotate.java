@@ -18,36 +18,61 @@
  */
 package nuxeo.labs.utils.operations.pictures;
 
+import java.io.IOException;
+
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.nuxeo.ecm.automation.core.Constants;
 import org.nuxeo.ecm.automation.core.annotations.Context;
 import org.nuxeo.ecm.automation.core.annotations.Operation;
 import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
 import org.nuxeo.ecm.automation.core.annotations.Param;
 import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CloseableFile;
+import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.platform.picture.api.ImagingService;
 
+import nuxeo.labs.utils.images.JpegOrientation;
+
 /**
  * Resizes an image using the default platform service
  * 
  * @since 2021.27
  */
 @Operation(id = PictureRotate.ID, category = Constants.CAT_CONVERSION, label = "Rotate Picture", description = "Rotate the input blob using the platform default ImagingComponent. "
-        + "angle is a required integer")
+        + "angle is a required integer. "
+        + "lossless is optional (false by default). When true, JPEGs rotated by a multiple of 90 are not decoded: only "
+        + "their EXIF orientation is changed, so the pixels (and the width/height) stay the same, and the image is "
+        + "displayed rotated by the readers that honor the orientation.")
 public class PictureRotate {
 
     public static final String ID = "Labs.PictureRotate";
 
+    private static final Logger log = LogManager.getLogger(PictureRotate.class);
+
     @Context
     protected ImagingService imagingService;
 
     @Param(name = "angle", required = true)
     protected Integer angle;
 
+    @Param(name = "lossless", required = false)
+    protected Boolean lossless = false;
+
     @OperationMethod
     public Blob run(Blob input) {
 
+        if (lossless && angle % 90 == 0) {
+            Blob rotated = rotateLossless(input);
+            if (rotated != null) {
+                return rotated;
+            }
+            log.debug("Cannot rotate " + input.getFilename() + " losslessly, using the ImagingService");
+        }
+
         Blob rotated = imagingService.rotate(input, angle);
         // It often returns a blob with a .null extension...
         String fileName = rotated.getFilename();
@@ -58,4 +83,24 @@ public class PictureRotate {
 
         return rotated;
     }
+
+    /**
+     * Rotates a JPEG by rewriting its EXIF orientation, returns null if the blob is not a JPEG
+     * 
+     * @since 2023
+     */
+    protected Blob rotateLossless(Blob input) {
+
+        try (CloseableFile file = input.getCloseableFile()) {
+            Blob rotated = Blobs.createBlobWithExtension(".jpg");
+            if (!JpegOrientation.rotate(file.getFile(), rotated.getFile(), angle)) {
+                return null;
+            }
+            rotated.setFilename(input.getFilename());
+            rotated.setMimeType("image/jpeg");
+            return rotated;
+        } catch (IOException e) {
+            throw new NuxeoException("Error rotating " + input.getFilename(), e);
+        }
+    }
 }
@@ -0,0 +1,171 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.operations.pictures;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CloseableFile;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.blobholder.SimpleBlobHolder;
+import org.nuxeo.ecm.core.convert.api.ConversionService;
+import org.nuxeo.runtime.api.Framework;
+
+import nuxeo.labs.utils.images.PictureTransformation;
+
+/**
+ * Applies several transformations (crop, rotate, resize, format) to an image in one pass, instead of chaining
+ * operations that each decode and re-encode the full image.
+ * 
+ * @since 2023
+ */
+@Operation(id = PictureTransform.ID, category = Constants.CAT_CONVERSION, label = "Transform Picture", description = ""
+        + "Applies the steps, in order, to the input blob, in a single ImageMagick call (one decode, one encode). "
+        + "steps is required: a list of name:value separated by ';' or new lines, with crop:WxH+X+Y, rotate:angle "
+        + "(clockwise, degrees), resize:WxH (fit in, keeping the aspect ratio; also W, xH, WxH! and N%), "
+        + "format:ext. For example: crop:800x600+10+20; rotate:90; resize:400x400; format:png. "
+        + "targetFileName is optional. When passed, its extension gives the format of the result, else the "
+        + "format step, else the format of the input. "
+        + "engine is optional: imagemagick (default) or java. With java, the image is transformed in the JVM with "
+        + "ImageIO (and only the cropped region is decoded when the first step is a crop). Formats the java engine "
+        + "cannot handle, and images whose decoded region or the result of any step has more than "
+        + "nuxeo.labs.utils.transform.java.maxInMemoryPixels pixels, are transformed with ImageMagick.")
+public class PictureTransform {
+
+    public static final String ID = "Labs.PictureTransform";
+
+    private static final Logger log = LogManager.getLogger(PictureTransform.class);
+
+    public static final String ENGINE_IMAGEMAGICK = "imagemagick";
+
+    public static final String ENGINE_JAVA = "java";
+
+    public static final String JAVA_MAX_IN_MEMORY_PIXELS_PROPERTY = "nuxeo.labs.utils.transform.java.maxInMemoryPixels";
+
+    public static final long DEFAULT_JAVA_MAX_IN_MEMORY_PIXELS = 50_000_000L;
+
+    @Context
+    protected ConversionService conversionService;
+
+    @Param(name = "steps", required = true)
+    protected String steps;
+
+    @Param(name = "targetFileName", required = false)
+    protected String targetFileName;
+
+    @Param(name = "engine", required = false)
+    protected String engine = ENGINE_IMAGEMAGICK;
+
+    @OperationMethod
+    public Blob run(Blob input) {
+
+        if (StringUtils.isNotBlank(engine) && !StringUtils.equalsAny(engine, ENGINE_IMAGEMAGICK, ENGINE_JAVA)) {
+            throw new IllegalArgumentException("Unknown engine: " + engine);
+        }
+
+        PictureTransformation transformation = PictureTransformation.parse(steps);
+        String fileName = getTargetFileName(input, transformation);
+
+        Blob result = null;
+        if (ENGINE_JAVA.equals(engine)) {
+            result = transformWithJava(input, transformation, fileName);
+            if (result == null) {
+                log.debug("The java engine cannot transform " + input.getFilename() + ", using ImageMagick");
+            }
+        }
+
+        if (result == null) {
+            Map<String, Serializable> params = new HashMap<>();
+            params.put("steps", transformation.toString());
+            params.put("targetFileName", fileName);
+            result = conversionService.convert(PictureTransformConverter.converterName, new SimpleBlobHolder(input),
+                    params).getBlob();
+        }
+
+        PictureBlobUtils.setFileNameAndMimeType(result, fileName);
+
+        return result;
+    }
+
+    protected String getTargetFileName(Blob input, PictureTransformation transformation) {
+
+        if (StringUtils.isNotBlank(targetFileName)) {
+            return targetFileName;
+        }
+
+        String inputFileName = input.getFilename();
+        String baseName = StringUtils.isBlank(inputFileName) ? "transformed" : FilenameUtils.getBaseName(inputFileName);
+        String ext = transformation.getFormat();
+        if (StringUtils.isBlank(ext)) {
+            ext = FilenameUtils.getExtension(inputFileName);
+        }
+        if (StringUtils.isBlank(ext) || "null".equalsIgnoreCase(ext)) {
+            // As ImagingService does by default
+            ext = "jpg";
+        }
+
+        return baseName + "." + ext;
+    }
+
+    /**
+     * Transforms the blob with {@link PictureTransformation#apply(java.io.File, java.io.File, String, long)}, returns
+     * null if it cannot handle it
+     */
+    protected Blob transformWithJava(Blob input, PictureTransformation transformation, String fileName) {
+
+        String destExt = FilenameUtils.getExtension(fileName);
+        String ext = FilenameUtils.getExtension(input.getFilename());
+        try (CloseableFile file = input.getCloseableFile(StringUtils.isBlank(ext) ? null : "." + ext)) {
+            Blob result = Blobs.createBlobWithExtension("." + destExt);
+            if (!transformation.apply(file.getFile(), result.getFile(), destExt, getJavaMaxInMemoryPixels())) {
+                return null;
+            }
+            return result;
+        } catch (IOException e) {
+            throw new NuxeoException("Error transforming " + input.getFilename(), e);
+        }
+    }
+
+    protected static long getJavaMaxInMemoryPixels() {
+
+        String value = Framework.getProperty(JAVA_MAX_IN_MEMORY_PIXELS_PROPERTY);
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Invalid value for " + JAVA_MAX_IN_MEMORY_PIXELS_PROPERTY + ": " + value);
+            }
+        }
+
+        return DEFAULT_JAVA_MAX_IN_MEMORY_PIXELS;
+    }
+}
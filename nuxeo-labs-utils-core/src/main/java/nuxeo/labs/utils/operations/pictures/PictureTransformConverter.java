@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.operations.pictures;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CloseableFile;
+import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
+import org.nuxeo.ecm.core.api.blobholder.SimpleBlobHolder;
+import org.nuxeo.ecm.core.convert.api.ConversionException;
+import org.nuxeo.ecm.core.convert.extension.Converter;
+import org.nuxeo.ecm.core.convert.extension.ConverterDescriptor;
+import org.nuxeo.ecm.platform.commandline.executor.api.CmdParameters;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandLineExecutorService;
+import org.nuxeo.ecm.platform.commandline.executor.api.ExecResult;
+import org.nuxeo.runtime.api.Framework;
+
+import nuxeo.labs.utils.images.PictureTransformation;
+
+/**
+ * Applies all the steps of a {@link PictureTransformation} (crop, rotate, resize, format) in a single ImageMagick
+ * call: the image is decoded and encoded once, and there is no intermediate file.
+ *
+ * @since 2023
+ */
+public class PictureTransformConverter implements Converter {
+
+    // As defined in xml extension
+    public static final String converterName = "pictureTransform";
+
+    public static final String DEFAULT_COMMAND_NAME = "pictureTransform";
+
+    protected String commandName = DEFAULT_COMMAND_NAME;
+
+    @Override
+    public void init(ConverterDescriptor descriptor) {
+        String name = descriptor.getParameters().get("CommandLineName");
+        if (StringUtils.isNotBlank(name)) {
+            commandName = name;
+        }
+    }
+
+    /**
+     * REQUIRED INPUT PARAMETERS (in parameters)
+     * "steps" is required, see {@link PictureTransformation}
+     * "targetFileName" is required. Just the file name _with its extension_, which gives the output format.
+     * The mime type of the result is not set.
+     */
+    @Override
+    public BlobHolder convert(BlobHolder blobHolder, Map<String, Serializable> parameters) throws ConversionException {
+
+        Blob blob = blobHolder.getBlob();
+        if (blob == null) {
+            throw new ConversionException("The pictureTransform converter received no blob");
+        }
+
+        String targetFileName = (String) parameters.get("targetFileName");
+        if (StringUtils.isBlank(targetFileName)) {
+            throw new ConversionException("The pictureTransform converter expects a required parameter, targetFileName");
+        }
+
+        PictureTransformation transformation;
+        try {
+            transformation = PictureTransformation.parse((String) parameters.get("steps"));
+        } catch (IllegalArgumentException e) {
+            throw new ConversionException(e.getMessage(), e);
+        }
+        List<String> arguments = transformation.toImageMagickArguments();
+        if (arguments.isEmpty()) {
+            // Format change only. The command expects at least one argument, this one does nothing here
+            arguments.add("+repage");
+        }
+
+        String ext = FilenameUtils.getExtension(blob.getFilename());
+        try (CloseableFile file = blob.getCloseableFile(StringUtils.isBlank(ext) ? null : "." + ext)) {
+
+            Blob result = Blobs.createBlobWithExtension("." + FilenameUtils.getExtension(targetFileName));
+
+            CommandLineExecutorService cles = Framework.getService(CommandLineExecutorService.class);
+            CmdParameters params = cles.getDefaultCmdParameters();
+            params.addNamedParameter("sourceFilePath", file.getFile().getAbsolutePath());
+            params.addNamedParameter("transformArguments", arguments);
+            params.addNamedParameter("targetFilePath", result.getFile().getAbsolutePath());
+
+            ExecResult execResult = cles.execCommand(commandName, params);
+            if (!execResult.isSuccessful()) {
+                throw new ConversionException("Error transforming " + blob.getFilename() + " (" + transformation
+                        + "): " + StringUtils.join(execResult.getOutput(), "\n"), execResult.getError());
+            }
+
+            result.setFilename(targetFileName);
+
+            return new SimpleBlobHolder(result);
+
+        } catch (IOException e) {
+            throw new ConversionException("Error transforming " + blob.getFilename(), e);
+        }
+    }
+
+}
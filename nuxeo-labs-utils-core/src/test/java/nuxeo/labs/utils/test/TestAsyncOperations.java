@@ -0,0 +1,171 @@
+/*
+ * (C) Copyright 2024 Hyland (http://hyland.com/)  and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package nuxeo.labs.utils.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.automation.AutomationService;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.core.util.Properties;
+import org.nuxeo.ecm.automation.test.AutomationFeature;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
+import org.nuxeo.ecm.core.test.annotations.Granularity;
+import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.ecm.platform.picture.api.ImageInfo;
+import org.nuxeo.ecm.platform.picture.api.ImagingService;
+import org.nuxeo.ecm.platform.picture.core.ImagingFeature;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.TransactionalFeature;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import nuxeo.labs.utils.async.AsyncJobs;
+import nuxeo.labs.utils.operations.async.AsyncJobGetResult;
+import nuxeo.labs.utils.operations.async.AsyncJobGetStatus;
+import nuxeo.labs.utils.operations.async.RunOperationAsync;
+import nuxeo.labs.utils.operations.pictures.PictureCrop;
+
+@RunWith(FeaturesRunner.class)
+@Features({ AutomationFeature.class, ImagingFeature.class })
+@RepositoryConfig(init = DefaultRepositoryInit.class, cleanup = Granularity.METHOD)
+@Deploy("org.nuxeo.ecm.platform.commandline.executor")
+@Deploy("org.nuxeo.ecm.platform.picture.core")
+@Deploy("nuxeo.labs.utils.nuxeo-labs-utils-core")
+public class TestAsyncOperations {
+
+    protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Inject
+    protected CoreSession session;
+
+    @Inject
+    protected AutomationService automationService;
+
+    @Inject
+    protected ImagingService imagingService;
+
+    @Inject
+    protected WorkManager workManager;
+
+    @Inject
+    protected TransactionalFeature txFeature;
+
+    protected JsonNode getStatus(String jobId) throws Exception {
+
+        OperationContext ctx = new OperationContext(session);
+        Map<String, Object> params = new HashMap<>();
+        params.put("jobId", jobId);
+        Blob status = (Blob) automationService.run(ctx, AsyncJobGetStatus.ID, params);
+
+        return MAPPER.readTree(status.getString());
+    }
+
+    @Test
+    public void shouldCropImageAsynchronously() throws Exception {
+
+        Properties cropParams = new Properties();
+        cropParams.put("top", "10");
+        cropParams.put("left", "10");
+        cropParams.put("width", "100");
+        cropParams.put("height", "110");
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(TestUtils.createBlobFromTestImage());
+        Map<String, Object> params = new HashMap<>();
+        params.put("operationId", PictureCrop.ID);
+        params.put("parameters", cropParams);
+        Blob result = (Blob) automationService.run(ctx, RunOperationAsync.ID, params);
+        String jobId = MAPPER.readTree(result.getString()).get("jobId").asText();
+        assertNotNull(jobId);
+
+        txFeature.nextTransaction();
+        assertTrue(workManager.awaitCompletion(60, TimeUnit.SECONDS));
+
+        JsonNode status = getStatus(jobId);
+        assertEquals(AsyncJobs.STATUS_COMPLETED, status.get("status").asText());
+        assertEquals(1, status.get("blobCount").asInt());
+
+        ctx = new OperationContext(session);
+        params = new HashMap<>();
+        params.put("jobId", jobId);
+        Blob cropped = (Blob) automationService.run(ctx, AsyncJobGetResult.ID, params);
+        ImageInfo ii = imagingService.getImageInfo(cropped);
+        assertEquals(100, ii.getWidth());
+        assertEquals(110, ii.getHeight());
+    }
+
+    @Test
+    public void shouldStoreTheErrorOfAFailedJob() throws Exception {
+
+        Properties cropParams = new Properties();
+        cropParams.put("top", "10");
+        cropParams.put("left", "10");
+        cropParams.put("width", "100");
+        cropParams.put("height", "110");
+        cropParams.put("engine", "not-an-engine");
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(TestUtils.createBlobFromTestImage());
+        Map<String, Object> params = new HashMap<>();
+        params.put("operationId", PictureCrop.ID);
+        params.put("parameters", cropParams);
+        Blob result = (Blob) automationService.run(ctx, RunOperationAsync.ID, params);
+        String jobId = MAPPER.readTree(result.getString()).get("jobId").asText();
+
+        txFeature.nextTransaction();
+        assertTrue(workManager.awaitCompletion(60, TimeUnit.SECONDS));
+
+        JsonNode status = getStatus(jobId);
+        assertEquals(AsyncJobs.STATUS_FAILED, status.get("status").asText());
+        assertTrue(status.get("error").asText().contains("not-an-engine"));
+    }
+
+    @Test
+    public void shouldNotRunOperationsThatAreNotAllowed() throws Exception {
+
+        OperationContext ctx = new OperationContext(session);
+        Map<String, Object> params = new HashMap<>();
+        params.put("operationId", "Labs.GetServerLog");
+        try {
+            automationService.run(ctx, RunOperationAsync.ID, params);
+            fail("Labs.GetServerLog should not be allowed");
+        } catch (Exception e) {
+            // Expected
+        }
+
+        assertEquals(AsyncJobs.STATUS_UNKNOWN, getStatus("not-a-job").get("status").asText());
+    }
+}
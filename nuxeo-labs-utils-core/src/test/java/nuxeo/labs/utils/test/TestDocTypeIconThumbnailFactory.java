@@ -18,29 +18,61 @@
  */
 package nuxeo.labs.utils.test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
 import javax.inject.Inject;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.nuxeo.common.Environment;
 import org.nuxeo.ecm.automation.test.AutomationFeature;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.thumbnail.ThumbnailService;
+import org.nuxeo.ecm.core.blob.ManagedBlob;
 import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
 import org.nuxeo.ecm.core.test.annotations.Granularity;
 import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
 import org.nuxeo.ecm.platform.picture.api.adapters.MultiviewPictureAdapter;
 import org.nuxeo.ecm.platform.picture.core.ImagingFeature;
+import org.nuxeo.ecm.platform.thumbnail.ThumbnailConstants;
+import org.nuxeo.runtime.pubsub.PubSubService;
 import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
 import org.nuxeo.runtime.test.runner.TransactionalFeature;
 
+import com.google.common.cache.CacheStats;
+
+import nuxeo.labs.utils.DocTypeIconStore;
+import nuxeo.labs.utils.DocTypeIconThumbnailComponent;
 import nuxeo.labs.utils.DocTypeIconThumbnailFactory;
+import nuxeo.labs.utils.operations.documents.DocumentGetThumbnail;
 
 /**
  * @since 2023
@@ -70,6 +102,9 @@ public class TestDocTypeIconThumbnailFactory {
     @Inject
     protected ThumbnailService thumbnailService;
 
+    @Inject
+    protected PubSubService pubSubService;
+
     @Test
     public void shouldGetDefaultIcon() throws Exception {
 
@@ -87,4 +122,330 @@ public class TestDocTypeIconThumbnailFactory {
         assertTrue(fileName.equals("image_100.png") || fileName.equals(DocTypeIconThumbnailFactory.NO_THUMBNAIL_FALLBACK_NAME));
     }
 
+    @Test
+    public void shouldResolveDocTypeIconOnlyOnce() throws Exception {
+
+        DocumentModel doc = session.createDocumentModel("/", "testFile", "File");
+        doc = session.createDocument(doc);
+
+        // Warm the cache for this doc type
+        thumbnailService.getThumbnail(doc, session);
+        CacheStats before = DocTypeIconThumbnailFactory.getCacheStats();
+
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(thumbnailService.getThumbnail(doc, session));
+        }
+
+        CacheStats diff = DocTypeIconThumbnailFactory.getCacheStats().minus(before);
+        assertEquals(0, diff.missCount());
+        assertEquals(10, diff.hitCount());
+    }
+
+    @Test
+    public void shouldResolveDocTypeIconOnceWhenConcurrent() throws Exception {
+
+        String docType = CountingFactory.TEST_DOC_TYPE;
+        DocTypeIconThumbnailFactory.invalidate(Collections.singletonList(docType));
+        CountingFactory.loads.set(0);
+        CacheStats before = DocTypeIconThumbnailFactory.getCacheStats();
+
+        int nbThreads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Blob>> futures = new ArrayList<>();
+            for (int i = 0; i < nbThreads; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return new CountingFactory().getDocTypeThumbnail(docType);
+                }));
+            }
+            start.countDown();
+            for (Future<Blob> future : futures) {
+                assertNotNull(future.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, CountingFactory.loads.get());
+        assertEquals(1, DocTypeIconThumbnailFactory.getCacheStats().minus(before).loadCount());
+    }
+
+    @Test
+    public void shouldPrewarmAllDocTypes() throws Exception {
+
+        int count = DocTypeIconThumbnailFactory.prewarm();
+        // At least the null doc type, File, Folder, Picture, ...
+        assertTrue(count > 3);
+        assertTrue(DocTypeIconThumbnailFactory.getCacheSize() >= count);
+
+        // Now, getting the thumbnail of a File must not resolve anything
+        CacheStats before = DocTypeIconThumbnailFactory.getCacheStats();
+        DocumentModel doc = session.createDocumentModel("/", "testFile", "File");
+        doc = session.createDocument(doc);
+        assertNotNull(thumbnailService.getThumbnail(doc, session));
+        assertEquals(0, DocTypeIconThumbnailFactory.getCacheStats().minus(before).missCount());
+    }
+
+    @Test
+    public void shouldServeFallbackFromMemory() throws Exception {
+
+        assertTrue(DocTypeIconThumbnailFactory.prerenderThumbnailFallback());
+
+        // Unknown doc type => fallback
+        Blob fallback1 = new TestableFactory().getThumbnailFallback();
+        Blob fallback2 = new TestableFactory().getThumbnailFallback();
+        assertNotNull(fallback1);
+        assertEquals(DocTypeIconThumbnailFactory.NO_THUMBNAIL_FALLBACK_NAME, fallback1.getFilename());
+        assertEquals("image/png", fallback1.getMimeType());
+        assertTrue(fallback1.getLength() > 0);
+        // Not the same instance, but the same content
+        assertTrue(fallback1 != fallback2);
+        assertEquals(fallback1.getLength(), fallback2.getLength());
+        // And a stable digest (used as ETag)
+        assertNotNull(fallback1.getDigest());
+        assertEquals(fallback1.getDigest(), fallback2.getDigest());
+    }
+
+    @Test
+    public void shouldResizeDocTypeIcon() throws Exception {
+
+        TestableFactory factory = new TestableFactory();
+
+        Blob resized = factory.getDocTypeThumbnail(TestableFactory.TEST_DOC_TYPE, 64);
+        assertNotNull(resized);
+        assertEquals("image/png", resized.getMimeType());
+        BufferedImage image;
+        try (InputStream in = resized.getStream()) {
+            image = ImageIO.read(in);
+        }
+        // Desert.jpg is 1024x768
+        assertEquals(64, image.getWidth());
+        assertEquals(48, image.getHeight());
+
+        // Second call uses the cache
+        CacheStats before = DocTypeIconThumbnailFactory.getResizedCacheStats();
+        Blob again = factory.getDocTypeThumbnail(TestableFactory.TEST_DOC_TYPE, 64);
+        assertEquals(resized.getLength(), again.getLength());
+        // Stable digest, derived from the source icon and the size
+        String iconDigest = factory.getDocTypeThumbnail(TestableFactory.TEST_DOC_TYPE).getDigest();
+        assertEquals(TestUtils.TEST_IMAGE_MD5, iconDigest);
+        assertEquals(DigestUtils.md5Hex(iconDigest + ":64"), again.getDigest());
+        CacheStats diff = DocTypeIconThumbnailFactory.getResizedCacheStats().minus(before);
+        assertEquals(1, diff.hitCount());
+        assertEquals(0, diff.missCount());
+    }
+
+    @Test
+    public void shouldInvalidateDocType() throws Exception {
+
+        TestableFactory factory = new TestableFactory();
+        factory.getDocTypeThumbnail(TestableFactory.TEST_DOC_TYPE);
+        factory.getDocTypeThumbnail(TestableFactory.TEST_DOC_TYPE, 32);
+
+        DocTypeIconThumbnailComponent.invalidate(Collections.singletonList(TestableFactory.TEST_DOC_TYPE));
+
+        CacheStats before = DocTypeIconThumbnailFactory.getCacheStats();
+        CacheStats resizedBefore = DocTypeIconThumbnailFactory.getResizedCacheStats();
+        factory.getDocTypeThumbnail(TestableFactory.TEST_DOC_TYPE, 32);
+        assertEquals(1, DocTypeIconThumbnailFactory.getCacheStats().minus(before).missCount());
+        assertEquals(1, DocTypeIconThumbnailFactory.getResizedCacheStats().minus(resizedBefore).missCount());
+
+        // Nothing changed since the doc types were cached
+        assertTrue(DocTypeIconThumbnailFactory.invalidateChanged().isEmpty());
+    }
+
+    @Test
+    public void shouldEvictDocTypeInvalidatedOnAnotherNode() throws Exception {
+
+        TestableFactory factory = new TestableFactory();
+        String otherDocType = "File";
+        factory.getDocTypeThumbnail(TestableFactory.TEST_DOC_TYPE);
+        factory.getDocTypeThumbnail(otherDocType);
+        assertTrue(DocTypeIconThumbnailFactory.getCachedDocTypes().contains(TestableFactory.TEST_DOC_TYPE));
+
+        // Our own message is ignored (messages are handled in order: once the next one is, this one was too)
+        publishInvalidation(NodeIdAccessor.getNodeId(), TestableFactory.TEST_DOC_TYPE);
+        publishInvalidation("another-node", otherDocType);
+        waitForEviction(otherDocType);
+        assertTrue(DocTypeIconThumbnailFactory.getCachedDocTypes().contains(TestableFactory.TEST_DOC_TYPE));
+
+        // Message from another node
+        publishInvalidation("another-node", TestableFactory.TEST_DOC_TYPE);
+        waitForEviction(TestableFactory.TEST_DOC_TYPE);
+    }
+
+    protected void publishInvalidation(String nodeId, String docType) {
+        String message = nodeId + "\n" + docType;
+        pubSubService.publish(DocTypeIconThumbnailComponent.INVALIDATION_TOPIC,
+                message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    protected void waitForEviction(String docType) throws InterruptedException {
+
+        long timeout = System.currentTimeMillis() + 10_000;
+        while (DocTypeIconThumbnailFactory.getCachedDocTypes().contains(docType)) {
+            assertTrue(docType + " not evicted", System.currentTimeMillis() < timeout);
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void shouldReturnStoredThumbnail() throws Exception {
+
+        Blob image = TestUtils.createBlobFromTestImage();
+        DocumentModel doc = session.createDocumentModel("/", "testFile", "File");
+        doc.addFacet(ThumbnailConstants.THUMBNAIL_FACET);
+        doc.setPropertyValue(ThumbnailConstants.THUMBNAIL_PROPERTY_NAME, (Serializable) image);
+        doc = session.createDocument(doc);
+        DocumentModel noBlob = session.createDocumentModel("/", "testFileNoBlob", "File");
+        noBlob.addFacet(ThumbnailConstants.THUMBNAIL_FACET);
+        noBlob = session.createDocument(noBlob);
+        txFeature.nextTransaction();
+
+        DocTypeIconThumbnailFactory factory = new DocTypeIconThumbnailFactory();
+        Blob thumbnail = factory.getThumbnail(session.getDocument(doc.getRef()), session);
+        assertTrue(thumbnail instanceof ManagedBlob);
+        assertEquals(TestUtils.TEST_IMAGE_MD5, thumbnail.getDigest());
+        assertEquals(image.getLength(), thumbnail.getLength());
+        assertEquals(image.getFilename(), thumbnail.getFilename());
+
+        // Facet but no blob => icon of the doc type
+        noBlob = session.getDocument(noBlob.getRef());
+        thumbnail = factory.getThumbnail(noBlob, session);
+        assertNotNull(thumbnail);
+        assertEquals(factory.getDefaultThumbnail(noBlob).getDigest(), thumbnail.getDigest());
+    }
+
+    @Test
+    public void shouldResizeOnlyDocTypeIconWhenGettingThumbnail() throws Exception {
+
+        Blob image = TestUtils.createBlobFromTestImage();
+        DocumentModel withThumbnail = session.createDocumentModel("/", "withThumbnail", "File");
+        withThumbnail.addFacet(ThumbnailConstants.THUMBNAIL_FACET);
+        withThumbnail.setPropertyValue(ThumbnailConstants.THUMBNAIL_PROPERTY_NAME, (Serializable) image);
+        withThumbnail = session.createDocument(withThumbnail);
+        DocumentModel withoutThumbnail = session.createDocument(
+                session.createDocumentModel("/", "withoutThumbnail", "File"));
+        txFeature.nextTransaction();
+
+        // The actual thumbnail, not resized
+        Blob thumbnail = DocumentGetThumbnail.getThumbnail(session, thumbnailService,
+                session.getDocument(withThumbnail.getRef()), 32);
+        assertEquals(TestUtils.TEST_IMAGE_MD5, thumbnail.getDigest());
+
+        // The icon, resized
+        DocumentModel doc = session.getDocument(withoutThumbnail.getRef());
+        DocTypeIconThumbnailFactory factory = new DocTypeIconThumbnailFactory();
+        assertTrue(factory.isDocTypeThumbnail(thumbnailService.getThumbnail(doc, session), doc));
+        thumbnail = DocumentGetThumbnail.getThumbnail(session, thumbnailService, doc, 32);
+        assertEquals(factory.getDefaultThumbnail(doc, 32).getDigest(), thumbnail.getDigest());
+    }
+
+    @Test
+    public void shouldPersistResizedIcons() throws Exception {
+
+        DocTypeIconStore store = DocTypeIconStore.getInstance();
+        assertNotNull(store);
+
+        Blob resized = new TestableFactory().getDocTypeThumbnail(TestableFactory.TEST_DOC_TYPE, 48);
+        Blob stored = store.loadResizedIcon(TestableFactory.TEST_DOC_TYPE, 48, TestUtils.TEST_IMAGE_MD5);
+        assertNotNull(stored);
+        assertEquals(resized.getLength(), stored.getLength());
+        assertEquals(resized.getDigest(), stored.getDigest());
+        assertEquals(resized.getFilename(), stored.getFilename());
+
+        // Resized from another icon => not valid
+        assertNull(store.loadResizedIcon(TestableFactory.TEST_DOC_TYPE, 48, "123456"));
+
+        // Fallback is stored too
+        assertTrue(DocTypeIconThumbnailFactory.prerenderThumbnailFallback());
+        assertNotNull(store.loadFallback());
+    }
+
+    @Test
+    public void shouldWriteStoreIndexOncePerBatch() throws Exception {
+
+        DocTypeIconStore store = DocTypeIconStore.getInstance();
+        assertNotNull(store);
+        File dir = new File(Environment.getDefault().getData(), DocTypeIconStore.DIRECTORY_NAME);
+        File indexFile = new File(new File(dir, DocTypeIconStore.VERSION), "index.properties");
+        String key = "icon.NxLabsBatchTestDocType.path";
+
+        store.beginBatch();
+        try {
+            store.saveIcon("NxLabsBatchTestDocType", "/icons/nxlabs-batch-test.png", null);
+            assertTrue(!indexFile.exists() || !readProperties(indexFile).containsKey(key));
+        } finally {
+            store.endBatch();
+        }
+        assertEquals("/icons/nxlabs-batch-test.png", readProperties(indexFile).getProperty(key));
+
+        store.remove("NxLabsBatchTestDocType");
+        assertNull(readProperties(indexFile).getProperty(key));
+    }
+
+    protected static Properties readProperties(File file) throws IOException {
+
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    // To read the node id of the component, which is protected
+    protected static class NodeIdAccessor extends DocTypeIconThumbnailComponent {
+
+        public static String getNodeId() {
+            return NODE_ID;
+        }
+    }
+
+    protected static class CountingFactory extends DocTypeIconThumbnailFactory {
+
+        public static final String TEST_DOC_TYPE = "NxLabsConcurrentTestDocType";
+
+        protected static final AtomicInteger loads = new AtomicInteger();
+
+        @Override
+        protected Blob loadIcon(String docType) {
+            if (TEST_DOC_TYPE.equals(docType)) {
+                loads.incrementAndGet();
+                try {
+                    // Slow enough for the other threads to ask for the same doc type meanwhile
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.loadIcon(docType);
+        }
+    }
+
+    protected static class TestableFactory extends DocTypeIconThumbnailFactory {
+
+        public static final String TEST_DOC_TYPE = "NxLabsTestDocType";
+
+        @Override
+        public Blob getThumbnailFallback() {
+            return super.getThumbnailFallback();
+        }
+
+        @Override
+        protected Blob resolveIcon(String docType) {
+            if (TEST_DOC_TYPE.equals(docType)) {
+                try {
+                    Blob icon = TestUtils.createBlobFromTestImage();
+                    icon.setDigest(getDigest(icon));
+                    return icon;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return super.resolveIcon(docType);
+        }
+    }
+
 }
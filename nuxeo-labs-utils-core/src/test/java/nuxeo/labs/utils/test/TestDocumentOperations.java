@@ -18,11 +18,16 @@
  */
 package nuxeo.labs.utils.test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import javax.inject.Inject;
 
@@ -31,11 +36,15 @@ import org.junit.runner.RunWith;
 import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.automation.AutomationService;
 import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.core.util.BlobList;
 import org.nuxeo.ecm.automation.test.AutomationFeature;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.Blobs;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
+import org.nuxeo.ecm.core.api.thumbnail.ThumbnailService;
 import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
 import org.nuxeo.ecm.core.test.annotations.Granularity;
 import org.nuxeo.ecm.core.test.annotations.RepositoryConfig;
@@ -45,7 +54,12 @@ import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
 import org.nuxeo.runtime.test.runner.TransactionalFeature;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import nuxeo.labs.utils.operations.documents.DocTypeIconsGetSprite;
 import nuxeo.labs.utils.operations.documents.DocumentGetThumbnail;
+import nuxeo.labs.utils.operations.documents.DocumentGetThumbnailsZip;
 
 /**
  *
@@ -69,6 +83,9 @@ public class TestDocumentOperations {
 
     @Inject
     protected TransactionalFeature txFeature;
+
+    @Inject
+    protected ThumbnailService thumbnailService;
     
     protected Blob createBlobFromTestImage() throws IOException {
         File f = FileUtils.getResourceFileFromContext(TEST_IMAGE_FILE);
@@ -92,4 +109,112 @@ public class TestDocumentOperations {
         assertTrue(thumbnail.getMimeType().startsWith("image/"));
         
     }
+
+    protected DocumentModelList createPictures(int count) throws Exception {
+
+        DocumentModelList docs = new DocumentModelListImpl();
+        for (int i = 0; i < count; i++) {
+            docs.add(TestUtils.createPictureWithTestImage(session, txFeature, null, true));
+        }
+
+        return docs;
+    }
+
+    @Test
+    public void shouldGetThumbnailsFromDocumentList() throws Exception {
+
+        DocumentModelList docs = createPictures(3);
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(docs);
+        BlobList thumbnails = (BlobList) automationService.run(ctx, DocumentGetThumbnail.ID);
+
+        assertNotNull(thumbnails);
+        assertEquals(3, thumbnails.size());
+        for (Blob thumbnail : thumbnails) {
+            assertTrue(thumbnail.getMimeType().startsWith("image/"));
+        }
+    }
+
+    @Test
+    public void shouldKeepPositionsOfDocumentsWithoutThumbnail() throws Exception {
+
+        DocumentModelList docs = new DocumentModelListImpl();
+        docs.add(session.createDocument(session.createDocumentModel("/", "noThumbnail", "Folder")));
+        docs.addAll(createPictures(1));
+        txFeature.nextTransaction();
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(docs);
+        BlobList thumbnails = (BlobList) automationService.run(ctx, DocumentGetThumbnail.ID);
+
+        assertEquals(2, thumbnails.size());
+        assertNotNull(thumbnails.get(0));
+        assertEquals(DocumentGetThumbnail.getThumbnail(session, thumbnailService, docs.get(1), null).getDigest(),
+                thumbnails.get(1).getDigest());
+    }
+
+    @Test
+    public void shouldGetThumbnailsAsZip() throws Exception {
+
+        DocumentModelList docs = createPictures(3);
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(docs);
+        Blob zip = (Blob) automationService.run(ctx, DocumentGetThumbnailsZip.ID);
+
+        assertNotNull(zip);
+        assertEquals("application/zip", zip.getMimeType());
+        assertEquals(DocumentGetThumbnailsZip.DEFAULT_FILE_NAME, zip.getFilename());
+        try (ZipFile zipFile = new ZipFile(zip.getFile())) {
+            assertEquals(3, zipFile.size());
+            for (DocumentModel doc : docs) {
+                assertTrue(zipFile.stream().map(ZipEntry::getName).anyMatch(name -> name.startsWith(doc.getId())));
+            }
+        }
+    }
+
+    @Test
+    public void shouldGetDocTypeIconsSprite() throws Exception {
+
+        OperationContext ctx = new OperationContext(session);
+        Map<String, Object> params = new HashMap<>();
+        params.put("docTypes", "File,Folder,Picture");
+        params.put("size", 16);
+        Blob result = (Blob) automationService.run(ctx, DocTypeIconsGetSprite.ID, params);
+
+        assertNotNull(result);
+        assertEquals("application/json", result.getMimeType());
+        JsonNode json = new ObjectMapper().readTree(result.getString());
+        assertEquals(16, json.get("size").asInt());
+        assertTrue(json.get("image").asText().startsWith("data:image/png;base64,"));
+        JsonNode icons = json.get("icons");
+        assertEquals(3, icons.size());
+        for (JsonNode icon : icons) {
+            assertTrue(icon.get("width").asInt() <= 16);
+            assertTrue(icon.get("x").asInt() + icon.get("width").asInt() <= json.get("width").asInt());
+            assertTrue(icon.get("y").asInt() + icon.get("height").asInt() <= json.get("height").asInt());
+        }
+
+        // Same sprite (and digest) next time
+        Blob again = (Blob) automationService.run(ctx, DocTypeIconsGetSprite.ID, params);
+        assertEquals(json.get("digest").asText(),
+                new ObjectMapper().readTree(again.getString()).get("digest").asText());
+    }
+
+    @Test
+    public void shouldGetDocTypeIconsAsDataUris() throws Exception {
+
+        DocumentModelList docs = createPictures(2);
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(docs);
+        Map<String, Object> params = new HashMap<>();
+        params.put("mode", DocTypeIconsGetSprite.MODE_DATA_URI);
+        Blob result = (Blob) automationService.run(ctx, DocTypeIconsGetSprite.ID, params);
+
+        JsonNode icons = new ObjectMapper().readTree(result.getString()).get("icons");
+        assertEquals(1, icons.size());
+        assertTrue(icons.get("Picture").asText().startsWith("data:image/"));
+    }
 }
@@ -19,19 +19,33 @@
 package nuxeo.labs.utils.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
+import javax.imageio.ImageIO;
 import javax.inject.Inject;
 
+import org.apache.commons.io.FilenameUtils;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -39,11 +53,16 @@ import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.automation.AutomationService;
 import org.nuxeo.ecm.automation.OperationContext;
 import org.nuxeo.ecm.automation.core.util.BlobList;
+import org.nuxeo.ecm.automation.core.util.StringList;
 import org.nuxeo.ecm.automation.test.AutomationFeature;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.Blobs;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.api.VersioningOption;
+import org.nuxeo.ecm.core.bulk.BulkService;
+import org.nuxeo.ecm.core.bulk.message.BulkStatus;
 import org.nuxeo.ecm.core.convert.api.ConversionService;
 import org.nuxeo.ecm.core.test.DefaultRepositoryInit;
 import org.nuxeo.ecm.core.test.annotations.Granularity;
@@ -53,20 +72,36 @@ import org.nuxeo.ecm.platform.picture.api.ImagingService;
 import org.nuxeo.ecm.platform.picture.api.PictureView;
 import org.nuxeo.ecm.platform.picture.api.adapters.MultiviewPictureAdapter;
 import org.nuxeo.ecm.platform.picture.core.ImagingFeature;
+import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
 import org.nuxeo.runtime.test.runner.TransactionalFeature;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 
+import nuxeo.labs.utils.ImageInfoCache;
+import nuxeo.labs.utils.PerceptualHashIndex;
+import nuxeo.labs.utils.images.ContactSheet;
+import nuxeo.labs.utils.images.ImageConcatenator;
+import nuxeo.labs.utils.images.JpegOrientation;
+import nuxeo.labs.utils.images.PictureTransformation;
 import nuxeo.labs.utils.operations.pictures.ConcatenateImages;
 import nuxeo.labs.utils.operations.pictures.PictureAddToViews;
+import nuxeo.labs.utils.operations.pictures.PictureComputePerceptualHash;
+import nuxeo.labs.utils.operations.pictures.PictureComputeView;
 import nuxeo.labs.utils.operations.pictures.PictureCrop;
+import nuxeo.labs.utils.operations.pictures.PictureCropRegions;
+import nuxeo.labs.utils.operations.pictures.PictureFindSimilar;
 import nuxeo.labs.utils.operations.pictures.PictureGetInfo;
+import nuxeo.labs.utils.operations.pictures.PicturePerceptualHashIndexUpdate;
+import nuxeo.labs.utils.operations.pictures.PicturePurgeViews;
 import nuxeo.labs.utils.operations.pictures.PictureRemoveFromViews;
 import nuxeo.labs.utils.operations.pictures.PictureRotate;
+import nuxeo.labs.utils.operations.pictures.PictureTransform;
 
 /**
  *
@@ -97,6 +132,9 @@ public class TestPictureOperations {
     @Inject
     ConversionService conversionService;
 
+    @Inject
+    protected BulkService bulkService;
+
     @Test
     public void shouldGetPictureInfo() throws Exception {
 
@@ -146,6 +184,268 @@ public class TestPictureOperations {
 
     }
 
+    @Test
+    public void shouldAddSeveralViewsAtOnce() throws Exception {
+
+        Blob input = TestUtils.createBlobFromTestImage();
+        DocumentModel doc = TestUtils.createPictureWithTestImage(session, txFeature, input, true);
+        int viewCount = new MultiviewPictureAdapter(doc).getViews().length;
+
+        BlobList blobs = new BlobList();
+        blobs.add(TestUtils.createBlobFromTestImage());
+        blobs.add(TestUtils.createBlobFromTestImage());
+        blobs.add(TestUtils.createBlobFromTestImage());
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(blobs);
+        Map<String, Object> params = new HashMap<>();
+        params.put("document", doc.getId());
+        params.put("viewNames", new StringList(List.of("view-1", "view-2", "view-3")));
+        // Commas are kept in the values
+        params.put("descriptions", new StringList(List.of("Medium, watermarked", "Second")));
+        params.put("saveDoc", true);
+        doc = (DocumentModel) automationService.run(ctx, PictureAddToViews.ID, params);
+
+        doc.refresh();
+        MultiviewPictureAdapter adapter = new MultiviewPictureAdapter(doc);
+        assertEquals(viewCount + 3, adapter.getViews().length);
+        assertEquals("Medium, watermarked", adapter.getView("view-1").getDescription());
+        assertEquals("Second", adapter.getView("view-2").getDescription());
+        // Defaults to the view name
+        PictureView view = adapter.getView("view-3");
+        assertEquals("view-3", view.getDescription());
+        assertEquals(1024, view.getWidth());
+        assertEquals(768, view.getHeight());
+        assertEquals(input.getFilename(), view.getFilename());
+    }
+
+    @Test
+    public void shouldFailAddingViewsWithMissingNames() throws Exception {
+
+        DocumentModel doc = TestUtils.createPictureWithTestImage(session, txFeature, null, true);
+
+        BlobList blobs = new BlobList();
+        blobs.add(TestUtils.createBlobFromTestImage());
+        blobs.add(TestUtils.createBlobFromTestImage());
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(blobs);
+        Map<String, Object> params = new HashMap<>();
+        params.put("document", doc.getId());
+        params.put("viewNames", new StringList(List.of("view-1")));
+        try {
+            automationService.run(ctx, PictureAddToViews.ID, params);
+            fail("Should have failed, 2 blobs and 1 view name");
+        } catch (Exception e) {
+            // Expected (wrapped by automation)
+        }
+    }
+
+    @Test
+    public void shouldPurgeViewsInBulk() throws Exception {
+
+        DocumentModel doc1 = TestUtils.createPictureWithTestImage(session, txFeature, null, true);
+        DocumentModel doc2 = TestUtils.createPictureWithTestImage(session, txFeature, null, true);
+        assertNotNull(new MultiviewPictureAdapter(doc1).getView("Medium"));
+        assertNotNull(new MultiviewPictureAdapter(doc1).getView("FullHD"));
+        int viewCount = new MultiviewPictureAdapter(doc1).getViews().length;
+
+        OperationContext ctx = new OperationContext(session);
+        Map<String, Object> params = new HashMap<>();
+        params.put("query", "SELECT * FROM Picture WHERE ecm:isVersion = 0");
+        // Case insensitive, with wildcard
+        params.put("viewNames", "medium,*hd");
+        Blob result = (Blob) automationService.run(ctx, PicturePurgeViews.ID, params);
+        String commandId = new ObjectMapper().readTree(result.getString()).get("commandId").asText();
+
+        assertTrue(bulkService.await(commandId, Duration.ofSeconds(60)));
+        BulkStatus status = bulkService.getStatus(commandId);
+        assertEquals(BulkStatus.State.COMPLETED, status.getState());
+        assertEquals(2, status.getProcessed());
+
+        txFeature.nextTransaction();
+        for (DocumentModel doc : List.of(doc1, doc2)) {
+            doc.refresh();
+            MultiviewPictureAdapter adapter = new MultiviewPictureAdapter(doc);
+            assertNull(adapter.getView("Medium"));
+            assertNull(adapter.getView("FullHD"));
+            assertNotNull(adapter.getView("Small"));
+            assertEquals(viewCount - 2, adapter.getViews().length);
+        }
+    }
+
+    @Test
+    public void shouldNotPurgeViewsOfVersions() throws Exception {
+
+        DocumentModel doc = TestUtils.createPictureWithTestImage(session, txFeature, null, true);
+        DocumentRef versionRef = session.checkIn(doc.getRef(), VersioningOption.MINOR, null);
+        txFeature.nextTransaction();
+
+        OperationContext ctx = new OperationContext(session);
+        Map<String, Object> params = new HashMap<>();
+        // The version is returned by the query
+        params.put("query", "SELECT * FROM Picture");
+        params.put("viewNames", "Medium");
+        Blob result = (Blob) automationService.run(ctx, PicturePurgeViews.ID, params);
+        String commandId = new ObjectMapper().readTree(result.getString()).get("commandId").asText();
+
+        assertTrue(bulkService.await(commandId, Duration.ofSeconds(60)));
+        BulkStatus status = bulkService.getStatus(commandId);
+        assertEquals(BulkStatus.State.COMPLETED, status.getState());
+        assertEquals(2, status.getProcessed());
+
+        txFeature.nextTransaction();
+        assertNull(new MultiviewPictureAdapter(session.getDocument(doc.getRef())).getView("Medium"));
+        assertNotNull(new MultiviewPictureAdapter(session.getDocument(versionRef)).getView("Medium"));
+    }
+
+    protected void runComputeView(Map<String, Object> params, int expectedProcessed) throws Exception {
+
+        OperationContext ctx = new OperationContext(session);
+        Blob result = (Blob) automationService.run(ctx, PictureComputeView.ID, params);
+        String commandId = new ObjectMapper().readTree(result.getString()).get("commandId").asText();
+
+        assertTrue(bulkService.await(commandId, Duration.ofSeconds(60)));
+        BulkStatus status = bulkService.getStatus(commandId);
+        assertEquals(BulkStatus.State.COMPLETED, status.getState());
+        assertEquals(expectedProcessed, status.getProcessed());
+        txFeature.nextTransaction();
+    }
+
+    @Test
+    public void shouldComputeViewInBulk() throws Exception {
+
+        DocumentModel doc1 = TestUtils.createPictureWithTestImage(session, txFeature, null, true);
+        DocumentModel doc2 = TestUtils.createPictureWithTestImage(session, txFeature, null, true);
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("query", "SELECT * FROM Picture WHERE ecm:isVersion = 0");
+        params.put("viewName", "Square");
+        params.put("description", "First");
+        params.put("steps", "crop:768x768+128+0;resize:200x200;format:png");
+        runComputeView(params, 2);
+
+        for (DocumentModel doc : List.of(doc1, doc2)) {
+            doc.refresh();
+            PictureView view = new MultiviewPictureAdapter(doc).getView("Square");
+            assertNotNull(view);
+            assertEquals("First", view.getDescription());
+            assertEquals(200, view.getImageInfo().getWidth());
+            assertEquals(200, view.getImageInfo().getHeight());
+            assertEquals("png", FilenameUtils.getExtension(view.getBlob().getFilename()));
+        }
+
+        // Same source, same steps: up to date, not recomputed
+        params.put("description", "Second");
+        runComputeView(params, 2);
+        doc1.refresh();
+        assertEquals("First", new MultiviewPictureAdapter(doc1).getView("Square").getDescription());
+
+        params.put("force", true);
+        runComputeView(params, 2);
+        doc1.refresh();
+        assertEquals("Second", new MultiviewPictureAdapter(doc1).getView("Square").getDescription());
+
+        // View of doc1 replaced by something else: not up to date anymore
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(TestUtils.createBlobFromTestImage());
+        Map<String, Object> addParams = new HashMap<>();
+        addParams.put("document", doc1.getId());
+        addParams.put("viewName", "Square");
+        addParams.put("saveDoc", true);
+        automationService.run(ctx, PictureAddToViews.ID, addParams);
+        txFeature.nextTransaction();
+
+        params.put("description", "Third");
+        params.remove("force");
+        runComputeView(params, 2);
+        doc1.refresh();
+        doc2.refresh();
+        PictureView view = new MultiviewPictureAdapter(doc1).getView("Square");
+        assertEquals("Third", view.getDescription());
+        assertEquals(200, view.getImageInfo().getWidth());
+        assertEquals("Second", new MultiviewPictureAdapter(doc2).getView("Square").getDescription());
+    }
+
+    @Test
+    public void shouldNotComputeViewOfVersions() throws Exception {
+
+        DocumentModel doc = TestUtils.createPictureWithTestImage(session, txFeature, null, true);
+        DocumentRef versionRef = session.checkIn(doc.getRef(), VersioningOption.MINOR, null);
+        txFeature.nextTransaction();
+
+        Map<String, Object> params = new HashMap<>();
+        // The version is returned by the query
+        params.put("query", "SELECT * FROM Picture");
+        params.put("viewName", "Square");
+        params.put("steps", "crop:768x768+128+0;resize:200x200;format:png");
+        runComputeView(params, 2);
+
+        assertNotNull(new MultiviewPictureAdapter(session.getDocument(doc.getRef())).getView("Square"));
+        assertNull(new MultiviewPictureAdapter(session.getDocument(versionRef)).getView("Square"));
+    }
+
+    @Test
+    public void shouldFindSimilarPictures() throws Exception {
+
+        DocumentModel desert = TestUtils.createPictureWithTestImage(session, txFeature, null, false);
+        File f = FileUtils.getResourceFileFromContext("files/Chrysanthemum.jpg");
+        DocumentModel chrysanthemum = TestUtils.createPictureWithTestImage(session, txFeature,
+                Blobs.createBlob(f, "image/jpeg"), false);
+
+        for (DocumentModel doc : List.of(desert, chrysanthemum)) {
+            OperationContext ctx = new OperationContext(session);
+            ctx.setInput(doc);
+            Map<String, Object> params = new HashMap<>();
+            params.put("saveDoc", true);
+            doc = (DocumentModel) automationService.run(ctx, PictureComputePerceptualHash.ID, params);
+            assertTrue(doc.hasFacet(PerceptualHashIndex.FACET));
+            assertEquals(16, ((String) doc.getPropertyValue(PerceptualHashIndex.HASH_XPATH)).length());
+        }
+        txFeature.nextTransaction();
+
+        // A smaller, re-encoded copy of Desert.jpg
+        BufferedImage image = ImageIO.read(FileUtils.getResourceFileFromContext(TestUtils.TEST_IMAGE_FILE));
+        BufferedImage small = new BufferedImage(300, 225, BufferedImage.TYPE_INT_RGB);
+        small.createGraphics().drawImage(image, 0, 0, 300, 225, null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(small, "jpg", out);
+        Blob copy = Blobs.createBlob(out.toByteArray(), "image/jpeg");
+        copy.setFilename("copy.jpg");
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(copy);
+        Map<String, Object> params = new HashMap<>();
+        params.put("refreshIndex", true);
+        Blob result = (Blob) automationService.run(ctx, PictureFindSimilar.ID, params);
+        JsonNode matches = new ObjectMapper().readTree(result.getString());
+        assertEquals(1, matches.size());
+        assertEquals(desert.getId(), matches.get(0).get("uid").asText());
+        assertTrue(matches.get(0).get("distance").asInt() <= PictureFindSimilar.DEFAULT_MAX_DISTANCE);
+
+        // From a document, which is not returned itself
+        ctx = new OperationContext(session);
+        ctx.setInput(desert);
+        result = (Blob) automationService.run(ctx, PictureFindSimilar.ID, new HashMap<>());
+        assertEquals(0, new ObjectMapper().readTree(result.getString()).size());
+
+        ctx = new OperationContext(session);
+        params = new HashMap<>();
+        params.put("full", true);
+        result = (Blob) automationService.run(ctx, PicturePerceptualHashIndexUpdate.ID, params);
+        assertEquals(2, new ObjectMapper().readTree(result.getString()).get("read").asInt());
+
+        // Document without hash anymore => removed at the next incremental update
+        chrysanthemum = session.getDocument(chrysanthemum.getRef());
+        chrysanthemum.removeFacet(PerceptualHashIndex.FACET);
+        session.saveDocument(chrysanthemum);
+        txFeature.nextTransaction();
+        PerceptualHashIndex index = PerceptualHashIndex.get(session.getRepositoryName());
+        assertEquals(2, index.size());
+        index.update(false);
+        assertEquals(1, index.size());
+    }
+
     @Test
     public void shouldRemoveFromViewWithSave() throws Exception {
 
@@ -200,6 +500,105 @@ public class TestPictureOperations {
 
     }
 
+    @Test
+    public void shouldCropImageWithJavaEngine() throws Exception {
+
+        Blob input = TestUtils.createBlobFromTestImage();
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(input);
+        Map<String, Object> params = new HashMap<>();
+        params.put("top", 10);
+        params.put("left", 10);
+        params.put("width", 100);
+        params.put("height", 110);
+        params.put("engine", "java");
+        Blob cropped = (Blob) automationService.run(ctx, PictureCrop.ID, params);
+        assertEquals(input.getFilename(), cropped.getFilename());
+        assertEquals("image/jpeg", cropped.getMimeType());
+        ImageInfo ii = imagingService.getImageInfo(cropped);
+        assertEquals(100, ii.getWidth());
+        assertEquals(110, ii.getHeight());
+    }
+
+    @Test
+    public void shouldCropSeveralRegions() throws Exception {
+
+        Blob input = TestUtils.createBlobFromTestImage();
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(input);
+        Map<String, Object> params = new HashMap<>();
+        // The last one is restricted to the image
+        params.put("regions", "100x110+10+10; 50x60+500+400\n200x200+1000+700");
+        BlobList crops = (BlobList) automationService.run(ctx, PictureCropRegions.ID, params);
+        assertEquals(3, crops.size());
+
+        String baseName = FilenameUtils.getBaseName(input.getFilename());
+        int[][] expected = { { 100, 110 }, { 50, 60 }, { 24, 68 } };
+        for (int i = 0; i < crops.size(); i++) {
+            Blob crop = crops.get(i);
+            assertEquals(baseName + "-" + (i + 1) + ".jpg", crop.getFilename());
+            assertEquals("image/jpeg", crop.getMimeType());
+            ImageInfo ii = imagingService.getImageInfo(crop);
+            assertEquals(expected[i][0], ii.getWidth());
+            assertEquals(expected[i][1], ii.getHeight());
+        }
+
+        params.put("format", "png");
+        crops = (BlobList) automationService.run(ctx, PictureCropRegions.ID, params);
+        assertEquals("image/png", crops.get(0).getMimeType());
+        assertEquals("PNG", imagingService.getImageInfo(crops.get(0)).getFormat());
+    }
+
+    /**
+     * Crops with the ImagingService, as if ImageIO could not decode the input.
+     */
+    protected static class ImagingServiceCropRegions extends PictureCropRegions {
+
+        protected ImagingServiceCropRegions(ConversionService conversionService, ImagingService imagingService,
+                String regions, String format) {
+            this.conversionService = conversionService;
+            this.imagingService = imagingService;
+            this.regions = regions;
+            this.format = format;
+        }
+
+        @Override
+        protected List<BufferedImage> readRegions(Blob input, List<Rectangle> rectangles) {
+            return null;
+        }
+    }
+
+    @Test
+    public void shouldCropSeveralRegionsWithImagingService() throws Exception {
+
+        Blob input = TestUtils.createBlobFromTestImage();
+        String baseName = FilenameUtils.getBaseName(input.getFilename());
+        String regions = "100x110+10+10; 50x60+500+400";
+
+        BlobList crops = new ImagingServiceCropRegions(conversionService, imagingService, regions, null).run(input);
+        assertEquals(2, crops.size());
+        int[][] expected = { { 100, 110 }, { 50, 60 } };
+        for (int i = 0; i < crops.size(); i++) {
+            Blob crop = crops.get(i);
+            assertEquals(baseName + "-" + (i + 1) + ".jpg", crop.getFilename());
+            assertEquals("image/jpeg", crop.getMimeType());
+            ImageInfo ii = imagingService.getImageInfo(crop);
+            assertEquals(expected[i][0], ii.getWidth());
+            assertEquals(expected[i][1], ii.getHeight());
+        }
+
+        crops = new ImagingServiceCropRegions(conversionService, imagingService, regions, "png").run(input);
+        assertEquals(2, crops.size());
+        for (int i = 0; i < crops.size(); i++) {
+            Blob crop = crops.get(i);
+            assertEquals(baseName + "-" + (i + 1) + ".png", crop.getFilename());
+            assertEquals("image/png", crop.getMimeType());
+            assertEquals("PNG", imagingService.getImageInfo(crop).getFormat());
+        }
+    }
+
     @Test
     public void shouldRotateAnImage() throws Exception {
 
@@ -225,6 +624,293 @@ public class TestPictureOperations {
 
     }
 
+    @Test
+    public void shouldRotateJpegLosslessly() throws Exception {
+
+        Blob input = TestUtils.createBlobFromTestImage();
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(input);
+        Map<String, Object> params = new HashMap<>();
+        params.put("angle", 90);
+        params.put("lossless", true);
+        Blob rotated = (Blob) automationService.run(ctx, PictureRotate.ID, params);
+        assertEquals(input.getFilename(), rotated.getFilename());
+        assertEquals("image/jpeg", rotated.getMimeType());
+        try (InputStream in = rotated.getStream()) {
+            assertEquals(6, JpegOrientation.getOrientation(in));
+        }
+        // Pixels are unchanged
+        ImageInfo ii = imagingService.getImageInfo(rotated);
+        assertEquals(1024, ii.getWidth());
+        assertEquals(768, ii.getHeight());
+
+        // Orientations are combined
+        ctx.setInput(rotated);
+        params.put("angle", 180);
+        rotated = (Blob) automationService.run(ctx, PictureRotate.ID, params);
+        try (InputStream in = rotated.getStream()) {
+            assertEquals(8, JpegOrientation.getOrientation(in));
+        }
+    }
+
+    // Offset of IFD1 in the TIFF data built by exifSegment: after the header (8) and IFD0 (2 entries)
+    protected static final int TEST_IFD1 = 8 + 2 + 2 * 12 + 4;
+
+    /**
+     * An APP1 EXIF segment without orientation: IFD0 with ImageWidth and YCbCrPositioning, IFD1 with Compression.
+     */
+    protected static byte[] exifSegment(ByteOrder order) {
+
+        ByteBuffer tiff = ByteBuffer.allocate(TEST_IFD1 + 2 + 12 + 4).order(order);
+        tiff.put(order == ByteOrder.LITTLE_ENDIAN ? new byte[] { 'I', 'I' } : new byte[] { 'M', 'M' });
+        tiff.putShort((short) 42).putInt(8);
+        tiff.putShort((short) 2);
+        tiff.putShort((short) 0x0100).putShort((short) 3).putInt(1).putShort((short) 100).putShort((short) 0);
+        tiff.putShort((short) 0x0213).putShort((short) 3).putInt(1).putShort((short) 1).putShort((short) 0);
+        tiff.putInt(TEST_IFD1);
+        tiff.putShort((short) 1);
+        tiff.putShort((short) 0x0103).putShort((short) 3).putInt(1).putShort((short) 6).putShort((short) 0);
+        tiff.putInt(0);
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.writeBytes(new byte[] { 'E', 'x', 'i', 'f', 0, 0 });
+        data.writeBytes(tiff.array());
+
+        return segment(0xE1, data.toByteArray());
+    }
+
+    protected static byte[] segment(int marker, byte[] data) {
+
+        ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        segment.write(0xFF);
+        segment.write(marker);
+        segment.write((data.length + 2) >> 8);
+        segment.write((data.length + 2) & 0xFF);
+        segment.writeBytes(data);
+
+        return segment.toByteArray();
+    }
+
+    /**
+     * A JPEG with these metadata segments, followed by a (fake) scan. Only the metadata segments are read.
+     */
+    protected static File createJpeg(byte[]... segments) throws Exception {
+
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        jpeg.writeBytes(new byte[] { (byte) 0xFF, (byte) 0xD8 });
+        for (byte[] segment : segments) {
+            jpeg.writeBytes(segment);
+        }
+        jpeg.writeBytes(segment(0xDA, new byte[] { 1, 1, 0, 0, 63, 0 }));
+        jpeg.writeBytes(new byte[] { 0x11, 0x22, 0x33, (byte) 0xFF, (byte) 0xD9 });
+
+        File file = Framework.createTempFile("orientation", ".jpg");
+        Files.write(jpeg.toByteArray(), file);
+
+        return file;
+    }
+
+    /**
+     * The metadata segments of the JPEG, as marker followed by the content of the segment (after its length).
+     */
+    protected static List<byte[]> readSegments(File file) throws Exception {
+
+        byte[] jpeg = Files.toByteArray(file);
+        List<byte[]> segments = new ArrayList<>();
+        int offset = 2;
+        while ((jpeg[offset + 1] & 0xFF) != 0xDA) {
+            int length = (jpeg[offset + 2] & 0xFF) << 8 | (jpeg[offset + 3] & 0xFF);
+            byte[] segment = new byte[length - 1];
+            segment[0] = jpeg[offset + 1];
+            System.arraycopy(jpeg, offset + 4, segment, 1, length - 2);
+            segments.add(segment);
+            offset += 2 + length;
+        }
+
+        return segments;
+    }
+
+    protected static boolean isExifSegment(byte[] segment) {
+        return (segment[0] & 0xFF) == 0xE1 && new String(segment, 1, 4, StandardCharsets.ISO_8859_1).equals("Exif");
+    }
+
+    protected static int getOrientation(File file) throws Exception {
+
+        try (InputStream in = Files.asByteSource(file).openStream()) {
+            return JpegOrientation.getOrientation(in);
+        }
+    }
+
+    @Test
+    public void shouldAddOrientationTagToExif() throws Exception {
+
+        for (ByteOrder order : List.of(ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN)) {
+            byte[] exif = exifSegment(order);
+            File input = createJpeg(segment(0xE0, "JFIF\0".getBytes(StandardCharsets.ISO_8859_1)), exif);
+            File output = Framework.createTempFile("rotated", ".jpg");
+            assertTrue(JpegOrientation.rotate(input, output, 90));
+            assertEquals(6, getOrientation(output));
+
+            List<byte[]> segments = readSegments(output);
+            assertEquals(2, segments.size());
+            assertEquals(0xE0, segments.get(0)[0] & 0xFF);
+            byte[] rotated = segments.get(1);
+            assertTrue(isExifSegment(rotated));
+
+            // The new IFD0 holds the entries of the old one plus the orientation, sorted, and still points to IFD1
+            ByteBuffer tiff = ByteBuffer.wrap(rotated, 7, rotated.length - 7).slice().order(order);
+            int ifd0 = tiff.getInt(4);
+            assertTrue(ifd0 > TEST_IFD1);
+            assertEquals(3, tiff.getShort(ifd0));
+            assertEquals(0x0100, tiff.getShort(ifd0 + 2));
+            assertEquals(0x0112, tiff.getShort(ifd0 + 2 + 12));
+            assertEquals(6, tiff.getShort(ifd0 + 2 + 12 + 8));
+            assertEquals(0x0213, tiff.getShort(ifd0 + 2 + 2 * 12));
+            assertEquals(TEST_IFD1, tiff.getInt(ifd0 + 2 + 3 * 12));
+            // IFD1 is unchanged
+            assertEquals(1, tiff.getShort(TEST_IFD1));
+            assertEquals(0x0103, tiff.getShort(TEST_IFD1 + 2));
+
+            // Now rotated in place
+            File again = Framework.createTempFile("rotated", ".jpg");
+            assertTrue(JpegOrientation.rotate(output, again, 90));
+            assertEquals(3, getOrientation(again));
+            assertEquals(rotated.length, readSegments(again).get(1).length);
+        }
+    }
+
+    @Test
+    public void shouldNotAddExifWhenAfterXmp() throws Exception {
+
+        byte[] xmp = segment(0xE1, "http://ns.adobe.com/xap/1.0/\0<x:xmpmeta/>".getBytes(StandardCharsets.UTF_8));
+        File input = createJpeg(xmp, exifSegment(ByteOrder.BIG_ENDIAN));
+        File output = Framework.createTempFile("rotated", ".jpg");
+        assertTrue(JpegOrientation.rotate(input, output, 90));
+        assertEquals(6, getOrientation(output));
+
+        List<byte[]> segments = readSegments(output);
+        assertEquals(2, segments.size());
+        assertFalse(isExifSegment(segments.get(0)));
+        assertTrue(isExifSegment(segments.get(1)));
+    }
+
+    @Test
+    public void shouldInsertExifInJpegWithoutExif() throws Exception {
+
+        File input = createJpeg(segment(0xE0, "JFIF\0".getBytes(StandardCharsets.ISO_8859_1)),
+                segment(0xDB, new byte[65]));
+        assertEquals(1, getOrientation(input));
+        File output = Framework.createTempFile("rotated", ".jpg");
+        assertTrue(JpegOrientation.rotate(input, output, 270));
+        assertEquals(8, getOrientation(output));
+
+        // Inserted just after JFIF
+        List<byte[]> segments = readSegments(output);
+        assertEquals(3, segments.size());
+        assertEquals(0xE0, segments.get(0)[0] & 0xFF);
+        assertTrue(isExifSegment(segments.get(1)));
+        assertEquals(0xDB, segments.get(2)[0] & 0xFF);
+
+        // The scan is copied as is
+        byte[] in = Files.toByteArray(input);
+        byte[] out = Files.toByteArray(output);
+        assertEquals(in.length + segment(0xE1, new byte[32]).length, out.length);
+    }
+
+    @Test
+    public void shouldTransformPictureInOneCall() throws Exception {
+
+        Blob input = TestUtils.createBlobFromTestImage();
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(input);
+        Map<String, Object> params = new HashMap<>();
+        params.put("steps", "crop:800x600+10+20; rotate:90; resize:400x400; format:png");
+        Blob result = (Blob) automationService.run(ctx, PictureTransform.ID, params);
+        assertNotNull(result);
+        assertEquals("image/png", result.getMimeType());
+        assertEquals(FilenameUtils.getBaseName(input.getFilename()) + ".png", result.getFilename());
+
+        ImageInfo ii = imagingService.getImageInfo(result);
+        assertEquals("PNG", ii.getFormat());
+        assertEquals(300, ii.getWidth());
+        assertEquals(400, ii.getHeight());
+    }
+
+    @Test
+    public void shouldRejectEmptyResize() throws Exception {
+
+        for (String resize : List.of("0x10!", "10x0!", "0x0", "0", "x0", "0%", "0.0%", "99999999999x10")) {
+            try {
+                PictureTransformation.parse("resize:" + resize);
+                fail("resize:" + resize + " should be rejected");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().startsWith("Invalid resize"));
+            }
+        }
+        assertEquals(1, PictureTransformation.parse("resize:0.5%").getSteps().size());
+        assertEquals(1, PictureTransformation.parse("resize:x10").getSteps().size());
+    }
+
+    @Test
+    public void shouldRejectInvalidAngle() throws Exception {
+
+        for (String angle : List.of("NaN", "Infinity", "-Infinity", "90d", "90f", "1e2", "0x1p3", "90.", ".5")) {
+            try {
+                PictureTransformation.parse("rotate:" + angle);
+                fail("rotate:" + angle + " should be rejected");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().startsWith("Invalid rotation angle"));
+            }
+        }
+        for (String angle : List.of("90", "+90", "-45.5")) {
+            assertEquals(1, PictureTransformation.parse("rotate:" + angle).getSteps().size());
+        }
+    }
+
+    @Test
+    public void shouldNotTransformTooBigResultsInJava() throws Exception {
+
+        File input = FileUtils.getResourceFileFromContext(TestUtils.TEST_IMAGE_FILE);
+        File output = Framework.createTempFile("transformed", ".jpg");
+        long maxPixels = PictureTransform.DEFAULT_JAVA_MAX_IN_MEMORY_PIXELS;
+
+        // The source is small enough, the results are not
+        assertTrue(PictureTransformation.parse("resize:50%").apply(input, output, "jpg", maxPixels));
+        assertFalse(PictureTransformation.parse("resize:50000x50000!").apply(input, output, "jpg", maxPixels));
+        assertFalse(PictureTransformation.parse("resize:1000%").apply(input, output, "jpg", maxPixels));
+        assertFalse(PictureTransformation.parse("crop:100x100+0+0; resize:1000000%").apply(input, output, "jpg",
+                maxPixels));
+
+        // 1024x768 fits in 1,000,000 pixels, rotated by 45 degrees it does not
+        assertTrue(PictureTransformation.parse("rotate:90").apply(input, output, "jpg", 1_000_000));
+        assertFalse(PictureTransformation.parse("rotate:45").apply(input, output, "jpg", 1_000_000));
+        assertTrue(PictureTransformation.parse("resize:50%; rotate:45").apply(input, output, "jpg", 1_000_000));
+    }
+
+    @Test
+    public void shouldTransformPictureWithJavaEngine() throws Exception {
+
+        Blob input = TestUtils.createBlobFromTestImage();
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(input);
+        Map<String, Object> params = new HashMap<>();
+        params.put("steps", "crop:800x600+10+20; rotate:90; resize:400x400");
+        params.put("targetFileName", "transformed.jpg");
+        params.put("engine", "java");
+        Blob result = (Blob) automationService.run(ctx, PictureTransform.ID, params);
+        assertNotNull(result);
+        assertEquals("image/jpeg", result.getMimeType());
+        assertEquals("transformed.jpg", result.getFilename());
+
+        ImageInfo ii = imagingService.getImageInfo(result);
+        assertEquals("JPEG", ii.getFormat());
+        assertEquals(300, ii.getWidth());
+        assertEquals(400, ii.getHeight());
+    }
+
     @Test
     public void TestConcatenateImagesOperation() throws Exception {
 
@@ -310,4 +996,244 @@ public class TestPictureOperations {
 
     }
 
+    @Test
+    public void shouldConcatenateManyImagesInOneCall() throws Exception {
+
+        List<Blob> blobs = new ArrayList<Blob>();
+        for (int i = 0; i < 4; i++) {
+            String path = i % 2 == 0 ? "files/Chrysanthemum.jpg" : "files/Desert.jpg";
+            blobs.add(Blobs.createBlob(FileUtils.getResourceFileFromContext(path), "image/jpeg"));
+        }
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(new BlobList(blobs));
+        Map<String, Object> params = new HashMap<>();
+        params.put("targetFileName", "final.png");
+        params.put("destMimeType", "image/png");
+        Blob result = (Blob) automationService.run(ctx, ConcatenateImages.ID, params);
+
+        assertNotNull(result);
+        assertEquals("final.png", result.getFilename());
+        assertEquals("image/png", result.getMimeType());
+        ImageInfo ii = imagingService.getImageInfo(result);
+        assertEquals(1024, ii.getWidth());
+        assertEquals(4 * 768, ii.getHeight());
+
+        params.put("concatHorizontally", true);
+        ctx.setInput(new BlobList(blobs));
+        result = (Blob) automationService.run(ctx, ConcatenateImages.ID, params);
+        ii = imagingService.getImageInfo(result);
+        assertEquals(4 * 1024, ii.getWidth());
+        assertEquals(768, ii.getHeight());
+    }
+
+    @Test
+    public void shouldConcatenateImagesWithJavaEngine() throws Exception {
+
+        List<Blob> blobs = new ArrayList<Blob>();
+        blobs.add(Blobs.createBlob(FileUtils.getResourceFileFromContext("files/Chrysanthemum.jpg"), "image/jpeg"));
+        blobs.add(Blobs.createBlob(FileUtils.getResourceFileFromContext("files/Desert.jpg"), "image/jpeg"));
+        blobs.add(Blobs.createBlob(FileUtils.getResourceFileFromContext("files/Desert.jpg"), "image/jpeg"));
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(new BlobList(blobs));
+        Map<String, Object> params = new HashMap<>();
+        params.put("targetFileName", "final.png");
+        params.put("destMimeType", "image/png");
+        params.put("engine", ConcatenateImages.ENGINE_JAVA);
+        Blob result = (Blob) automationService.run(ctx, ConcatenateImages.ID, params);
+
+        assertNotNull(result);
+        assertEquals("final.png", result.getFilename());
+        ImageInfo ii = imagingService.getImageInfo(result);
+        assertEquals("PNG", ii.getFormat());
+        assertEquals(1024, ii.getWidth());
+        assertEquals(3 * 768, ii.getHeight());
+
+        params.put("targetFileName", "final.jpg");
+        params.put("destMimeType", "image/jpeg");
+        params.put("concatHorizontally", true);
+        ctx.setInput(new BlobList(blobs));
+        result = (Blob) automationService.run(ctx, ConcatenateImages.ID, params);
+        ii = imagingService.getImageInfo(result);
+        assertEquals("JPEG", ii.getFormat());
+        assertEquals(3 * 1024, ii.getWidth());
+        assertEquals(768, ii.getHeight());
+    }
+
+    @Test
+    public void shouldSplitInBalancedGroups() {
+
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < 11; i++) {
+            values.add(i);
+        }
+        List<List<Integer>> groups = ConcatenateImages.splitInGroups(values, 4);
+        assertEquals(3, groups.size());
+        assertEquals(List.of(0, 1, 2, 3), groups.get(0));
+        assertEquals(List.of(4, 5, 6, 7), groups.get(1));
+        assertEquals(List.of(8, 9, 10), groups.get(2));
+
+        groups = ConcatenateImages.splitInGroups(values, 10);
+        assertEquals(2, groups.size());
+        assertEquals(6, groups.get(0).size());
+        assertEquals(5, groups.get(1).size());
+    }
+
+    @Test
+    public void shouldConcatenateImagesInGroups() throws Exception {
+
+        List<Blob> blobs = new ArrayList<Blob>();
+        for (int i = 0; i < 5; i++) {
+            blobs.add(Blobs.createBlob(FileUtils.getResourceFileFromContext("files/Desert.jpg"), "image/jpeg"));
+        }
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(new BlobList(blobs));
+        Map<String, Object> params = new HashMap<>();
+        params.put("targetFileName", "final.jpg");
+        params.put("destMimeType", "image/jpeg");
+        params.put("groupSize", 2);
+        Blob result = (Blob) automationService.run(ctx, ConcatenateImages.ID, params);
+
+        assertNotNull(result);
+        assertEquals("final.jpg", result.getFilename());
+        assertEquals("image/jpeg", result.getMimeType());
+        ImageInfo ii = imagingService.getImageInfo(result);
+        assertEquals("JPEG", ii.getFormat());
+        assertEquals(1024, ii.getWidth());
+        assertEquals(5 * 768, ii.getHeight());
+    }
+
+    @Test
+    public void shouldBuildContactSheet() throws Exception {
+
+        List<Blob> blobs = new ArrayList<Blob>();
+        for (int i = 0; i < 5; i++) {
+            String path = i % 2 == 0 ? "files/Chrysanthemum.jpg" : "files/Desert.jpg";
+            blobs.add(Blobs.createBlob(FileUtils.getResourceFileFromContext(path), "image/jpeg"));
+        }
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(new BlobList(blobs));
+        Map<String, Object> params = new HashMap<>();
+        params.put("targetFileName", "sheet.jpg");
+        params.put("destMimeType", "image/jpeg");
+        params.put("columns", 3);
+        params.put("cellWidth", 200);
+        params.put("cellHeight", 150);
+        params.put("spacing", 10);
+        Blob result = (Blob) automationService.run(ctx, ConcatenateImages.ID, params);
+
+        assertNotNull(result);
+        assertEquals("sheet.jpg", result.getFilename());
+        assertEquals("image/jpeg", result.getMimeType());
+        ImageInfo ii = imagingService.getImageInfo(result);
+        // 3 columns, 2 rows
+        assertEquals(3 * 200 + 4 * 10, ii.getWidth());
+        assertEquals(2 * 150 + 3 * 10, ii.getHeight());
+    }
+
+    @Test
+    public void shouldRejectTooBigContactSheet() throws Exception {
+
+        List<Blob> blobs = new ArrayList<Blob>();
+        for (int i = 0; i < 4; i++) {
+            blobs.add(TestUtils.createBlobFromTestImage());
+        }
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(new BlobList(blobs));
+        Map<String, Object> params = new HashMap<>();
+        params.put("targetFileName", "sheet.png");
+        params.put("destMimeType", "image/png");
+        params.put("columns", 2);
+        // 2 x 2 cells of 50,000 x 50,000 pixels
+        params.put("cellWidth", 50000);
+        try {
+            automationService.run(ctx, ConcatenateImages.ID, params);
+            fail("The contact sheet should be rejected");
+        } catch (Exception e) {
+            // Expected (wrapped by automation)
+        }
+
+        try {
+            new ContactSheet(4, 2, 50000, 50000, 0, ImageConcatenator.DEFAULT_MAX_IN_MEMORY_PIXELS);
+            fail("The contact sheet should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("Contact sheet too big"));
+        }
+        // Width and height below the limit, not their product
+        try {
+            new ContactSheet(10_000, 100, 10_000, 100, 0, ImageConcatenator.DEFAULT_MAX_IN_MEMORY_PIXELS);
+            fail("The contact sheet should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("Contact sheet too big"));
+        }
+    }
+
+    @Test
+    public void shouldCacheImageInfoByDigest() throws Exception {
+
+        ImageInfoCache.clear();
+        Blob input = TestUtils.createBlobFromTestImage();
+        input.setDigest(TestUtils.TEST_IMAGE_MD5);
+        AtomicInteger probes = new AtomicInteger();
+        Function<Blob, ImageInfo> probe = blob -> {
+            probes.incrementAndGet();
+            return imagingService.getImageInfo(blob);
+        };
+
+        ImageInfo first = ImageInfoCache.getImageInfo(input, probe);
+        ImageInfo second = ImageInfoCache.getImageInfo(input, probe);
+        assertEquals(1, probes.get());
+        assertNotSame(first, second);
+        assertEquals(1024, second.getWidth());
+        assertEquals(768, second.getHeight());
+        assertEquals("JPEG", second.getFormat());
+
+        // The operation uses the same cache
+        long hits = ImageInfoCache.getCacheStats().hitCount();
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(input);
+        automationService.run(ctx, PictureGetInfo.ID);
+        assertEquals(hits + 1, ImageInfoCache.getCacheStats().hitCount());
+        assertEquals(1024, ((ImageInfo) ctx.get(PictureGetInfo.CTX_VAR_NAME)).getWidth());
+    }
+
+    @Test
+    public void shouldGetPictureInfoFromHeader() throws Exception {
+
+        Blob input = TestUtils.createBlobFromTestImage();
+        ImageInfo full = imagingService.getImageInfo(input);
+
+        OperationContext ctx = new OperationContext(session);
+        ctx.setInput(input);
+        Map<String, Object> params = new HashMap<>();
+        params.put("fast", true);
+        automationService.run(ctx, PictureGetInfo.ID, params);
+
+        ImageInfo ii = (ImageInfo) ctx.get(PictureGetInfo.CTX_VAR_NAME);
+        assertEquals(full.getFormat(), ii.getFormat());
+        assertEquals(full.getWidth(), ii.getWidth());
+        assertEquals(full.getHeight(), ii.getHeight());
+        assertEquals(full.getColorSpace(), ii.getColorSpace());
+        assertEquals(full.getDepth(), ii.getDepth());
+
+        // Same thing for other formats
+        for (String format : List.of("png", "gif", "bmp", "tiff")) {
+            BufferedImage image = new BufferedImage(321, 123, BufferedImage.TYPE_INT_RGB);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(image, format, out);
+            ii = PictureGetInfo.getFastImageInfo(Blobs.createBlob(out.toByteArray()));
+            assertNotNull(format, ii);
+            assertEquals(format.toUpperCase(), ii.getFormat());
+            assertEquals(321, ii.getWidth());
+            assertEquals(123, ii.getHeight());
+        }
+
+        // Unknown format
+        assertNull(PictureGetInfo.getFastImageInfo(Blobs.createBlob("Not an image")));
+    }
+
 }